@@ -4,8 +4,8 @@ import org.openimaj.image.DisplayUtilities;
 import org.openimaj.image.MBFImage;
 import org.openimaj.image.colour.ColourSpace;
 import org.openimaj.image.colour.RGBColour;
-import org.openimaj.image.processing.convolution.FGaussianConvolve;
 import org.openimaj.image.typography.hershey.HersheyFont;
+import uk.ac.soton.ecs.dsj.processing.RecursiveGaussianBlur;
 
 /**
  * OpenIMAJ Hello world!
@@ -22,8 +22,10 @@ public class App {
     // Render some test into the image
     image.drawText("Hello World", 10, 60, HersheyFont.CURSIVE, 50, RGBColour.BLACK);
 
-    // Apply a Gaussian blur
-    image.processInplace(new FGaussianConvolve(2f));
+    // Apply a Gaussian blur (recursive, so the cost does not grow with sigma)
+    image.processInplace(new RecursiveGaussianBlur(2f));
+    // !!! Alternative method - convolution with a sampled Gaussian kernel
+    // image.processInplace(new FGaussianConvolve(2f));
 
     // Display the image
     DisplayUtilities.display(image);
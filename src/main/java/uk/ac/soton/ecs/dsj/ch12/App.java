@@ -15,6 +15,7 @@ import org.openimaj.data.dataset.VFSListDataset;
 import org.openimaj.experiment.dataset.sampling.GroupSampler;
 import org.openimaj.experiment.dataset.sampling.GroupedUniformRandomisedSampler;
 import org.openimaj.experiment.dataset.split.GroupedRandomSplitter;
+import org.openimaj.experiment.dataset.util.DatasetAdaptors;
 import org.openimaj.experiment.evaluation.classification.ClassificationEvaluator;
 import org.openimaj.experiment.evaluation.classification.ClassificationResult;
 import org.openimaj.experiment.evaluation.classification.analysers.confusionmatrix.CMAnalyser;
@@ -43,8 +44,10 @@ import org.openimaj.ml.clustering.kmeans.ByteKMeans;
 import org.openimaj.ml.kernel.HomogeneousKernelMap;
 import org.openimaj.ml.kernel.HomogeneousKernelMap.KernelType;
 import org.openimaj.ml.kernel.HomogeneousKernelMap.WindowType;
+import org.openimaj.util.pair.IndependentPair;
 import org.openimaj.util.pair.IntFloatPair;
 import de.bwaldvogel.liblinear.SolverType;
+import uk.ac.soton.ecs.dsj.dataset.Prefetcher;
 
 /**
  * Test application for OpenIMAJ-Tutorial Chapter 12 exercises.
@@ -132,13 +135,22 @@ public class App {
   static HardAssigner<byte[], float[], IntFloatPair> trainQuantiser(Dataset<Record<FImage>> sample,
       PyramidDenseSIFT<FImage> pdsift) {
 
-    // Find image features
+    // Find image features (images are decoded ahead on the worker pool while SIFT runs)
     List<LocalFeatureList<ByteDSIFTKeypoint>> allkeys = new ArrayList<>();
-    for (Record<FImage> rec : sample) {
-      FImage img = rec.getImage();
+    Prefetcher<IndependentPair<Record<FImage>, FImage>> records =
+        Prefetcher.ofImages(DatasetAdaptors.asList(sample));
+    for (IndependentPair<Record<FImage>, FImage> rec : records) {
+      FImage img = rec.getSecondObject();
       pdsift.analyseImage(img);
       allkeys.add(pdsift.getByteKeypoints(0.005f));
     }
+    System.out.println("Prefetch: " + records);
+    // !!! Alternative method - decode each image as it is reached
+    // for (Record<FImage> rec : sample) {
+    // FImage img = rec.getImage();
+    // pdsift.analyseImage(img);
+    // allkeys.add(pdsift.getByteKeypoints(0.005f));
+    // }
     // Truncate the feature list
     if (allkeys.size() > 10000) {
       allkeys = allkeys.subList(0, 10000);
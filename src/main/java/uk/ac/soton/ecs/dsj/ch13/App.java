@@ -25,16 +25,24 @@ import org.openimaj.image.model.EigenImages;
 public class App {
 
   public static void main(String[] args) {
-    VFSGroupDataset<FImage> dataset = null;
+    GroupedDataset<String, ? extends ListDataset<FImage>, FImage> faces = null;
     try {
       URI facesURI = new URI(App.class.getResource("/att_faces.zip").toString());
-      dataset =
+      VFSGroupDataset<FImage> dataset =
           new VFSGroupDataset<FImage>("zip:" + facesURI.toString(), ImageUtilities.FIMAGE_READER);
 
+      // The splitter below copies each face once, so decode straight from the zip
+      faces = dataset;
+      // !!! Alternative method - pack the faces on the first run, then read them memory mapped
+      // faces = PackedImageDataset.openOrCreate(PackedImageDataset.getDefaultFile("att_faces"),
+      // dataset);
+      // !!! Alternative method - decode each face once into an off-heap cache, only worth it when
+      // faces are read more than once (e.g. several random splits of the same dataset)
+      // faces = new CachedGroupDataset(dataset, new FImageCache());
     } catch (Exception e) {
       e.printStackTrace();
     } finally {
-      if (dataset == null) {
+      if (faces == null) {
         return;
       }
     }
@@ -42,7 +50,7 @@ public class App {
     int nTraining = 6;
     int nTesting = 5;
     GroupedRandomSplitter<String, FImage> splits =
-        new GroupedRandomSplitter<>(dataset, nTraining, 0, nTesting);
+        new GroupedRandomSplitter<>(faces, nTraining, 0, nTesting);
     GroupedDataset<String, ListDataset<FImage>, FImage> training = splits.getTrainingDataset();
     GroupedDataset<String, ListDataset<FImage>, FImage> testing = splits.getTestDataset();
     // Project features
@@ -7,12 +7,12 @@ import java.util.Map;
 import javax.swing.JFrame;
 import org.openimaj.image.DisplayUtilities;
 import org.openimaj.image.Image;
-import org.openimaj.image.ImageUtilities;
 import org.openimaj.image.MBFImage;
 import org.openimaj.image.colour.RGBColour;
 import org.openimaj.image.processing.edges.CannyEdgeDetector;
 import org.openimaj.image.typography.hershey.HersheyFont;
 import org.openimaj.math.geometry.shape.Ellipse;
+import uk.ac.soton.ecs.dsj.util.ImageCache;
 
 /**
  * Test application for OpenIMAJ-Tutorial Chapter 2 exercises.
@@ -25,12 +25,13 @@ public class App {
   public static void main(String[] args) {
     Map<String, Image<?, ?>> images = new LinkedHashMap<>();
 
-    // Download the tutorial image from the provided URL
+    // Load the tutorial image from the provided URL (cached locally after the first download)
     MBFImage image = null;
     try {
-      System.out.println("Attempting to download test image...");
-      image = ImageUtilities.readMBF(new URL("http://static.openimaj.org/media/tutorial/sinaface.jpg"));
-      System.out.println("Downloaded test image");
+      System.out.println("Attempting to load test image...");
+      image = ImageCache.getDefault()
+          .readMBF(new URL("http://static.openimaj.org/media/tutorial/sinaface.jpg"));
+      System.out.println("Loaded test image");
     } catch (IOException e) {
       System.err.println("Could not load image from URL");
     }
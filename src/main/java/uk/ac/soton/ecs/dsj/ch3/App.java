@@ -4,22 +4,13 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
-import org.apache.commons.lang3.ArrayUtils;
+import java.util.Random;
 import org.openimaj.image.Image;
-import org.openimaj.image.ImageUtilities;
 import org.openimaj.image.MBFImage;
 import org.openimaj.image.colour.ColourSpace;
-import org.openimaj.image.connectedcomponent.GreyscaleConnectedComponentLabeler;
-import org.openimaj.image.pixel.ConnectedComponent;
-import org.openimaj.image.processor.PixelProcessor;
-import org.openimaj.image.segmentation.FelzenszwalbHuttenlocherSegmenter;
-import org.openimaj.image.segmentation.SegmentationUtilities;
 import org.openimaj.image.typography.hershey.HersheyFont;
-import org.openimaj.ml.clustering.FloatCentroidsResult;
-import org.openimaj.ml.clustering.assignment.HardAssigner;
-import org.openimaj.ml.clustering.kmeans.FloatKMeans;
+import uk.ac.soton.ecs.dsj.util.ImageCache;
 
 /**
  * Test application for OpenIMAJ-Tutorial Chapter 3 exercises.
@@ -28,16 +19,18 @@ import org.openimaj.ml.clustering.kmeans.FloatKMeans;
  */
 public class App {
   private static final String TEST_WINDOW_ID = "TEST_WINDOW";
+  private static final int SWEEP_SAMPLE_SIZE = 20000;
 
   public static void main(String[] args) {
     Map<String, Image<?, ?>> images = new LinkedHashMap<>();
 
-    // Download the tutorial image from the provided URL (from Chapter 2)
+    // Load the tutorial image from the provided URL (from Chapter 2, cached locally)
     MBFImage image = null;
     try {
-      System.out.println("Attempting to download test image...");
-      image = ImageUtilities.readMBF(new URL("http://static.openimaj.org/media/tutorial/sinaface.jpg"));
-      System.out.println("Downloaded test image");
+      System.out.println("Attempting to load test image...");
+      image = ImageCache.getDefault()
+          .readMBF(new URL("http://static.openimaj.org/media/tutorial/sinaface.jpg"));
+      System.out.println("Loaded test image");
     } catch (IOException e) {
       System.err.println("Could not load image from URL");
     }
@@ -46,62 +39,45 @@ public class App {
       return;
     }
 
-    // Generate images for different K means, labelling component groups
-    for (int i = 2; i <= 5; i++) {
-      System.out.println("Processing " + i + " class image...");
-      System.out.println("Doing K-Means...");
-      MBFImage workingImage = doKMeans(image, i);
-      System.out.println("Labelling components...");
-      inplaceLabelComponents(workingImage, 1000);
-      images.put(String.valueOf(i) + "A", workingImage);
-      workingImage = workingImage.clone();
-      System.out.println("Segmenting image...");
-      inplaceSegmentComponents(workingImage, 10000);
-      images.put(String.valueOf(i) + "B", workingImage);
-    }
-    System.out.println("Processing finished!");
-  }
-
-  /**
-   * Group together similar colours in the provided image using the K-means clustering algorithm.
-   * 
-   * @param image Image to process, this input will not be affected
-   * @param classes Number of classes to create
-   * @return The generated image
-   */
-  private static MBFImage doKMeans(MBFImage image, int classes) {
-    // Get image in Lab colour space for human accurate Euclidean Distance calculations
-    image = ColourSpace.convert(image, ColourSpace.CIE_Lab);
-    // Construct the k means algorithm (use the exact form with n number of classes)
-    FloatKMeans cluster = FloatKMeans.createExact(classes);
-    // Prepare the image data and run the clustering algorithm on it
-    float[][] imageData = image.getPixelVectorNative(new float[image.getWidth() * image.getHeight()][3]);
-    FloatCentroidsResult result = cluster.cluster(imageData);
-    // Print the average point of all points for each class (the centroid)
-    final float[][] centroids = result.centroids;
-    for (float[] fs : centroids) {
-      System.out.println(Arrays.toString(fs));
+    // Generate images for different K means
+    // Fit K-means on a pixel subsample, warm starting each K from the last (see KMeansSweep)
+    Map<Integer, MBFImage> kMeansImages = new LinkedHashMap<>();
+    System.out.println("Doing sampled K-Means sweep...");
+    KMeansSweep sweep =
+        new KMeansSweep(SWEEP_SAMPLE_SIZE, KMeansSweep.Sampling.STRATIFIED, true);
+    MBFImage lab = ColourSpace.convert(image, ColourSpace.CIE_Lab);
+    Map<Integer, float[][]> centroidsByK = sweep.fitCentroids(lab, 2, 5);
+    for (Map.Entry<Integer, float[][]> entry : centroidsByK.entrySet()) {
+      System.out.println("K=" + entry.getKey() + ": " + Arrays.deepToString(entry.getValue()));
     }
-
-    // Create an assigner and classify each pixel to a centroid
-    final HardAssigner<float[], ?, ?> assigner = result.defaultHardAssigner();
-    image.processInplace(new PixelProcessor<Float[]>() {
-      @Override
-      public Float[] processPixel(Float[] pixel) {
-        // A primitive float array is expected by assigner so we must convert it
-        float[] primPixel = ArrayUtils.toPrimitive(pixel);
-        primPixel = centroids[assigner.assign(primPixel)];
-        // We must now convert back to a float
-        return ArrayUtils.toObject(primPixel);
-      }
-    });
-
-    // !!! Non PixelProcessor Method
-    // for (int y = 0; y < image.getHeight(); y++) {
-    // for (int x = 0; x < image.getWidth(); x++) {
-    // float[] pixel = image.getPixelNative(x, y);
+    kMeansImages.putAll(sweep.render(lab, centroidsByK));
+    // !!! Alternative method - exact K-means over every pixel, separately for each K
+    // for (int i = 2; i <= 5; i++) {
+    // System.out.println("Doing K-Means for " + i + " classes...");
+    // float[][] imageData = new float[lab.getWidth() * lab.getHeight()][3];
+    // imageData = lab.getPixelVectorNative(imageData);
+    // FloatCentroidsResult result = FloatKMeans.createExact(i).cluster(imageData);
+    // final float[][] centroids = result.centroids;
+    // System.out.println("K=" + i + ": " + Arrays.deepToString(centroids));
+    // MBFImage clustered = CentroidAssigner.assignInplace(lab.clone(), centroids);
+    // kMeansImages.put(i, ColourSpace.convert(clustered, ColourSpace.RGB));
+    // }
+    // !!! PixelProcessor Method for the assignment (boxes every pixel, see KMeansBenchmark)
+    // final HardAssigner<float[], ?, ?> assigner = result.defaultHardAssigner();
+    // clustered.processInplace(new PixelProcessor<Float[]>() {
+    // @Override
+    // public Float[] processPixel(Float[] pixel) {
+    // float[] primPixel = ArrayUtils.toPrimitive(pixel);
+    // primPixel = centroids[assigner.assign(primPixel)];
+    // return ArrayUtils.toObject(primPixel);
+    // }
+    // });
+    // !!! Non PixelProcessor Method for the assignment
+    // for (int y = 0; y < clustered.getHeight(); y++) {
+    // for (int x = 0; x < clustered.getWidth(); x++) {
+    // float[] pixel = clustered.getPixelNative(x, y);
     // int centroid = assigner.assign(pixel);
-    // image.setPixelNative(x, y, centroids[centroid]);
+    // clustered.setPixelNative(x, y, centroids[centroid]);
     // }
     // }
 
@@ -116,9 +92,20 @@ public class App {
      * final to satisfy the JDK which can make code appear too strict.
      ****************************************************************************************/
 
-    // Convert back to RGB (from Lab)
-    image = ColourSpace.convert(image, ColourSpace.RGB);
-    return image;
+    // Label component groups for each K
+    for (Map.Entry<Integer, MBFImage> entry : kMeansImages.entrySet()) {
+      int i = entry.getKey();
+      System.out.println("Processing " + i + " class image...");
+      MBFImage workingImage = entry.getValue();
+      System.out.println("Labelling components...");
+      inplaceLabelComponents(workingImage, 1000);
+      images.put(String.valueOf(i) + "A", workingImage);
+      workingImage = workingImage.clone();
+      System.out.println("Segmenting image...");
+      inplaceSegmentComponents(workingImage, 10000);
+      images.put(String.valueOf(i) + "B", workingImage);
+    }
+    System.out.println("Processing finished!");
   }
 
   /**
@@ -129,17 +116,25 @@ public class App {
    * @return Reference to the input image
    */
   private static MBFImage inplaceLabelComponents(MBFImage image, int minArea) {
-    GreyscaleConnectedComponentLabeler labeler = new GreyscaleConnectedComponentLabeler();
-    List<ConnectedComponent> components = labeler.findComponents(image.flatten());
+    // Label in a single union-find pass, collecting region statistics as we go
+    RegionLabeller labeler = new RegionLabeller();
+    RegionLabeller.Labelling labelling = labeler.labelParallel(image.flatten());
 
     int x = 0;
-    // Check all discovered components, labelling on the image if area constraint is satisfied
-    for (ConnectedComponent comp : components) {
-      if (comp.calculateArea() < minArea) {
-        continue;
-      }
-      image.drawText(String.valueOf(x++), comp.calculateCentroidPixel(), HersheyFont.TIMES_MEDIUM, 20);
+    // Label all discovered regions that satisfy the area constraint on the image
+    for (RegionLabeller.Region region : labelling.getRegions(minArea)) {
+      image.drawText(String.valueOf(x++), region.getCentroidPixel(), HersheyFont.TIMES_MEDIUM, 20);
     }
+
+    // !!! GreyscaleConnectedComponentLabeler Method (builds a pixel set for every component)
+    // GreyscaleConnectedComponentLabeler labeler = new GreyscaleConnectedComponentLabeler();
+    // List<ConnectedComponent> components = labeler.findComponents(image.flatten());
+    // for (ConnectedComponent comp : components) {
+    // if (comp.calculateArea() < minArea) {
+    // continue;
+    // }
+    // image.drawText(String.valueOf(x++), comp.calculateCentroidPixel(), HersheyFont.TIMES_MEDIUM, 20);
+    // }
     return image;
   }
 
@@ -151,16 +146,19 @@ public class App {
    * @return Reference to the input image
    */
   private static MBFImage inplaceSegmentComponents(MBFImage image, int minArea) {
-    FelzenszwalbHuttenlocherSegmenter<MBFImage> segmenter = new FelzenszwalbHuttenlocherSegmenter<>(0.5f, 500f / 255f, minArea);
-    List<ConnectedComponent> components = segmenter.segment(image);
-    MBFImage renderedSegments = new MBFImage(image.getWidth(), image.getHeight());
-    
-    // Render transulucent layer displaying segments
-    SegmentationUtilities.renderSegments(renderedSegments, components);
-    renderedSegments.multiplyInplace(0.2f);
-    // Add segment layer to image
-    image.addInplace(renderedSegments);
-    
+    // Segment in parallel tiles and blend the segment colours straight into the image
+    TiledFHSegmenter segmenter = new TiledFHSegmenter(0.5f, 500f / 255f, minArea);
+    TiledFHSegmenter.Segmentation segmentation = segmenter.segment(image);
+    SegmentOverlay.blendInplace(image, segmentation, 0.2f, new Random());
+
+    // !!! FelzenszwalbHuttenlocherSegmenter Method (single thread, full size temporary image)
+    // FelzenszwalbHuttenlocherSegmenter<MBFImage> segmenter = new FelzenszwalbHuttenlocherSegmenter<>(0.5f, 500f / 255f, minArea);
+    // List<ConnectedComponent> components = segmenter.segment(image);
+    // MBFImage renderedSegments = new MBFImage(image.getWidth(), image.getHeight());
+    // SegmentationUtilities.renderSegments(renderedSegments, components);
+    // renderedSegments.multiplyInplace(0.2f);
+    // image.addInplace(renderedSegments);
+
     return image;
   }
   
@@ -0,0 +1,138 @@
+package uk.ac.soton.ecs.dsj.ch3;
+
+import org.openimaj.image.MBFImage;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+import org.openimaj.util.parallel.Parallel.IntRange;
+
+/**
+ * Primitive replacement for running a K-means {@code HardAssigner} through a
+ * {@code PixelProcessor<Float[]>}. Pixels are read straight from the band arrays and overwritten
+ * with their nearest centroid, so no per-pixel arrays are created or boxed. Rows are split across
+ * the available cores.
+ */
+public final class CentroidAssigner {
+
+  private CentroidAssigner() {}
+
+  /**
+   * Replace every pixel with its nearest centroid (squared Euclidean distance), processing rows in
+   * parallel.
+   *
+   * @param image Image to process in place, must have one band per centroid dimension
+   * @param centroids Centroids to assign to, as produced by {@code FloatCentroidsResult}
+   * @return Reference to the input image
+   */
+  public static MBFImage assignInplace(MBFImage image, float[][] centroids) {
+    return assignInplace(image, centroids, true);
+  }
+
+  /**
+   * Replace every pixel with its nearest centroid (squared Euclidean distance).
+   *
+   * @param image Image to process in place, must have one band per centroid dimension
+   * @param centroids Centroids to assign to, as produced by {@code FloatCentroidsResult}
+   * @param parallel Whether to split rows across the available cores
+   * @return Reference to the input image
+   */
+  public static MBFImage assignInplace(MBFImage image, final float[][] centroids,
+      boolean parallel) {
+    final float[][][] bands = bandPixels(image, centroids);
+    if (parallel) {
+      Parallel.forRange(0, image.getHeight(), 1, new Operation<IntRange>() {
+        @Override
+        public void perform(IntRange range) {
+          assignRows(bands, centroids, range.start, range.stop);
+        }
+      });
+    } else {
+      assignRows(bands, centroids, 0, image.getHeight());
+    }
+    return image;
+  }
+
+  private static float[][][] bandPixels(MBFImage image, float[][] centroids) {
+    int numBands = image.numBands();
+    for (float[] centroid : centroids) {
+      if (centroid.length != numBands) {
+        throw new IllegalArgumentException(
+            "Centroid dimensions (" + centroid.length + ") do not match bands (" + numBands + ")");
+      }
+    }
+    float[][][] bands = new float[numBands][][];
+    for (int b = 0; b < numBands; b++) {
+      bands[b] = image.getBand(b).pixels;
+    }
+    return bands;
+  }
+
+  private static void assignRows(float[][][] bands, float[][] centroids, int startRow,
+      int endRow) {
+    if (bands.length == 3) {
+      assignRows3(bands[0], bands[1], bands[2], centroids, startRow, endRow);
+      return;
+    }
+    for (int y = startRow; y < endRow; y++) {
+      int width = bands[0][y].length;
+      for (int x = 0; x < width; x++) {
+        float[] centroid = centroids[nearest(bands, centroids, y, x)];
+        for (int b = 0; b < bands.length; b++) {
+          bands[b][y][x] = centroid[b];
+        }
+      }
+    }
+  }
+
+  /**
+   * Specialisation for the common three band (e.g. Lab) case, keeping the pixel in locals.
+   */
+  private static void assignRows3(float[][] band0, float[][] band1, float[][] band2,
+      float[][] centroids, int startRow, int endRow) {
+    for (int y = startRow; y < endRow; y++) {
+      float[] row0 = band0[y];
+      float[] row1 = band1[y];
+      float[] row2 = band2[y];
+      for (int x = 0; x < row0.length; x++) {
+        float p0 = row0[x];
+        float p1 = row1[x];
+        float p2 = row2[x];
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int k = 0; k < centroids.length; k++) {
+          float[] centroid = centroids[k];
+          float d0 = p0 - centroid[0];
+          float d1 = p1 - centroid[1];
+          float d2 = p2 - centroid[2];
+          float distance = d0 * d0 + d1 * d1 + d2 * d2;
+          if (distance < bestDistance) {
+            bestDistance = distance;
+            best = k;
+          }
+        }
+        float[] centroid = centroids[best];
+        row0[x] = centroid[0];
+        row1[x] = centroid[1];
+        row2[x] = centroid[2];
+      }
+    }
+  }
+
+  private static int nearest(float[][][] bands, float[][] centroids, int y, int x) {
+    int best = 0;
+    float bestDistance = Float.MAX_VALUE;
+    for (int k = 0; k < centroids.length; k++) {
+      float[] centroid = centroids[k];
+      float distance = 0;
+      for (int b = 0; b < bands.length; b++) {
+        float d = bands[b][y][x] - centroid[b];
+        distance += d * d;
+      }
+      if (distance < bestDistance) {
+        bestDistance = distance;
+        best = k;
+      }
+    }
+    return best;
+  }
+
+}
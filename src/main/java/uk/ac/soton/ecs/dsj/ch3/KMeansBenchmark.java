@@ -0,0 +1,92 @@
+package uk.ac.soton.ecs.dsj.ch3;
+
+import java.io.IOException;
+import java.net.URL;
+import org.apache.commons.lang3.ArrayUtils;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.image.processing.resize.ResizeProcessor;
+import org.openimaj.image.processor.PixelProcessor;
+import org.openimaj.ml.clustering.FloatCentroidsResult;
+import org.openimaj.ml.clustering.assignment.HardAssigner;
+import org.openimaj.ml.clustering.kmeans.FloatKMeans;
+import org.openimaj.time.Timer;
+import uk.ac.soton.ecs.dsj.util.ImageCache;
+
+/**
+ * Benchmark comparing the original boxed {@link PixelProcessor} K-means pixel assignment against
+ * {@link CentroidAssigner}. Run with an optional image scale factor as the first argument to test
+ * larger images (e.g. {@code 4} for 16x the pixels).
+ */
+public class KMeansBenchmark {
+  private static final int CLASSES = 5;
+  private static final int RUNS = 5;
+
+  public static void main(String[] args) throws IOException {
+    float scale = args.length > 0 ? Float.parseFloat(args[0]) : 1f;
+    MBFImage image = ImageCache.getDefault()
+        .readMBF(new URL("http://static.openimaj.org/media/tutorial/sinaface.jpg"));
+    if (scale != 1f) {
+      image = image.process(new ResizeProcessor(scale));
+    }
+    MBFImage lab = ColourSpace.convert(image, ColourSpace.CIE_Lab);
+    System.out.println(String.format("Image: %dx%d, K=%d", lab.getWidth(), lab.getHeight(), CLASSES));
+
+    // Cluster once so every method assigns against the same centroids
+    float[][] imageData = lab.getPixelVectorNative(new float[lab.getWidth() * lab.getHeight()][3]);
+    FloatCentroidsResult result = FloatKMeans.createExact(CLASSES).cluster(imageData);
+
+    MBFImage expected = null;
+    for (int run = 0; run < RUNS; run++) {
+      MBFImage working = lab.clone();
+      Timer t = Timer.timer();
+      assignWithPixelProcessor(working, result);
+      System.out.println("PixelProcessor:      " + t.duration() + "ms");
+      expected = working;
+    }
+    for (int run = 0; run < RUNS; run++) {
+      MBFImage working = lab.clone();
+      Timer t = Timer.timer();
+      CentroidAssigner.assignInplace(working, result.centroids, false);
+      System.out.println("Primitive (1 core):  " + t.duration() + "ms" + check(expected, working));
+    }
+    for (int run = 0; run < RUNS; run++) {
+      MBFImage working = lab.clone();
+      Timer t = Timer.timer();
+      CentroidAssigner.assignInplace(working, result.centroids);
+      System.out.println("Primitive (parallel): " + t.duration() + "ms" + check(expected, working));
+    }
+  }
+
+  /**
+   * The original ch3 assignment method, boxing every pixel on the way in and out.
+   */
+  private static void assignWithPixelProcessor(MBFImage image, FloatCentroidsResult result) {
+    final float[][] centroids = result.centroids;
+    final HardAssigner<float[], ?, ?> assigner = result.defaultHardAssigner();
+    image.processInplace(new PixelProcessor<Float[]>() {
+      @Override
+      public Float[] processPixel(Float[] pixel) {
+        float[] primPixel = ArrayUtils.toPrimitive(pixel);
+        primPixel = centroids[assigner.assign(primPixel)];
+        return ArrayUtils.toObject(primPixel);
+      }
+    });
+  }
+
+  private static String check(MBFImage expected, MBFImage actual) {
+    for (int b = 0; b < expected.numBands(); b++) {
+      float[][] e = expected.getBand(b).pixels;
+      float[][] a = actual.getBand(b).pixels;
+      for (int y = 0; y < e.length; y++) {
+        for (int x = 0; x < e[y].length; x++) {
+          if (e[y][x] != a[y][x]) {
+            return " [MISMATCH at " + x + "," + y + "]";
+          }
+        }
+      }
+    }
+    return "";
+  }
+
+}
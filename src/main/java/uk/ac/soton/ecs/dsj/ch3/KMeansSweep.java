@@ -0,0 +1,331 @@
+package uk.ac.soton.ecs.dsj.ch3;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+/**
+ * K-means colour quantisation over a range of K values for a single image.
+ * <p>
+ * Unlike calling {@code doKMeans} once per K, the image is converted to Lab only once and the
+ * centroids are fitted on a pixel subsample. Each K is seeded with the previous K's centroids plus
+ * one new centroid (chosen k-means++ style), so later fits converge in a few iterations. Every
+ * pixel is only visited at the very end when the final images are rendered, optionally for all K
+ * at the same time.
+ */
+public class KMeansSweep {
+  /**
+   * How pixels are chosen for fitting the centroids.
+   */
+  public enum Sampling {
+    /** Pixels drawn uniformly at random (with replacement) from the whole image */
+    RANDOM,
+    /** One random pixel from each cell of a regular grid, guaranteeing spatial coverage */
+    STRATIFIED
+  }
+
+  private static final int DEFAULT_MAX_ITERATIONS = 50;
+  private static final int DIMENSIONS = 3;
+
+  private final int sampleSize;
+  private final Sampling sampling;
+  private final boolean concurrent;
+  private int maxIterations = DEFAULT_MAX_ITERATIONS;
+  private long seed = 0;
+
+  /**
+   * @param sampleSize Approximate number of pixels to fit centroids on, all pixels are used if the
+   *        image is smaller than this
+   * @param sampling How pixels are sampled
+   * @param concurrent Whether to render the final images for each K concurrently
+   */
+  public KMeansSweep(int sampleSize, Sampling sampling, boolean concurrent) {
+    if (sampleSize <= 0) {
+      throw new IllegalArgumentException("Sample size must be positive");
+    }
+    this.sampleSize = sampleSize;
+    this.sampling = sampling;
+    this.concurrent = concurrent;
+  }
+
+  /**
+   * @param maxIterations Maximum Lloyd iterations per K
+   */
+  public void setMaxIterations(int maxIterations) {
+    this.maxIterations = maxIterations;
+  }
+
+  /**
+   * @param seed Seed for sampling and centroid initialisation, making sweeps repeatable
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * Run the full sweep on an RGB image.
+   *
+   * @param image Image to process, this input will not be affected
+   * @param minK Smallest number of classes
+   * @param maxK Largest number of classes
+   * @return RGB images quantised to each K, in increasing order of K
+   */
+  public Map<Integer, MBFImage> sweep(MBFImage image, int minK, int maxK) {
+    MBFImage lab = ColourSpace.convert(image, ColourSpace.CIE_Lab);
+    return render(lab, fitCentroids(lab, minK, maxK));
+  }
+
+  /**
+   * Fit centroids for every K between {@code minK} and {@code maxK} on a subsample of the image.
+   *
+   * @param lab Image in the Lab colour space
+   * @param minK Smallest number of classes
+   * @param maxK Largest number of classes
+   * @return Centroids for each K, in increasing order of K
+   */
+  public Map<Integer, float[][]> fitCentroids(MBFImage lab, int minK, int maxK) {
+    if (minK < 1 || maxK < minK) {
+      throw new IllegalArgumentException("Invalid K range: " + minK + "-" + maxK);
+    }
+    Random random = new Random(seed);
+    float[] samples = sample(lab, random);
+    int numSamples = samples.length / DIMENSIONS;
+    int[] assignments = new int[numSamples];
+    float[] nearestDistances = new float[numSamples];
+
+    Map<Integer, float[][]> centroidsByK = new LinkedHashMap<>();
+    float[][] centroids = new float[0][];
+    for (int k = 1; k <= maxK; k++) {
+      // Warm start from the previous K, adding one centroid
+      float[][] seeded = new float[k][];
+      System.arraycopy(centroids, 0, seeded, 0, centroids.length);
+      seeded[k - 1] = chooseNewCentroid(samples, seeded, k - 1, nearestDistances, random);
+      centroids = seeded;
+      lloyd(samples, centroids, assignments, nearestDistances);
+      if (k >= minK) {
+        centroidsByK.put(k, copy(centroids));
+      }
+    }
+    return centroidsByK;
+  }
+
+  /**
+   * Assign every pixel of the image to its nearest centroid for each set of centroids.
+   *
+   * @param lab Image in the Lab colour space, this input will not be affected
+   * @param centroidsByK Centroids for each K, as returned by
+   *        {@link #fitCentroids(MBFImage, int, int)}
+   * @return RGB images quantised to each K, in the same order as the input
+   */
+  public Map<Integer, MBFImage> render(final MBFImage lab, Map<Integer, float[][]> centroidsByK) {
+    final Integer[] ks = centroidsByK.keySet().toArray(new Integer[0]);
+    final float[][][] centroids = centroidsByK.values().toArray(new float[0][][]);
+    final MBFImage[] rendered = new MBFImage[ks.length];
+    if (concurrent) {
+      // Each K gets its own core, so the assignment itself runs on a single thread
+      Parallel.forIndex(0, ks.length, 1, new Operation<Integer>() {
+        @Override
+        public void perform(Integer i) {
+          rendered[i] = renderSingle(lab, centroids[i], false);
+        }
+      });
+    } else {
+      for (int i = 0; i < ks.length; i++) {
+        rendered[i] = renderSingle(lab, centroids[i], true);
+      }
+    }
+    Map<Integer, MBFImage> images = new LinkedHashMap<>();
+    for (int i = 0; i < ks.length; i++) {
+      images.put(ks[i], rendered[i]);
+    }
+    return Collections.unmodifiableMap(images);
+  }
+
+  private static MBFImage renderSingle(MBFImage lab, float[][] centroids, boolean parallel) {
+    MBFImage working = lab.clone();
+    CentroidAssigner.assignInplace(working, centroids, parallel);
+    return ColourSpace.convert(working, ColourSpace.RGB);
+  }
+
+  /**
+   * @return Sampled pixels packed as [l0, a0, b0, l1, a1, b1, ...]
+   */
+  private float[] sample(MBFImage lab, Random random) {
+    int width = lab.getWidth();
+    int height = lab.getHeight();
+    float[][] b0 = lab.getBand(0).pixels;
+    float[][] b1 = lab.getBand(1).pixels;
+    float[][] b2 = lab.getBand(2).pixels;
+
+    long numPixels = (long) width * height;
+    if (numPixels <= sampleSize) {
+      float[] samples = new float[(int) numPixels * DIMENSIONS];
+      int i = 0;
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          i = put(samples, i, b0[y][x], b1[y][x], b2[y][x]);
+        }
+      }
+      return samples;
+    }
+
+    if (sampling == Sampling.RANDOM) {
+      float[] samples = new float[sampleSize * DIMENSIONS];
+      int i = 0;
+      for (int s = 0; s < sampleSize; s++) {
+        int x = random.nextInt(width);
+        int y = random.nextInt(height);
+        i = put(samples, i, b0[y][x], b1[y][x], b2[y][x]);
+      }
+      return samples;
+    }
+
+    // Square cells sized so that there is roughly one cell per requested sample
+    int cell = Math.max(1, (int) Math.sqrt((double) numPixels / sampleSize));
+    int cellsX = (width + cell - 1) / cell;
+    int cellsY = (height + cell - 1) / cell;
+    float[] samples = new float[cellsX * cellsY * DIMENSIONS];
+    int i = 0;
+    for (int cy = 0; cy < cellsY; cy++) {
+      int y0 = cy * cell;
+      int cellHeight = Math.min(cell, height - y0);
+      for (int cx = 0; cx < cellsX; cx++) {
+        int x0 = cx * cell;
+        int x = x0 + random.nextInt(Math.min(cell, width - x0));
+        int y = y0 + random.nextInt(cellHeight);
+        i = put(samples, i, b0[y][x], b1[y][x], b2[y][x]);
+      }
+    }
+    return samples;
+  }
+
+  private static int put(float[] samples, int i, float v0, float v1, float v2) {
+    samples[i] = v0;
+    samples[i + 1] = v1;
+    samples[i + 2] = v2;
+    return i + DIMENSIONS;
+  }
+
+  /**
+   * Pick a new centroid with probability proportional to the squared distance from the existing
+   * centroids (a single k-means++ step). Also refreshes {@code nearestDistances}.
+   */
+  private static float[] chooseNewCentroid(float[] samples, float[][] centroids, int existing,
+      float[] nearestDistances, Random random) {
+    int numSamples = nearestDistances.length;
+    if (existing == 0) {
+      int pick = random.nextInt(numSamples) * DIMENSIONS;
+      return new float[] {samples[pick], samples[pick + 1], samples[pick + 2]};
+    }
+    double total = 0;
+    for (int s = 0; s < numSamples; s++) {
+      int best = nearest(samples, s * DIMENSIONS, centroids, existing);
+      nearestDistances[s] = distance(samples, s * DIMENSIONS, centroids[best]);
+      total += nearestDistances[s];
+    }
+    int pick = numSamples - 1;
+    if (total > 0) {
+      double target = random.nextDouble() * total;
+      for (int s = 0; s < numSamples; s++) {
+        target -= nearestDistances[s];
+        if (target <= 0) {
+          pick = s;
+          break;
+        }
+      }
+    } else {
+      pick = random.nextInt(numSamples);
+    }
+    int offset = pick * DIMENSIONS;
+    return new float[] {samples[offset], samples[offset + 1], samples[offset + 2]};
+  }
+
+  /**
+   * Standard Lloyd iterations on the sample, starting from (and updating) {@code centroids}.
+   */
+  private void lloyd(float[] samples, float[][] centroids, int[] assignments,
+      float[] nearestDistances) {
+    int k = centroids.length;
+    int numSamples = assignments.length;
+    double[][] sums = new double[k][DIMENSIONS];
+    int[] counts = new int[k];
+
+    for (int iteration = 0; iteration < maxIterations; iteration++) {
+      boolean changed = iteration == 0;
+      for (int j = 0; j < k; j++) {
+        counts[j] = 0;
+        sums[j][0] = sums[j][1] = sums[j][2] = 0;
+      }
+      for (int s = 0; s < numSamples; s++) {
+        int offset = s * DIMENSIONS;
+        int best = nearest(samples, offset, centroids, k);
+        if (assignments[s] != best) {
+          assignments[s] = best;
+          changed = true;
+        }
+        nearestDistances[s] = distance(samples, offset, centroids[best]);
+        counts[best]++;
+        sums[best][0] += samples[offset];
+        sums[best][1] += samples[offset + 1];
+        sums[best][2] += samples[offset + 2];
+      }
+      if (!changed) {
+        return;
+      }
+      for (int j = 0; j < k; j++) {
+        if (counts[j] == 0) {
+          // Empty cluster, move it to the worst represented sample
+          int worst = 0;
+          for (int s = 1; s < numSamples; s++) {
+            if (nearestDistances[s] > nearestDistances[worst]) {
+              worst = s;
+            }
+          }
+          nearestDistances[worst] = 0;
+          int offset = worst * DIMENSIONS;
+          centroids[j][0] = samples[offset];
+          centroids[j][1] = samples[offset + 1];
+          centroids[j][2] = samples[offset + 2];
+        } else {
+          centroids[j][0] = (float) (sums[j][0] / counts[j]);
+          centroids[j][1] = (float) (sums[j][1] / counts[j]);
+          centroids[j][2] = (float) (sums[j][2] / counts[j]);
+        }
+      }
+    }
+  }
+
+  private static int nearest(float[] samples, int offset, float[][] centroids, int k) {
+    int best = 0;
+    float bestDistance = Float.MAX_VALUE;
+    for (int j = 0; j < k; j++) {
+      float distance = distance(samples, offset, centroids[j]);
+      if (distance < bestDistance) {
+        bestDistance = distance;
+        best = j;
+      }
+    }
+    return best;
+  }
+
+  private static float distance(float[] samples, int offset, float[] centroid) {
+    float d0 = samples[offset] - centroid[0];
+    float d1 = samples[offset + 1] - centroid[1];
+    float d2 = samples[offset + 2] - centroid[2];
+    return d0 * d0 + d1 * d1 + d2 * d2;
+  }
+
+  private static float[][] copy(float[][] centroids) {
+    float[][] copy = new float[centroids.length][];
+    for (int i = 0; i < centroids.length; i++) {
+      copy[i] = centroids[i].clone();
+    }
+    return copy;
+  }
+
+}
@@ -0,0 +1,467 @@
+package uk.ac.soton.ecs.dsj.ch3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.openimaj.image.FImage;
+import org.openimaj.image.pixel.ConnectedComponent.ConnectMode;
+import org.openimaj.image.pixel.Pixel;
+import org.openimaj.math.geometry.shape.Rectangle;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+/**
+ * Connected component labeller for regions of identical pixel value, a lightweight alternative to
+ * {@code GreyscaleConnectedComponentLabeler}.
+ * <p>
+ * A single raster scan assigns provisional labels into a primitive int label map, joining
+ * equivalent labels with union-find. Area, centroid and bounding box are accumulated during the
+ * same scan, so regions can be filtered on their statistics without ever building per-pixel sets.
+ * Large images can be split into horizontal strips that are labelled concurrently and then joined
+ * by merging labels across the strip seams.
+ */
+public class RegionLabeller {
+  private final ConnectMode mode;
+
+  /**
+   * Create a labeller using 4-connectivity, matching {@code GreyscaleConnectedComponentLabeler}.
+   */
+  public RegionLabeller() {
+    this(ConnectMode.CONNECT_4);
+  }
+
+  /**
+   * @param mode Pixel connectivity to use when joining pixels into regions
+   */
+  public RegionLabeller(ConnectMode mode) {
+    this.mode = mode;
+  }
+
+  /**
+   * Label the image on the calling thread.
+   *
+   * @param image Image to label, pixels with identical values that touch form a region
+   * @return The labelling result
+   */
+  public Labelling label(FImage image) {
+    return label(image, 1);
+  }
+
+  /**
+   * Label the image using one horizontal strip per available processor.
+   *
+   * @param image Image to label, pixels with identical values that touch form a region
+   * @return The labelling result
+   */
+  public Labelling labelParallel(FImage image) {
+    return label(image, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Label the image by splitting it into horizontal strips that are labelled concurrently.
+   *
+   * @param image Image to label, pixels with identical values that touch form a region
+   * @param numStrips Number of strips to split the image into
+   * @return The labelling result
+   */
+  public Labelling label(final FImage image, int numStrips) {
+    final int width = image.getWidth();
+    final int height = image.getHeight();
+    numStrips = Math.max(1, Math.min(numStrips, height));
+    final int[] stripStarts = new int[numStrips + 1];
+    for (int s = 0; s <= numStrips; s++) {
+      stripStarts[s] = (int) ((long) height * s / numStrips);
+    }
+
+    final int[] labels = new int[width * height];
+    final LabelTable[] tables = new LabelTable[numStrips];
+    if (numStrips == 1) {
+      tables[0] = labelStrip(image.pixels, labels, width, 0, height);
+    } else {
+      Parallel.forIndex(0, numStrips, 1, new Operation<Integer>() {
+        @Override
+        public void perform(Integer s) {
+          tables[s] = labelStrip(image.pixels, labels, width, stripStarts[s], stripStarts[s + 1]);
+        }
+      });
+    }
+
+    // Join the strip tables into one global table, offsetting each strip's labels
+    int[] offsets = new int[numStrips];
+    LabelTable table = tables[0];
+    if (numStrips > 1) {
+      int total = 0;
+      for (int s = 0; s < numStrips; s++) {
+        offsets[s] = total;
+        total += tables[s].size;
+      }
+      table = new LabelTable(total);
+      for (int s = 0; s < numStrips; s++) {
+        table.append(tables[s], offsets[s]);
+      }
+      for (int s = 1; s < numStrips; s++) {
+        mergeSeam(image.pixels, labels, width, stripStarts[s], offsets[s - 1], offsets[s], table);
+      }
+    }
+    return new Labelling(width, height, labels, stripStarts, offsets, table);
+  }
+
+  /**
+   * Single raster scan of rows [startRow, endRow) using labels local to this strip.
+   */
+  private LabelTable labelStrip(float[][] pixels, int[] labels, int width, int startRow,
+      int endRow) {
+    boolean eight = mode == ConnectMode.CONNECT_8;
+    LabelTable table = new LabelTable(Math.max(16, width));
+    for (int y = startRow; y < endRow; y++) {
+      float[] row = pixels[y];
+      float[] above = y > startRow ? pixels[y - 1] : null;
+      int rowOffset = y * width;
+      for (int x = 0; x < width; x++) {
+        float value = row[x];
+        int label = -1;
+        if (x > 0 && row[x - 1] == value) {
+          label = labels[rowOffset + x - 1];
+        }
+        if (above != null) {
+          int aboveOffset = rowOffset - width;
+          label = join(table, label, above[x] == value, labels, aboveOffset + x);
+          if (eight) {
+            label = join(table, label, x > 0 && above[x - 1] == value, labels, aboveOffset + x - 1);
+            label = join(table, label, x < width - 1 && above[x + 1] == value, labels,
+                aboveOffset + x + 1);
+          }
+        }
+        if (label < 0) {
+          label = table.newLabel();
+        }
+        labels[rowOffset + x] = label;
+        table.accumulate(label, x, y);
+      }
+    }
+    return table;
+  }
+
+  private static int join(LabelTable table, int label, boolean matches, int[] labels, int index) {
+    if (!matches) {
+      return label;
+    }
+    int neighbour = labels[index];
+    if (label < 0) {
+      return neighbour;
+    }
+    table.union(label, neighbour);
+    return label;
+  }
+
+  /**
+   * Union labels of matching pixels either side of the seam above {@code row}.
+   */
+  private void mergeSeam(float[][] pixels, int[] labels, int width, int row, int aboveOffset,
+      int belowOffset, LabelTable table) {
+    boolean eight = mode == ConnectMode.CONNECT_8;
+    float[] above = pixels[row - 1];
+    float[] below = pixels[row];
+    int aboveIndex = (row - 1) * width;
+    int belowIndex = row * width;
+    for (int x = 0; x < width; x++) {
+      float value = below[x];
+      int label = labels[belowIndex + x] + belowOffset;
+      if (above[x] == value) {
+        table.union(label, labels[aboveIndex + x] + aboveOffset);
+      }
+      if (eight) {
+        if (x > 0 && above[x - 1] == value) {
+          table.union(label, labels[aboveIndex + x - 1] + aboveOffset);
+        }
+        if (x < width - 1 && above[x + 1] == value) {
+          table.union(label, labels[aboveIndex + x + 1] + aboveOffset);
+        }
+      }
+    }
+  }
+
+  /**
+   * Result of labelling an image. Region statistics are available immediately, the dense label
+   * map is only resolved if requested.
+   */
+  public static class Labelling {
+    private final int width;
+    private final int height;
+    private final int[] provisional;
+    private final int[] stripStarts;
+    private final int[] offsets;
+    private final LabelTable table;
+    private final int[] regionIds;
+    private final int numRegions;
+    private int[] labelMap;
+
+    Labelling(int width, int height, int[] provisional, int[] stripStarts, int[] offsets,
+        LabelTable table) {
+      this.width = width;
+      this.height = height;
+      this.provisional = provisional;
+      this.stripStarts = stripStarts;
+      this.offsets = offsets;
+      this.table = table;
+
+      // Fold the statistics of every label into its root. Roots are the lowest label of each
+      // region so numbering follows the raster order in which regions are first seen.
+      table.collapse();
+      regionIds = new int[table.size];
+      int count = 0;
+      for (int l = 0; l < table.size; l++) {
+        regionIds[l] = table.parent[l] == l ? count++ : -1;
+      }
+      numRegions = count;
+    }
+
+    /**
+     * @return The number of distinct regions
+     */
+    public int getNumRegions() {
+      return numRegions;
+    }
+
+    /**
+     * @return All regions in raster order of their first pixel
+     */
+    public List<Region> getRegions() {
+      return getRegions(0);
+    }
+
+    /**
+     * @param minArea Minimum area (in pixels) of the regions to return
+     * @return Regions satisfying the area constraint, in raster order of their first pixel
+     */
+    public List<Region> getRegions(int minArea) {
+      List<Region> regions = new ArrayList<>();
+      for (int l = 0; l < table.size; l++) {
+        if (table.parent[l] == l && table.area[l] >= minArea) {
+          regions.add(new Region(regionIds[l], table.area[l], table.sumX[l], table.sumY[l],
+              table.minX[l], table.minY[l], table.maxX[l], table.maxY[l]));
+        }
+      }
+      return regions;
+    }
+
+    /**
+     * @return Row-major map of region ids (as returned by {@link Region#getId()}) for every pixel
+     */
+    public synchronized int[] getLabelMap() {
+      if (labelMap == null) {
+        int[] map = new int[width * height];
+        for (int s = 0; s < offsets.length; s++) {
+          int offset = offsets[s];
+          for (int i = stripStarts[s] * width; i < stripStarts[s + 1] * width; i++) {
+            map[i] = regionIds[table.parent[provisional[i] + offset]];
+          }
+        }
+        labelMap = map;
+      }
+      return labelMap;
+    }
+
+    /**
+     * @return Width of the labelled image
+     */
+    public int getWidth() {
+      return width;
+    }
+
+    /**
+     * @return Height of the labelled image
+     */
+    public int getHeight() {
+      return height;
+    }
+  }
+
+  /**
+   * Statistics of a single labelled region.
+   */
+  public static class Region {
+    private final int id;
+    private final int area;
+    private final double centroidX;
+    private final double centroidY;
+    private final int minX;
+    private final int minY;
+    private final int maxX;
+    private final int maxY;
+
+    Region(int id, int area, long sumX, long sumY, int minX, int minY, int maxX, int maxY) {
+      this.id = id;
+      this.area = area;
+      this.centroidX = (double) sumX / area;
+      this.centroidY = (double) sumY / area;
+      this.minX = minX;
+      this.minY = minY;
+      this.maxX = maxX;
+      this.maxY = maxY;
+    }
+
+    /**
+     * @return Region id, as used in {@link Labelling#getLabelMap()}
+     */
+    public int getId() {
+      return id;
+    }
+
+    /**
+     * @return Number of pixels in the region
+     */
+    public int getArea() {
+      return area;
+    }
+
+    /**
+     * @return Centroid as {x, y}
+     */
+    public double[] getCentroid() {
+      return new double[] {centroidX, centroidY};
+    }
+
+    /**
+     * @return Centroid rounded to the nearest pixel, as {@code ConnectedComponent} does
+     */
+    public Pixel getCentroidPixel() {
+      return new Pixel((int) Math.round(centroidX), (int) Math.round(centroidY));
+    }
+
+    /**
+     * @return Bounding box of the region (inclusive of its edge pixels)
+     */
+    public Rectangle getBounds() {
+      return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+  }
+
+  /**
+   * Growable union-find table holding the running statistics of each provisional label.
+   */
+  static class LabelTable {
+    int size;
+    int[] parent;
+    int[] area;
+    long[] sumX;
+    long[] sumY;
+    int[] minX;
+    int[] minY;
+    int[] maxX;
+    int[] maxY;
+
+    LabelTable(int capacity) {
+      parent = new int[capacity];
+      area = new int[capacity];
+      sumX = new long[capacity];
+      sumY = new long[capacity];
+      minX = new int[capacity];
+      minY = new int[capacity];
+      maxX = new int[capacity];
+      maxY = new int[capacity];
+    }
+
+    int newLabel() {
+      if (size == parent.length) {
+        int capacity = parent.length * 2;
+        parent = Arrays.copyOf(parent, capacity);
+        area = Arrays.copyOf(area, capacity);
+        sumX = Arrays.copyOf(sumX, capacity);
+        sumY = Arrays.copyOf(sumY, capacity);
+        minX = Arrays.copyOf(minX, capacity);
+        minY = Arrays.copyOf(minY, capacity);
+        maxX = Arrays.copyOf(maxX, capacity);
+        maxY = Arrays.copyOf(maxY, capacity);
+      }
+      int label = size++;
+      parent[label] = label;
+      minX[label] = Integer.MAX_VALUE;
+      minY[label] = Integer.MAX_VALUE;
+      maxX[label] = Integer.MIN_VALUE;
+      maxY[label] = Integer.MIN_VALUE;
+      return label;
+    }
+
+    void accumulate(int label, int x, int y) {
+      area[label]++;
+      sumX[label] += x;
+      sumY[label] += y;
+      if (x < minX[label]) {
+        minX[label] = x;
+      }
+      if (x > maxX[label]) {
+        maxX[label] = x;
+      }
+      if (y < minY[label]) {
+        minY[label] = y;
+      }
+      if (y > maxY[label]) {
+        maxY[label] = y;
+      }
+    }
+
+    /**
+     * Copy another table's labels and statistics in, offsetting its labels.
+     */
+    void append(LabelTable other, int offset) {
+      for (int l = 0; l < other.size; l++) {
+        int label = offset + l;
+        parent[label] = other.parent[l] + offset;
+        area[label] = other.area[l];
+        sumX[label] = other.sumX[l];
+        sumY[label] = other.sumY[l];
+        minX[label] = other.minX[l];
+        minY[label] = other.minY[l];
+        maxX[label] = other.maxX[l];
+        maxY[label] = other.maxY[l];
+      }
+      size = Math.max(size, offset + other.size);
+    }
+
+    int find(int label) {
+      int root = label;
+      while (parent[root] != root) {
+        root = parent[root];
+      }
+      // Path compression
+      while (parent[label] != root) {
+        int next = parent[label];
+        parent[label] = root;
+        label = next;
+      }
+      return root;
+    }
+
+    void union(int a, int b) {
+      int rootA = find(a);
+      int rootB = find(b);
+      if (rootA < rootB) {
+        parent[rootB] = rootA;
+      } else if (rootB < rootA) {
+        parent[rootA] = rootB;
+      }
+    }
+
+    /**
+     * Point every label directly at its root and move all statistics onto the roots.
+     */
+    void collapse() {
+      for (int l = 0; l < size; l++) {
+        int root = find(l);
+        if (root == l) {
+          continue;
+        }
+        area[root] += area[l];
+        sumX[root] += sumX[l];
+        sumY[root] += sumY[l];
+        minX[root] = Math.min(minX[root], minX[l]);
+        minY[root] = Math.min(minY[root], minY[l]);
+        maxX[root] = Math.max(maxX[root], maxX[l]);
+        maxY[root] = Math.max(maxY[root], maxY[l]);
+        area[l] = 0;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,67 @@
+package uk.ac.soton.ecs.dsj.ch3;
+
+import java.util.Random;
+import org.openimaj.image.MBFImage;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+import org.openimaj.util.parallel.Parallel.IntRange;
+import uk.ac.soton.ecs.dsj.ch3.TiledFHSegmenter.Segmentation;
+
+/**
+ * Renders a translucent random colour per segment straight into an image. Replaces rendering every
+ * segment into a full size temporary image, scaling it and adding it back, with a single blend
+ * pass that touches each pixel once.
+ */
+public final class SegmentOverlay {
+
+  private SegmentOverlay() {}
+
+  /**
+   * Alpha-blend a random colour for each segment over the image.
+   *
+   * @param image Image to draw on, must be the same size as the segmentation
+   * @param segmentation Segment labels for every pixel
+   * @param alpha Opacity of the segment colours (0 leaves the image unchanged, 1 replaces it)
+   * @param random Source of the segment colours
+   * @return Reference to the input image
+   */
+  public static MBFImage blendInplace(MBFImage image, Segmentation segmentation, float alpha,
+      Random random) {
+    if (image.getWidth() != segmentation.getWidth()
+        || image.getHeight() != segmentation.getHeight()) {
+      throw new IllegalArgumentException("Image and segmentation sizes differ");
+    }
+    final int numBands = image.numBands();
+    // Pre-multiply the colours so the blend is a single multiply-add per band
+    final float[][] colours = new float[segmentation.getNumSegments()][numBands];
+    for (float[] colour : colours) {
+      for (int b = 0; b < numBands; b++) {
+        colour[b] = random.nextFloat() * alpha;
+      }
+    }
+    final float keep = 1 - alpha;
+    final int width = image.getWidth();
+    final int[] labels = segmentation.getLabels();
+    final float[][][] bands = new float[numBands][][];
+    for (int b = 0; b < numBands; b++) {
+      bands[b] = image.getBand(b).pixels;
+    }
+
+    Parallel.forRange(0, image.getHeight(), 1, new Operation<IntRange>() {
+      @Override
+      public void perform(IntRange range) {
+        for (int y = range.start; y < range.stop; y++) {
+          int offset = y * width;
+          for (int b = 0; b < numBands; b++) {
+            float[] row = bands[b][y];
+            for (int x = 0; x < width; x++) {
+              row[x] = row[x] * keep + colours[labels[offset + x]][b];
+            }
+          }
+        }
+      }
+    });
+    return image;
+  }
+
+}
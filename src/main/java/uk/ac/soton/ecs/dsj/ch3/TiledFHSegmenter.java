@@ -0,0 +1,348 @@
+package uk.ac.soton.ecs.dsj.ch3;
+
+import java.util.Arrays;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.processing.convolution.FGaussianConvolve;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+/**
+ * Felzenszwalb-Huttenlocher graph based segmentation that builds and merges the pixel graph in
+ * parallel tiles, an alternative to {@code FelzenszwalbHuttenlocherSegmenter}.
+ * <p>
+ * The image is split into horizontal tiles. Each tile builds the same 8-neighbour edge graph as the
+ * OpenIMAJ segmenter (packed into a primitive {@code long} per edge), sorts it and runs the
+ * Felzenszwalb-Huttenlocher merge criterion over its own pixels concurrently with the other tiles.
+ * Edges crossing a tile boundary are then sorted and merged with the same criterion, before the
+ * usual minimum-size post-processing visits every edge in globally sorted order. Results closely
+ * match, but are not identical to, the single threaded segmenter because seam edges are considered
+ * after the tile interiors.
+ */
+public class TiledFHSegmenter {
+  // Edge directions from a pixel: right, down, down-right, up-right
+  private static final int[] DX = {1, 0, 1, 1};
+  private static final int[] DY = {0, 1, 1, -1};
+  private static final int DIRECTIONS = 4;
+
+  private final float sigma;
+  private final float k;
+  private final int minSize;
+  private int numTiles = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Construct with the same parameters as {@code FelzenszwalbHuttenlocherSegmenter}.
+   *
+   * @param sigma Amount of Gaussian blurring applied before segmentation
+   * @param k Threshold for the merge criterion, larger values give larger segments
+   * @param minSize Minimum segment size (in pixels) enforced by post-processing
+   */
+  public TiledFHSegmenter(float sigma, float k, int minSize) {
+    this.sigma = sigma;
+    this.k = k;
+    this.minSize = minSize;
+  }
+
+  /**
+   * @param numTiles Number of horizontal tiles to process concurrently (defaults to the number of
+   *        available processors)
+   */
+  public void setNumTiles(int numTiles) {
+    this.numTiles = Math.max(1, numTiles);
+  }
+
+  /**
+   * Segment the given image.
+   *
+   * @param image Image to segment, this input will not be affected
+   * @return The segmentation
+   */
+  public Segmentation segment(MBFImage image) {
+    final int width = image.getWidth();
+    final int height = image.getHeight();
+    final int numPixels = width * height;
+    if ((long) numPixels * DIRECTIONS > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Image too large to segment: " + width + "x" + height);
+    }
+
+    // Smooth each band on its own thread
+    final MBFImage smooth = image.clone();
+    Parallel.forIndex(0, smooth.numBands(), 1, new Operation<Integer>() {
+      @Override
+      public void perform(Integer b) {
+        smooth.getBand(b).processInplace(new FGaussianConvolve(sigma));
+      }
+    });
+    final float[][][] bands = new float[smooth.numBands()][][];
+    for (int b = 0; b < bands.length; b++) {
+      bands[b] = smooth.getBand(b).pixels;
+    }
+
+    final int tiles = Math.max(1, Math.min(numTiles, height));
+    final int[] tileStarts = new int[tiles + 1];
+    for (int t = 0; t <= tiles; t++) {
+      tileStarts[t] = (int) ((long) height * t / tiles);
+    }
+
+    final Forest forest = new Forest(width, numPixels, k);
+    final long[][] tileEdges = new long[tiles][];
+    final long[][] seamEdges = new long[tiles][];
+    Parallel.forIndex(0, tiles, 1, new Operation<Integer>() {
+      @Override
+      public void perform(Integer t) {
+        EdgeList internal = new EdgeList(width * (tileStarts[t + 1] - tileStarts[t]) * DIRECTIONS);
+        EdgeList seam = new EdgeList(width * 3);
+        buildEdges(bands, width, height, tileStarts[t], tileStarts[t + 1], internal, seam);
+        long[] edges = internal.toSortedArray();
+        // Tiles only touch their own pixels so can share the forest without locking
+        forest.merge(edges);
+        tileEdges[t] = edges;
+        seamEdges[t] = seam.toSortedArray();
+      }
+    });
+
+    // Boundary merge: join the tiles along their seams using the same criterion
+    long[] seams = concatenate(seamEdges);
+    Arrays.sort(seams);
+    forest.merge(seams);
+
+    // Enforce the minimum segment size, visiting all edges in sorted order
+    long[][] lists = Arrays.copyOf(tileEdges, tiles + 1);
+    lists[tiles] = seams;
+    int[] cursors = new int[lists.length];
+    while (true) {
+      int best = -1;
+      for (int l = 0; l < lists.length; l++) {
+        if (cursors[l] < lists[l].length
+            && (best < 0 || lists[l][cursors[l]] < lists[best][cursors[best]])) {
+          best = l;
+        }
+      }
+      if (best < 0) {
+        break;
+      }
+      int edge = (int) lists[best][cursors[best]++];
+      int a = forest.find(edge / DIRECTIONS);
+      int b = forest.find(target(edge, width));
+      if (a != b && (forest.size[a] < minSize || forest.size[b] < minSize)) {
+        forest.union(a, b);
+      }
+    }
+
+    return forest.toSegmentation(height);
+  }
+
+  /**
+   * Build the edges leaving every pixel in rows [startRow, endRow), separating those which stay
+   * inside the tile from those which cross into a neighbouring tile.
+   */
+  private static void buildEdges(float[][][] bands, int width, int height, int startRow,
+      int endRow, EdgeList internal, EdgeList seam) {
+    for (int y = startRow; y < endRow; y++) {
+      for (int x = 0; x < width; x++) {
+        int pixel = y * width + x;
+        for (int d = 0; d < DIRECTIONS; d++) {
+          int tx = x + DX[d];
+          int ty = y + DY[d];
+          if (tx >= width || ty < 0 || ty >= height) {
+            continue;
+          }
+          float sum = 0;
+          for (float[][] band : bands) {
+            float diff = band[y][x] - band[ty][tx];
+            sum += diff * diff;
+          }
+          long key = pack((float) Math.sqrt(sum), pixel * DIRECTIONS + d);
+          if (ty < startRow || ty >= endRow) {
+            seam.add(key);
+          } else {
+            internal.add(key);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Pack an edge into a single long that sorts by weight. Weights are non-negative so their IEEE
+   * bit patterns order the same way as their values.
+   */
+  private static long pack(float weight, int edge) {
+    return ((long) Float.floatToIntBits(weight) << 32) | edge;
+  }
+
+  private static float weight(long key) {
+    return Float.intBitsToFloat((int) (key >>> 32));
+  }
+
+  private static int target(int edge, int width) {
+    int pixel = edge / DIRECTIONS;
+    int d = edge % DIRECTIONS;
+    return pixel + DY[d] * width + DX[d];
+  }
+
+  private static long[] concatenate(long[][] arrays) {
+    int total = 0;
+    for (long[] array : arrays) {
+      total += array.length;
+    }
+    long[] out = new long[total];
+    int offset = 0;
+    for (long[] array : arrays) {
+      System.arraycopy(array, 0, out, offset, array.length);
+      offset += array.length;
+    }
+    return out;
+  }
+
+  /**
+   * Growable primitive list of packed edges.
+   */
+  private static class EdgeList {
+    private long[] keys;
+    private int size;
+
+    EdgeList(int capacity) {
+      keys = new long[Math.max(16, capacity)];
+    }
+
+    void add(long key) {
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, keys.length * 2);
+      }
+      keys[size++] = key;
+    }
+
+    long[] toSortedArray() {
+      long[] out = keys.length == size ? keys : Arrays.copyOf(keys, size);
+      keys = null;
+      Arrays.sort(out);
+      return out;
+    }
+  }
+
+  /**
+   * Disjoint set forest over pixel indices, tracking the size and merge threshold of each set.
+   */
+  private static class Forest {
+    private final int[] parent;
+    private final int[] size;
+    private final float[] threshold;
+    private final int width;
+    private final float k;
+
+    Forest(int width, int numPixels, float k) {
+      this.width = width;
+      this.k = k;
+      parent = new int[numPixels];
+      size = new int[numPixels];
+      threshold = new float[numPixels];
+      for (int i = 0; i < numPixels; i++) {
+        parent[i] = i;
+        size[i] = 1;
+        threshold[i] = k;
+      }
+    }
+
+    int find(int i) {
+      int root = i;
+      while (parent[root] != root) {
+        root = parent[root];
+      }
+      while (parent[i] != root) {
+        int next = parent[i];
+        parent[i] = root;
+        i = next;
+      }
+      return root;
+    }
+
+    int union(int a, int b) {
+      if (size[a] < size[b]) {
+        int tmp = a;
+        a = b;
+        b = tmp;
+      }
+      parent[b] = a;
+      size[a] += size[b];
+      return a;
+    }
+
+    /**
+     * Apply the Felzenszwalb-Huttenlocher merge criterion to edges in sorted order.
+     */
+    void merge(long[] edges) {
+      for (long key : edges) {
+        float w = weight(key);
+        int edge = (int) key;
+        int a = find(edge / DIRECTIONS);
+        int b = find(target(edge, width));
+        if (a != b && w <= threshold[a] && w <= threshold[b]) {
+          int root = union(a, b);
+          threshold[root] = w + k / size[root];
+        }
+      }
+    }
+
+    Segmentation toSegmentation(int height) {
+      int numPixels = parent.length;
+      int[] ids = new int[numPixels];
+      Arrays.fill(ids, -1);
+      int[] labels = new int[numPixels];
+      int count = 0;
+      for (int i = 0; i < numPixels; i++) {
+        int root = find(i);
+        if (ids[root] < 0) {
+          ids[root] = count++;
+        }
+        labels[i] = ids[root];
+      }
+      return new Segmentation(width, height, labels, count);
+    }
+  }
+
+  /**
+   * Result of a segmentation: a dense row-major map of segment ids.
+   */
+  public static class Segmentation {
+    private final int width;
+    private final int height;
+    private final int[] labels;
+    private final int numSegments;
+
+    Segmentation(int width, int height, int[] labels, int numSegments) {
+      this.width = width;
+      this.height = height;
+      this.labels = labels;
+      this.numSegments = numSegments;
+    }
+
+    /**
+     * @return Row-major segment id (0 to {@link #getNumSegments()} - 1) of every pixel
+     */
+    public int[] getLabels() {
+      return labels;
+    }
+
+    /**
+     * @return Number of segments found
+     */
+    public int getNumSegments() {
+      return numSegments;
+    }
+
+    /**
+     * @return Width of the segmented image
+     */
+    public int getWidth() {
+      return width;
+    }
+
+    /**
+     * @return Height of the segmented image
+     */
+    public int getHeight() {
+      return height;
+    }
+  }
+
+}
@@ -3,13 +3,11 @@ package uk.ac.soton.ecs.dsj.ch4;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import org.openimaj.feature.DoubleFVComparison;
 import org.openimaj.image.DisplayUtilities;
-import org.openimaj.image.ImageUtilities;
-import org.openimaj.image.pixel.statistics.HistogramModel;
 import org.openimaj.math.statistics.distribution.MultidimensionalHistogram;
+import uk.ac.soton.ecs.dsj.util.ImageCache;
 
 /**
  * Test application for OpenIMAJ-Tutorial Chapter 4 exercises.
@@ -30,17 +28,27 @@ public class App {
       return;
     }
 
-    // Create histograms for each image (with 64 bins)
-    List<MultidimensionalHistogram> histograms = new ArrayList<MultidimensionalHistogram>();
-    HistogramModel model = new HistogramModel(4, 4, 4);
-    for (URL u : imageURLs) {
-      try {
-        model.estimateModel(ImageUtilities.readMBF(u));
-      } catch (IOException e) {
-        e.printStackTrace();
-        return;
-      }
-      histograms.add(model.histogram.clone());
+    // Create histograms for each image (with 64 bins), binning pixels as the images are decoded
+    // (images are fetched once, then decoded from the image cache on later runs)
+    List<MultidimensionalHistogram> histograms;
+    try {
+      histograms = new StreamingHistogramEstimator(4, 4, 4).estimate(Arrays.asList(imageURLs));
+    } catch (IOException e) {
+      e.printStackTrace();
+      return;
+    }
+    // !!! Alternative method - decode each image fully into an MBFImage first
+    // List<MultidimensionalHistogram> histograms = new ArrayList<MultidimensionalHistogram>();
+    // HistogramModel model = new HistogramModel(4, 4, 4);
+    // for (URL u : imageURLs) {
+    // model.estimateModel(ImageUtilities.readMBF(u));
+    // histograms.add(model.histogram.clone());
+    // }
+
+    // Pack the histograms into an index for comparison
+    HistogramIndex index = new HistogramIndex(4 * 4 * 4);
+    for (MultidimensionalHistogram histogram : histograms) {
+      index.add(histogram);
     }
 
     // A score of 1 is the most different an image can be
@@ -51,9 +59,15 @@ public class App {
     // Calculate the distances
     for (int i = 0; i < histograms.size(); i++) {
       for (int j = i; j < histograms.size(); j++) {
-        double euclidean = histograms.get(i).compare(histograms.get(j), DoubleFVComparison.EUCLIDEAN);
-        double intersection = histograms.get(i).compare(histograms.get(j), DoubleFVComparison.INTERSECTION);
-        double other = histograms.get(i).compare(histograms.get(j), DoubleFVComparison.COSINE_SIM);
+        // All three measures are computed in one pass over the packed histograms
+        HistogramIndex.Similarity similarity = index.compare(i, j);
+        double euclidean = similarity.euclidean;
+        double intersection = similarity.intersection;
+        double other = similarity.cosine;
+        // !!! Alternative method - three separate passes per pair
+        // double euclidean = histograms.get(i).compare(histograms.get(j), DoubleFVComparison.EUCLIDEAN);
+        // double intersection = histograms.get(i).compare(histograms.get(j), DoubleFVComparison.INTERSECTION);
+        // double other = histograms.get(i).compare(histograms.get(j), DoubleFVComparison.COSINE_SIM);
         System.out.println(String.format("H%d-H%d [E: %f, I: %f, O: %f]", i, j, euclidean, intersection, other));
         // Use euclidean for finding differences (ignore if identical)
         if (euclidean != 0 && euclidean < score) {
@@ -69,10 +83,11 @@ public class App {
       System.err.println("No different images found");
     } else {
       System.out.println(String.format("\nSimilar Images: %d & %d\n", idxImg1, idxImg2));
-      // Downloading again here for display but doesn't matter too much
+      // Only the images being displayed are decoded in full, served from the local cache
+      ImageCache cache = ImageCache.getDefault();
       try {
-        DisplayUtilities.displayLinked("Similar Images", 2, ImageUtilities.readMBF(imageURLs[idxImg1]),
-            ImageUtilities.readMBF(imageURLs[idxImg2]));
+        DisplayUtilities.displayLinked("Similar Images", 2, cache.readMBF(imageURLs[idxImg1]),
+            cache.readMBF(imageURLs[idxImg2]));
       } catch (IOException e) {
         e.printStackTrace();
       }
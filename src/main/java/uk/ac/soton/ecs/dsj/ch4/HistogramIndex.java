@@ -0,0 +1,475 @@
+package uk.ac.soton.ecs.dsj.ch4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.openimaj.math.statistics.distribution.MultidimensionalHistogram;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.pair.IntDoublePair;
+import org.openimaj.util.parallel.Parallel;
+import org.openimaj.util.parallel.Parallel.IntRange;
+
+/**
+ * Index of fixed length histograms for similarity search over large image collections.
+ * <p>
+ * Histograms are stored in one packed, row-major {@code double[]} matrix rather than as individual
+ * {@link MultidimensionalHistogram} objects. Pairwise comparisons compute the Euclidean,
+ * intersection and cosine similarity measures (as defined by {@code DoubleFVComparison}) in a single
+ * fused pass. Nearest neighbour queries rank by Euclidean distance, either exactly by a parallel
+ * scan or approximately through a vantage-point tree with a bounded number of distance checks.
+ */
+public class HistogramIndex {
+  private static final int LEAF_SIZE = 8;
+
+  private final int dims;
+  private double[] data;
+  private double[] norms;
+  private int size;
+  private VPTree tree;
+
+  /**
+   * @param dims Number of bins in each histogram
+   */
+  public HistogramIndex(int dims) {
+    this.dims = dims;
+    this.data = new double[dims * 16];
+    this.norms = new double[16];
+  }
+
+  /**
+   * Add a histogram to the index. Invalidates any previously built tree.
+   *
+   * @param histogram Histogram to add
+   * @return Id of the histogram in the index
+   */
+  public int add(MultidimensionalHistogram histogram) {
+    return add(histogram.values);
+  }
+
+  /**
+   * Add a histogram to the index. Invalidates any previously built tree.
+   *
+   * @param histogram Histogram bins to add (copied)
+   * @return Id of the histogram in the index
+   */
+  public synchronized int add(double[] histogram) {
+    if (histogram.length != dims) {
+      throw new IllegalArgumentException(
+          "Expected " + dims + " bins but histogram has " + histogram.length);
+    }
+    if (size == norms.length) {
+      norms = Arrays.copyOf(norms, size * 2);
+      data = Arrays.copyOf(data, size * 2 * dims);
+    }
+    System.arraycopy(histogram, 0, data, size * dims, dims);
+    double norm = 0;
+    for (double v : histogram) {
+      norm += v * v;
+    }
+    norms[size] = Math.sqrt(norm);
+    tree = null;
+    return size++;
+  }
+
+  /**
+   * @return Number of histograms in the index
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Compare two indexed histograms using all three measures in one pass.
+   *
+   * @param i Id of the first histogram
+   * @param j Id of the second histogram
+   * @return The similarity measures
+   */
+  public Similarity compare(int i, int j) {
+    return compare(data, i * dims, norms[i], j);
+  }
+
+  /**
+   * Compare an external histogram to an indexed one using all three measures in one pass.
+   *
+   * @param query Histogram bins
+   * @param j Id of the indexed histogram
+   * @return The similarity measures
+   */
+  public Similarity compare(double[] query, int j) {
+    return compare(query, 0, norm(query), j);
+  }
+
+  private Similarity compare(double[] a, int aOffset, double aNorm, int j) {
+    int bOffset = j * dims;
+    double squared = 0;
+    double intersection = 0;
+    double dot = 0;
+    for (int d = 0; d < dims; d++) {
+      double va = a[aOffset + d];
+      double vb = data[bOffset + d];
+      double diff = va - vb;
+      squared += diff * diff;
+      intersection += Math.min(va, vb);
+      dot += va * vb;
+    }
+    return new Similarity(Math.sqrt(squared), intersection, dot / (aNorm * norms[j]));
+  }
+
+  /**
+   * Exact k nearest neighbours by Euclidean distance, scanning the index in parallel.
+   *
+   * @param query Histogram bins
+   * @param k Number of neighbours to find
+   * @return Pairs of (id, distance) in increasing order of distance
+   */
+  public List<IntDoublePair> nearest(final double[] query, final int k) {
+    final List<TopK> partials = new ArrayList<>();
+    Parallel.forRange(0, size, 1, new Operation<IntRange>() {
+      @Override
+      public void perform(IntRange range) {
+        TopK top = new TopK(k);
+        for (int j = range.start; j < range.stop; j++) {
+          top.offer(j, euclidean(query, j));
+        }
+        synchronized (partials) {
+          partials.add(top);
+        }
+      }
+    });
+    TopK top = new TopK(k);
+    for (TopK partial : partials) {
+      for (int i = 0; i < partial.size; i++) {
+        top.offer(partial.ids[i], partial.distances[i]);
+      }
+    }
+    return top.toList();
+  }
+
+  /**
+   * Exact k nearest neighbours for many queries, answering the queries in parallel.
+   *
+   * @param queries Histogram bins of each query
+   * @param k Number of neighbours to find per query
+   * @return For each query, pairs of (id, distance) in increasing order of distance
+   */
+  public List<List<IntDoublePair>> nearest(final double[][] queries, final int k) {
+    final List<List<IntDoublePair>> results = new ArrayList<>();
+    for (int q = 0; q < queries.length; q++) {
+      results.add(null);
+    }
+    Parallel.forIndex(0, queries.length, 1, new Operation<Integer>() {
+      @Override
+      public void perform(Integer q) {
+        TopK top = new TopK(k);
+        for (int j = 0; j < size; j++) {
+          top.offer(j, euclidean(queries[q], j));
+        }
+        List<IntDoublePair> result = top.toList();
+        synchronized (results) {
+          results.set(q, result);
+        }
+      }
+    });
+    return results;
+  }
+
+  /**
+   * Build (or rebuild) the vantage-point tree used by
+   * {@link #nearestApproximate(double[], int, int)}.
+   *
+   * @param seed Seed used to choose vantage points
+   */
+  public synchronized void buildTree(long seed) {
+    tree = new VPTree(seed);
+  }
+
+  /**
+   * Approximate k nearest neighbours by Euclidean distance using the vantage-point tree. With an
+   * unlimited budget the result is exact, smaller budgets trade recall for speed.
+   *
+   * @param query Histogram bins
+   * @param k Number of neighbours to find
+   * @param maxChecks Maximum number of distance computations, or 0 for no limit
+   * @return Pairs of (id, distance) in increasing order of distance
+   */
+  public List<IntDoublePair> nearestApproximate(double[] query, int k, int maxChecks) {
+    VPTree current;
+    synchronized (this) {
+      if (tree == null) {
+        tree = new VPTree(0);
+      }
+      current = tree;
+    }
+    TopK top = new TopK(k);
+    current.search(query, top, maxChecks > 0 ? maxChecks : Integer.MAX_VALUE);
+    return top.toList();
+  }
+
+  private double euclidean(double[] query, int j) {
+    int offset = j * dims;
+    double sum = 0;
+    for (int d = 0; d < dims; d++) {
+      double diff = query[d] - data[offset + d];
+      sum += diff * diff;
+    }
+    return Math.sqrt(sum);
+  }
+
+  private double euclidean(int i, int j) {
+    int a = i * dims;
+    int b = j * dims;
+    double sum = 0;
+    for (int d = 0; d < dims; d++) {
+      double diff = data[a + d] - data[b + d];
+      sum += diff * diff;
+    }
+    return Math.sqrt(sum);
+  }
+
+  private static double norm(double[] values) {
+    double sum = 0;
+    for (double v : values) {
+      sum += v * v;
+    }
+    return Math.sqrt(sum);
+  }
+
+  /**
+   * The three similarity measures used in the ch4 comparison.
+   */
+  public static class Similarity {
+    /** Euclidean distance, 0 for identical histograms */
+    public final double euclidean;
+    /** Histogram intersection (sum of bin minimums) */
+    public final double intersection;
+    /** Cosine similarity, 1 for histograms with identical direction */
+    public final double cosine;
+
+    Similarity(double euclidean, double intersection, double cosine) {
+      this.euclidean = euclidean;
+      this.intersection = intersection;
+      this.cosine = cosine;
+    }
+  }
+
+  /**
+   * Bounded max-heap keeping the k smallest distances seen.
+   */
+  private static class TopK {
+    final int[] ids;
+    final double[] distances;
+    int size;
+
+    TopK(int k) {
+      ids = new int[k];
+      distances = new double[k];
+    }
+
+    double worst() {
+      return size < ids.length ? Double.POSITIVE_INFINITY : distances[0];
+    }
+
+    void offer(int id, double distance) {
+      if (ids.length == 0) {
+        return;
+      }
+      if (size < ids.length) {
+        int i = size++;
+        while (i > 0 && distances[(i - 1) / 2] < distance) {
+          int parent = (i - 1) / 2;
+          ids[i] = ids[parent];
+          distances[i] = distances[parent];
+          i = parent;
+        }
+        ids[i] = id;
+        distances[i] = distance;
+      } else if (distance < distances[0]) {
+        int i = 0;
+        while (true) {
+          int child = 2 * i + 1;
+          if (child >= size) {
+            break;
+          }
+          if (child + 1 < size && distances[child + 1] > distances[child]) {
+            child++;
+          }
+          if (distances[child] <= distance) {
+            break;
+          }
+          ids[i] = ids[child];
+          distances[i] = distances[child];
+          i = child;
+        }
+        ids[i] = id;
+        distances[i] = distance;
+      }
+    }
+
+    List<IntDoublePair> toList() {
+      List<IntDoublePair> list = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        list.add(new IntDoublePair(ids[i], distances[i]));
+      }
+      Collections.sort(list, IntDoublePair.SECOND_ITEM_ASCENDING_COMPARATOR);
+      return list;
+    }
+  }
+
+  /**
+   * Vantage-point tree over the indexed histograms, stored in flat arrays.
+   */
+  private class VPTree {
+    private final int[] items;
+    private int[] vantage;
+    private double[] radius;
+    private int[] inside;
+    private int[] outside;
+    private int[] leafStart;
+    private int[] leafEnd;
+    private int numNodes;
+    private final int root;
+
+    VPTree(long seed) {
+      items = new int[size];
+      for (int i = 0; i < size; i++) {
+        items[i] = i;
+      }
+      int capacity = Math.max(16, 2 * size / LEAF_SIZE + 1);
+      vantage = new int[capacity];
+      radius = new double[capacity];
+      inside = new int[capacity];
+      outside = new int[capacity];
+      leafStart = new int[capacity];
+      leafEnd = new int[capacity];
+      root = size == 0 ? -1 : build(0, size, new Random(seed), new double[size]);
+    }
+
+    private int newNode() {
+      if (numNodes == vantage.length) {
+        int capacity = numNodes * 2;
+        vantage = Arrays.copyOf(vantage, capacity);
+        radius = Arrays.copyOf(radius, capacity);
+        inside = Arrays.copyOf(inside, capacity);
+        outside = Arrays.copyOf(outside, capacity);
+        leafStart = Arrays.copyOf(leafStart, capacity);
+        leafEnd = Arrays.copyOf(leafEnd, capacity);
+      }
+      int node = numNodes++;
+      vantage[node] = -1;
+      inside[node] = -1;
+      outside[node] = -1;
+      return node;
+    }
+
+    /**
+     * Build a subtree over items[start, end), returning its node.
+     */
+    private int build(int start, int end, Random random, double[] distances) {
+      int node = newNode();
+      if (end - start <= LEAF_SIZE) {
+        leafStart[node] = start;
+        leafEnd[node] = end;
+        return node;
+      }
+      // Move a random vantage point to the front, then split the rest around the median distance
+      swap(start, start + random.nextInt(end - start), distances);
+      int v = items[start];
+      double min = Double.POSITIVE_INFINITY;
+      double max = 0;
+      for (int i = start + 1; i < end; i++) {
+        distances[i] = euclidean(v, items[i]);
+        min = Math.min(min, distances[i]);
+        max = Math.max(max, distances[i]);
+      }
+      if (min == max) {
+        // All points are equidistant, splitting would not make progress
+        leafStart[node] = start;
+        leafEnd[node] = end;
+        return node;
+      }
+      int mid = (start + 1 + end) / 2;
+      select(start + 1, end, mid, distances, random);
+      vantage[node] = v;
+      radius[node] = distances[mid];
+      int left = build(start + 1, mid, random, distances);
+      int right = build(mid, end, random, distances);
+      inside[node] = left;
+      outside[node] = right;
+      return node;
+    }
+
+    /**
+     * Quickselect over items[start, end) so that position {@code nth} holds the item with that
+     * rank by distance, nearer items before it and further items after it.
+     */
+    private void select(int start, int end, int nth, double[] distances, Random random) {
+      int lo = start;
+      int hi = end - 1;
+      while (lo < hi) {
+        swap(lo + random.nextInt(hi - lo + 1), hi, distances);
+        double pivot = distances[hi];
+        int store = lo;
+        for (int i = lo; i < hi; i++) {
+          if (distances[i] < pivot) {
+            swap(i, store++, distances);
+          }
+        }
+        swap(store, hi, distances);
+        if (store == nth) {
+          return;
+        } else if (store < nth) {
+          lo = store + 1;
+        } else {
+          hi = store - 1;
+        }
+      }
+    }
+
+    private void swap(int a, int b, double[] distances) {
+      int item = items[a];
+      items[a] = items[b];
+      items[b] = item;
+      double distance = distances[a];
+      distances[a] = distances[b];
+      distances[b] = distance;
+    }
+
+    void search(double[] query, TopK top, int maxChecks) {
+      if (root >= 0) {
+        search(root, query, top, new int[] {maxChecks});
+      }
+    }
+
+    private void search(int node, double[] query, TopK top, int[] budget) {
+      if (budget[0] <= 0) {
+        return;
+      }
+      if (vantage[node] < 0) {
+        for (int i = leafStart[node]; i < leafEnd[node] && budget[0] > 0; i++) {
+          budget[0]--;
+          top.offer(items[i], euclidean(query, items[i]));
+        }
+        return;
+      }
+      budget[0]--;
+      double d = euclidean(query, vantage[node]);
+      top.offer(vantage[node], d);
+      double mu = radius[node];
+      if (d < mu) {
+        search(inside[node], query, top, budget);
+        if (d + top.worst() >= mu) {
+          search(outside[node], query, top, budget);
+        }
+      } else {
+        search(outside[node], query, top, budget);
+        if (d - top.worst() <= mu) {
+          search(inside[node], query, top, budget);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,297 @@
+package uk.ac.soton.ecs.dsj.ch4;
+
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.math.statistics.distribution.MultidimensionalHistogram;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+import uk.ac.soton.ecs.dsj.util.ImageCache;
+
+/**
+ * Colour histogram estimation straight from encoded images, an alternative to decoding into an
+ * {@code MBFImage} and calling {@code HistogramModel.estimateModel}.
+ * <p>
+ * Each image is decoded in horizontal strips of whole rows (a source region per read) into a packed
+ * {@code int} RGB buffer, 4 bytes per pixel rather than 12, which is binned row by row and reused
+ * for the next strip and the next image decoded on the same thread. Peak memory is bounded by the
+ * strip size regardless of the image size, and the histograms are identical to those of
+ * {@code HistogramModel} with the same bin counts. Readers that cannot start at a row (e.g. JPEG
+ * and PNG) decode the rows above each strip again, so larger strips trade memory for speed.
+ * Subsampling by the decoder is only done when a pixel budget is set, giving an approximate
+ * histogram.
+ */
+public class StreamingHistogramEstimator {
+  /** Default number of pixels decoded per strip */
+  public static final int DEFAULT_STRIP_PIXELS = 4 * 1024 * 1024;
+
+  private final int[] nbins;
+  // Bin offsets for each band indexed by byte value, already multiplied by the band's stride
+  private final int[][] binLUT;
+  private int stripPixels = DEFAULT_STRIP_PIXELS;
+  // No subsampling unless set
+  private int maxPixels = Integer.MAX_VALUE;
+  private ImageCache cache = ImageCache.getDefault();
+
+  private final ThreadLocal<Decoder> decoders = new ThreadLocal<Decoder>() {
+    @Override
+    protected Decoder initialValue() {
+      return new Decoder();
+    }
+  };
+
+  /**
+   * @param nbins Number of bins for each of the red, green and blue bands (1 to 3 bands)
+   */
+  public StreamingHistogramEstimator(int... nbins) {
+    if (nbins.length < 1 || nbins.length > 3) {
+      throw new IllegalArgumentException("Between 1 and 3 bands can be binned");
+    }
+    this.nbins = nbins.clone();
+    // Same binning as HistogramModel: band 0 varies fastest
+    binLUT = new int[nbins.length][256];
+    int stride = 1;
+    for (int b = 0; b < nbins.length; b++) {
+      for (int v = 0; v < 256; v++) {
+        int bin = (int) (ImageUtilities.BYTE_TO_FLOAT_LUT[v] * nbins[b]);
+        binLUT[b][v] = Math.min(bin, nbins[b] - 1) * stride;
+      }
+      stride *= nbins[b];
+    }
+  }
+
+  /**
+   * @param stripPixels Number of pixels to decode at a time, rounded to whole rows (at least one)
+   */
+  public void setStripPixels(int stripPixels) {
+    if (stripPixels <= 0) {
+      throw new IllegalArgumentException("Strip size must be positive");
+    }
+    this.stripPixels = stripPixels;
+  }
+
+  /**
+   * Subsample large images for speed, so their histograms are estimated from a subset of pixels
+   * and no longer match {@code HistogramModel}. Images are not subsampled by default.
+   *
+   * @param maxPixels Maximum number of pixels to decode per image, larger images are subsampled
+   *        evenly in both directions until they fit
+   */
+  public void setMaxPixels(int maxPixels) {
+    if (maxPixels <= 0) {
+      throw new IllegalArgumentException("Pixel budget must be positive");
+    }
+    this.maxPixels = maxPixels;
+  }
+
+  /**
+   * @param cache Cache that images at URLs are fetched through, the default cache by default
+   */
+  public void setCache(ImageCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Estimate the normalised histogram of an image file.
+   *
+   * @param file Encoded image
+   * @return The histogram
+   * @throws IOException If the image cannot be read
+   */
+  public MultidimensionalHistogram estimate(File file) throws IOException {
+    ImageInputStream stream = ImageIO.createImageInputStream(file);
+    if (stream == null) {
+      throw new IOException("Unable to open " + file);
+    }
+    return estimate(stream, file.toString());
+  }
+
+  /**
+   * Estimate the normalised histogram of an image at a URL. Remote images are fetched once into
+   * the {@link ImageCache}, then decoded from the cached file on later runs.
+   *
+   * @param url Location of the encoded image
+   * @return The histogram
+   * @throws IOException If the image cannot be fetched or read
+   */
+  public MultidimensionalHistogram estimate(URL url) throws IOException {
+    return estimate(cache.getEncodedFile(url));
+  }
+
+  /**
+   * Estimate the histograms of many images concurrently.
+   *
+   * @param urls Locations of the encoded images
+   * @return Histograms in the same order as the input
+   * @throws IOException If any image cannot be read
+   */
+  public List<MultidimensionalHistogram> estimate(final List<URL> urls) throws IOException {
+    final MultidimensionalHistogram[] histograms = new MultidimensionalHistogram[urls.size()];
+    final IOException[] failure = new IOException[1];
+    Parallel.forIndex(0, urls.size(), 1, new Operation<Integer>() {
+      @Override
+      public void perform(Integer i) {
+        try {
+          histograms[i] = estimate(urls.get(i));
+        } catch (IOException e) {
+          synchronized (failure) {
+            failure[0] = e;
+          }
+        }
+      }
+    });
+    if (failure[0] != null) {
+      throw failure[0];
+    }
+    return new ArrayList<MultidimensionalHistogram>(Arrays.asList(histograms));
+  }
+
+  private MultidimensionalHistogram estimate(ImageInputStream stream, String name)
+      throws IOException {
+    try {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+      if (!readers.hasNext()) {
+        throw new IOException("No reader available for " + name);
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(stream, true, true);
+        MultidimensionalHistogram histogram = new MultidimensionalHistogram(nbins);
+        decoders.get().accumulate(reader, histogram.values);
+        histogram.normalise();
+        return histogram;
+      } finally {
+        reader.dispose();
+      }
+    } finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * Per-thread decode state, reused between strips and images to avoid reallocating pixel buffers.
+   */
+  private class Decoder {
+    private BufferedImage buffer;
+    private int[] row = new int[0];
+
+    void accumulate(ImageReader reader, double[] values) throws IOException {
+      int width = reader.getWidth(0);
+      int height = reader.getHeight(0);
+      // Decode-time subsampling only when the image is over an explicit pixel budget
+      int step = 1;
+      while ((long) ((width + step - 1) / step) * ((height + step - 1) / step) > maxPixels) {
+        step++;
+      }
+      int decodedWidth = (width + step - 1) / step;
+      // Strips start on a multiple of the step so they join up into the subsampled image
+      int decodedRows = Math.max(1, stripPixels / decodedWidth);
+      int stripHeight = decodedRows * step;
+
+      ImageReadParam param = reader.getDefaultReadParam();
+      param.setSourceSubsampling(step, step, 0, 0);
+      boolean packed = supportsIntRGB(reader);
+      if (packed && (buffer == null || buffer.getWidth() < decodedWidth
+          || buffer.getHeight() < decodedRows)) {
+        buffer = new BufferedImage(decodedWidth, decodedRows, BufferedImage.TYPE_INT_RGB);
+      }
+      for (int y = 0; y < height; y += stripHeight) {
+        param.setSourceRegion(new Rectangle(0, y, width, Math.min(stripHeight, height - y)));
+        if (packed) {
+          accumulatePacked(reader, param, values);
+        } else {
+          accumulateConverted(reader, param, values);
+        }
+      }
+    }
+
+    /**
+     * Decode a strip straight into the reusable packed buffer and bin its rows in place.
+     */
+    private void accumulatePacked(ImageReader reader, ImageReadParam param, double[] values)
+        throws IOException {
+      param.setDestination(buffer);
+      Rectangle region = param.getSourceRegion();
+      int step = param.getSourceXSubsampling();
+      int w = (region.width + step - 1) / step;
+      int h = (region.height + step - 1) / step;
+      reader.read(0, param);
+      int[] pixels = ((DataBufferInt) buffer.getRaster().getDataBuffer()).getData();
+      int stride = buffer.getWidth();
+      for (int y = 0; y < h; y++) {
+        accumulateRow(pixels, y * stride, w, values);
+      }
+    }
+
+    /**
+     * Formats without a packed RGB target (e.g. palette or grey) are converted per row.
+     */
+    private void accumulateConverted(ImageReader reader, ImageReadParam param, double[] values)
+        throws IOException {
+      BufferedImage decoded = reader.read(0, param);
+      int w = decoded.getWidth();
+      if (row.length < w) {
+        row = new int[w];
+      }
+      Raster raster = decoded.getRaster();
+      boolean grey = decoded.getColorModel().getColorSpace().getType() == ColorSpace.TYPE_GRAY
+          && raster.getSampleModel().getSampleSize(0) == 8;
+      for (int y = 0; y < decoded.getHeight(); y++) {
+        if (grey) {
+          // Use the raw grey level for every band (as OpenIMAJ does), getRGB would apply the
+          // grey colour space's gamma conversion
+          raster.getSamples(0, y, w, 1, 0, row);
+          for (int x = 0; x < w; x++) {
+            row[x] = row[x] * 0x010101;
+          }
+        } else {
+          decoded.getRGB(0, y, w, 1, row, 0, w);
+        }
+        accumulateRow(row, 0, w, values);
+      }
+    }
+
+    private void accumulateRow(int[] pixels, int offset, int width, double[] values) {
+      int[] red = binLUT[0];
+      int[] green = binLUT.length > 1 ? binLUT[1] : null;
+      int[] blue = binLUT.length > 2 ? binLUT[2] : null;
+      for (int x = offset; x < offset + width; x++) {
+        int rgb = pixels[x];
+        int bin = red[(rgb >> 16) & 0xff];
+        if (green != null) {
+          bin += green[(rgb >> 8) & 0xff];
+        }
+        if (blue != null) {
+          bin += blue[rgb & 0xff];
+        }
+        values[bin]++;
+      }
+    }
+
+    private boolean supportsIntRGB(ImageReader reader) throws IOException {
+      Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+      while (types.hasNext()) {
+        if (types.next().getBufferedImageType() == BufferedImage.TYPE_INT_RGB) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+}
@@ -1,29 +1,22 @@
 package uk.ac.soton.ecs.dsj.ch5;
 
+import java.io.IOException;
 import java.net.URL;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import javax.swing.JFrame;
 import org.openimaj.feature.local.list.LocalFeatureList;
-import org.openimaj.feature.local.matcher.BasicMatcher;
-import org.openimaj.feature.local.matcher.BasicTwoWayMatcher;
-import org.openimaj.feature.local.matcher.FastBasicKeypointMatcher;
 import org.openimaj.feature.local.matcher.LocalFeatureMatcher;
 import org.openimaj.feature.local.matcher.MatchingUtilities;
-import org.openimaj.feature.local.matcher.VotingKeypointMatcher;
-import org.openimaj.feature.local.matcher.consistent.ConsistentLocalFeatureMatcher2d;
 import org.openimaj.image.DisplayUtilities;
 import org.openimaj.image.Image;
-import org.openimaj.image.ImageUtilities;
 import org.openimaj.image.MBFImage;
 import org.openimaj.image.colour.RGBColour;
-import org.openimaj.image.feature.local.engine.DoGSIFTEngine;
 import org.openimaj.image.feature.local.keypoints.Keypoint;
-import org.openimaj.math.geometry.transforms.HomographyRefinement;
-import org.openimaj.math.geometry.transforms.estimation.RobustAffineTransformEstimator;
-import org.openimaj.math.geometry.transforms.estimation.RobustHomographyEstimator;
-import org.openimaj.math.model.fit.RANSAC;
-import org.openimaj.math.model.fit.RANSAC.StoppingCondition;
+import org.openimaj.math.geometry.point.Point2d;
+import org.openimaj.math.geometry.transforms.MatrixTransformProvider;
+import org.openimaj.math.model.fit.RobustModelFitting;
+import uk.ac.soton.ecs.dsj.util.ImageCache;
 
 /**
  * Test application for OpenIMAJ-Tutorial Chapter 5 exercises.
@@ -32,6 +25,8 @@ import org.openimaj.math.model.fit.RANSAC.StoppingCondition;
  */
 public class App {
   private static final String TEST_WINDOW_ID = "TEST_WINDOW";
+  // Names the extraction settings in the keypoint store, change if the engine options change
+  private static final String SIFT_VARIANT = "dog-sift-default";
 
   public static void main(String[] args) {
     Map<String, Image<?, ?>> images = new LinkedHashMap<>();
@@ -39,10 +34,9 @@ public class App {
     MBFImage query = null;
     MBFImage target = null;
     try {
-      query =
-          ImageUtilities.readMBF(new URL("http://static.openimaj.org/media/tutorial/query.jpg"));
-      target =
-          ImageUtilities.readMBF(new URL("http://static.openimaj.org/media/tutorial/target.jpg"));
+      ImageCache cache = ImageCache.getDefault();
+      query = cache.readMBF(new URL("http://static.openimaj.org/media/tutorial/query.jpg"));
+      target = cache.readMBF(new URL("http://static.openimaj.org/media/tutorial/target.jpg"));
       MBFImage beforeMatching = MatchingUtilities.drawMatches(query, target, null, RGBColour.RED);
       images.put("Before", beforeMatching);
     } catch (Exception e) {
@@ -53,55 +47,71 @@ public class App {
       }
     }
 
-    // Find features
-    DoGSIFTEngine engine = new DoGSIFTEngine();
-    LocalFeatureList<Keypoint> queryKeypoints = engine.findFeatures(query.flatten());
-    LocalFeatureList<Keypoint> targetKeypoints = engine.findFeatures(target.flatten());
-
-    // Basic matching
-    LocalFeatureMatcher<Keypoint> matcher = new BasicMatcher<>(1000);
-    matcher.setModelFeatures(queryKeypoints);
-    matcher.findMatches(targetKeypoints);
-    MBFImage basicMatches =
-        MatchingUtilities.drawMatches(query, target, matcher.getMatches(), RGBColour.RED);
-    images.put("Basic", basicMatches);
-
-    // Basic two way matching
-    matcher = new BasicTwoWayMatcher<>();
-    matcher.setModelFeatures(queryKeypoints);
-    matcher.findMatches(targetKeypoints);
-    MBFImage basicTwoWayMatches =
-        MatchingUtilities.drawMatches(query, target, matcher.getMatches(), RGBColour.RED);
-    images.put("Basic2Way", basicTwoWayMatches);
+    // Find features (extracted once, then read back from the keypoint store on later runs)
+    ParallelDoGSIFTEngine engine = new ParallelDoGSIFTEngine();
+    // !!! Alternative engine (single threaded, same keypoints)
+    // DoGSIFTEngine engine = new DoGSIFTEngine();
+    KeypointStore store = KeypointStore.getDefault();
+    LocalFeatureList<Keypoint> queryKeypoints;
+    LocalFeatureList<Keypoint> targetKeypoints;
+    try {
+      queryKeypoints = store.findFeatures(query.flatten(), engine, SIFT_VARIANT).toList();
+      targetKeypoints = store.findFeatures(target.flatten(), engine, SIFT_VARIANT).toList();
+    } catch (IOException e) {
+      e.printStackTrace();
+      return;
+    }
+    // !!! Alternative method - extract every run
+    // LocalFeatureList<Keypoint> queryKeypoints = engine.findFeatures(query.flatten());
+    // LocalFeatureList<Keypoint> targetKeypoints = engine.findFeatures(target.flatten());
 
-    // Voting keypoint matcher
-    matcher = new VotingKeypointMatcher<>(5);
-    matcher.setModelFeatures(queryKeypoints);
-    matcher.findMatches(targetKeypoints);
-    MBFImage votingKeypointMatches =
-        MatchingUtilities.drawMatches(query, target, matcher.getMatches(), RGBColour.RED);
-    images.put("VotingKeypoint", votingKeypointMatches);
-    
-    // Consistent matching (RANSAC)
-    LocalFeatureMatcher<Keypoint> internalMatcher = new FastBasicKeypointMatcher<>(8);
-    StoppingCondition sc = new RANSAC.PercentageInliersStoppingCondition(0.5);
-    RobustAffineTransformEstimator ratFitter = new RobustAffineTransformEstimator(5.0, 1500, sc);
-    matcher = new ConsistentLocalFeatureMatcher2d<Keypoint>(internalMatcher, ratFitter);
-    matcher.setModelFeatures(queryKeypoints);
-    matcher.findMatches(targetKeypoints);
-    MBFImage ransacMatches =
-        MatchingUtilities.drawMatches(query, target, matcher.getMatches(), RGBColour.BLUE);
-    images.put("Consistent RANSAC", ransacMatches);
+    // Robust model fitters for consistent matching (parallel, stopping once confident)
+    RobustModelFitting<Point2d, Point2d, ? extends MatrixTransformProvider> ratFitter =
+        new ParallelRansac(ParallelRansac.Transform.AFFINE, 5.0, 1500);
+    RobustModelFitting<Point2d, Point2d, ? extends MatrixTransformProvider> homoFitter =
+        new ParallelRansac(ParallelRansac.Transform.HOMOGRAPHY, 5.0, 1500);
+    // !!! Alternative method - OpenIMAJ RANSAC (single threaded)
+    // StoppingCondition sc = new RANSAC.PercentageInliersStoppingCondition(0.5);
+    // RobustModelFitting<Point2d, Point2d, ? extends MatrixTransformProvider> ratFitter =
+    // new RobustAffineTransformEstimator(5.0, 1500, sc);
+    // RobustModelFitting<Point2d, Point2d, ? extends MatrixTransformProvider> homoFitter =
+    // new RobustHomographyEstimator(5.0, 1500, sc, HomographyRefinement.SYMMETRIC_TRANSFER);
 
-    // Consistent matching (Homography)
-    RobustHomographyEstimator homoFitter =
-        new RobustHomographyEstimator(5.0, 1500, sc, HomographyRefinement.SYMMETRIC_TRANSFER);
-    matcher = new ConsistentLocalFeatureMatcher2d<Keypoint>(internalMatcher, homoFitter);
-    matcher.setModelFeatures(queryKeypoints);
-    matcher.findMatches(targetKeypoints);
-    MBFImage homoMatches =
-        MatchingUtilities.drawMatches(query, target, matcher.getMatches(), RGBColour.GREEN);
-    images.put("Consistent Homo", homoMatches);
+    // Compute descriptor distances once and share them between matchers (see MatcherEvaluation)
+    matchFromSharedTable(images, query, target, queryKeypoints, targetKeypoints, ratFitter,
+        homoFitter);
+    // !!! Alternative method - each matcher in turn, computing its own distances
+    // LocalFeatureMatcher<Keypoint> matcher = new BasicMatcher<>(1000);
+    // matcher.setModelFeatures(queryKeypoints);
+    // matcher.findMatches(targetKeypoints);
+    // images.put("Basic",
+    // MatchingUtilities.drawMatches(query, target, matcher.getMatches(), RGBColour.RED));
+    // matcher = new KDForestKeypointMatcher<>(8);
+    // matcher.setModelFeatures(queryKeypoints);
+    // matcher.findMatches(targetKeypoints);
+    // images.put("KDForest",
+    // MatchingUtilities.drawMatches(query, target, matcher.getMatches(), RGBColour.RED));
+    // matcher = new BasicTwoWayMatcher<>();
+    // matcher.setModelFeatures(queryKeypoints);
+    // matcher.findMatches(targetKeypoints);
+    // images.put("Basic2Way",
+    // MatchingUtilities.drawMatches(query, target, matcher.getMatches(), RGBColour.RED));
+    // matcher = new VotingKeypointMatcher<>(5);
+    // matcher.setModelFeatures(queryKeypoints);
+    // matcher.findMatches(targetKeypoints);
+    // images.put("VotingKeypoint",
+    // MatchingUtilities.drawMatches(query, target, matcher.getMatches(), RGBColour.RED));
+    // LocalFeatureMatcher<Keypoint> internalMatcher = new KDForestKeypointMatcher<>(8);
+    // matcher = new ConsistentLocalFeatureMatcher2d<Keypoint>(internalMatcher, ratFitter);
+    // matcher.setModelFeatures(queryKeypoints);
+    // matcher.findMatches(targetKeypoints);
+    // images.put("Consistent RANSAC",
+    // MatchingUtilities.drawMatches(query, target, matcher.getMatches(), RGBColour.BLUE));
+    // matcher = new ConsistentLocalFeatureMatcher2d<Keypoint>(internalMatcher, homoFitter);
+    // matcher.setModelFeatures(queryKeypoints);
+    // matcher.findMatches(targetKeypoints);
+    // images.put("Consistent Homo",
+    // MatchingUtilities.drawMatches(query, target, matcher.getMatches(), RGBColour.GREEN));
 
     // Find shape
     target.drawShape(query.getBounds().transform(ratFitter.getModel().getTransform().inverse()), 3,
@@ -128,4 +138,37 @@ public class App {
     }
   }
 
+  /**
+   * Run the same matchers from one shared, parallel nearest neighbour table and print a report of
+   * the matches, inliers and time for each.
+   */
+  private static void matchFromSharedTable(Map<String, Image<?, ?>> images, MBFImage query,
+      MBFImage target, LocalFeatureList<Keypoint> queryKeypoints,
+      LocalFeatureList<Keypoint> targetKeypoints,
+      RobustModelFitting<Point2d, Point2d, ? extends MatrixTransformProvider> ratFitter,
+      RobustModelFitting<Point2d, Point2d, ? extends MatrixTransformProvider> homoFitter) {
+    MatcherEvaluation evaluation = new MatcherEvaluation(queryKeypoints, targetKeypoints);
+    images.put("Basic", MatchingUtilities.drawMatches(query, target,
+        evaluation.basic(1000).getMatches(), RGBColour.RED));
+
+    // The KD-forest matcher builds its own index so does not use the table
+    LocalFeatureMatcher<Keypoint> matcher = new KDForestKeypointMatcher<>(8);
+    matcher.setModelFeatures(queryKeypoints);
+    matcher.findMatches(targetKeypoints);
+    images.put("KDForest",
+        MatchingUtilities.drawMatches(query, target, matcher.getMatches(), RGBColour.RED));
+
+    images.put("Basic2Way", MatchingUtilities.drawMatches(query, target,
+        evaluation.twoWay().getMatches(), RGBColour.RED));
+    images.put("VotingKeypoint", MatchingUtilities.drawMatches(query, target,
+        evaluation.voting(5).getMatches(), RGBColour.RED));
+    images.put("Consistent RANSAC", MatchingUtilities.drawMatches(query, target,
+        evaluation.consistent("Consistent RANSAC", 8, ratFitter).getMatches(), RGBColour.BLUE));
+    images.put("Consistent Homo", MatchingUtilities.drawMatches(query, target,
+        evaluation.consistent("Consistent Homo", 8, homoFitter).getMatches(), RGBColour.GREEN));
+
+    // Count inliers against the fitted homography
+    evaluation.printReport(System.out, homoFitter.getModel().getTransform(), 5.0);
+  }
+
 }
@@ -0,0 +1,63 @@
+package uk.ac.soton.ecs.dsj.ch5;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.image.FImage;
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+import uk.ac.soton.ecs.dsj.util.ImageCache;
+
+/**
+ * Batch matching of the Chapter 5 query image against a directory of target images (given as the
+ * first argument) using a {@link BatchMatcher}. Without an argument the tutorial images are used as
+ * the targets.
+ */
+public class BatchMatch {
+  private static final String SIFT_VARIANT = "dog-sift-default";
+  private static final int CANDIDATES = 10;
+
+  public static void main(String[] args) throws IOException {
+    List<URL> targets = new ArrayList<>();
+    if (args.length > 0) {
+      File[] files = new File(args[0]).listFiles();
+      if (files == null) {
+        System.err.println("Not a directory: " + args[0]);
+        return;
+      }
+      Arrays.sort(files);
+      for (File file : files) {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png")) {
+          targets.add(file.toURI().toURL());
+        }
+      }
+    } else {
+      targets.add(new URL("http://static.openimaj.org/media/tutorial/target.jpg"));
+      targets.add(new URL("http://static.openimaj.org/media/tutorial/sinaface.jpg"));
+      targets.add(new URL("http://openimaj.org/tutorial/figs/hist1.jpg"));
+      targets.add(new URL("http://openimaj.org/tutorial/figs/hist2.jpg"));
+      targets.add(new URL("http://openimaj.org/tutorial/figs/hist3.jpg"));
+    }
+
+    // Query keypoints are shared with the Chapter 5 app through the keypoint store
+    FImage query = ImageCache.getDefault()
+        .readMBF(new URL("http://static.openimaj.org/media/tutorial/query.jpg")).flatten();
+    KeypointStore store = KeypointStore.getDefault();
+    LocalFeatureList<Keypoint> queryKeypoints =
+        store.findFeatures(query, new ParallelDoGSIFTEngine(), SIFT_VARIANT).toList();
+
+    BatchMatcher matcher = new BatchMatcher(queryKeypoints, store, SIFT_VARIANT);
+    matcher.setCandidates(CANDIDATES);
+    List<BatchMatcher.Result> results = matcher.match(targets);
+    for (BatchMatcher.Result result : results) {
+      System.out.println(String.format("%5d matches %6d votes  %s", result.getMatches().size(),
+          result.getVotes(), result.getTarget()));
+    }
+    matcher.printReport(System.out);
+  }
+
+}
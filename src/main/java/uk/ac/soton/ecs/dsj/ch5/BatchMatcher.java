@@ -0,0 +1,256 @@
+package uk.ac.soton.ecs.dsj.ch5;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openimaj.feature.local.matcher.consistent.ConsistentLocalFeatureMatcher2d;
+import org.openimaj.image.feature.local.engine.DoGSIFTEngine;
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+import org.openimaj.time.Timer;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.pair.Pair;
+import org.openimaj.util.parallel.Parallel;
+import uk.ac.soton.ecs.dsj.util.ImageCache;
+
+/**
+ * Matches one query image against many target images in two stages.
+ * <p>
+ * The first stage builds a {@link ByteKDForest} over the query descriptors once and scores every
+ * target by a vote: the number of its keypoints whose approximate nearest query descriptor passes
+ * the ratio test. Only the highest voted candidates go on to full geometric verification with a
+ * {@link ConsistentLocalFeatureMatcher2d}. Targets are processed in parallel one image per thread,
+ * and only the votes (and the keypoints of the current best candidates) are kept, so memory does
+ * not grow with the number of targets. Target images are fetched through the {@link ImageCache} and
+ * their keypoints served from a {@link KeypointStore} keyed by the cached file's bytes, so later
+ * runs neither decode nor re-extract them; the second stage reuses the candidates' keypoints.
+ */
+public class BatchMatcher {
+  /** Default number of candidates verified geometrically */
+  public static final int DEFAULT_CANDIDATES = 10;
+  /** Default distance checks per keypoint when voting */
+  public static final int DEFAULT_VOTE_CHECKS = 64;
+
+  private static final int RATIO_THRESHOLD = 8;
+  private static final double RANSAC_THRESHOLD = 5.0;
+  private static final int RANSAC_ITERATIONS = 1500;
+
+  private final List<Keypoint> queryKeypoints;
+  private final KeypointStore store;
+  private final String variant;
+  private final ByteKDForest forest;
+  private ImageCache cache = ImageCache.getDefault();
+  private int candidates = DEFAULT_CANDIDATES;
+  private int voteChecks = DEFAULT_VOTE_CHECKS;
+
+  // DoGSIFTEngine changes its options while extracting so each thread needs its own
+  private final ThreadLocal<DoGSIFTEngine> engines = new ThreadLocal<DoGSIFTEngine>() {
+    @Override
+    protected DoGSIFTEngine initialValue() {
+      return new DoGSIFTEngine();
+    }
+  };
+
+  private long voteMillis;
+  private long verifyMillis;
+  private int targetCount;
+  private int verified;
+  private int failures;
+
+  /**
+   * @param queryKeypoints Keypoints of the query image
+   * @param store Store to read target keypoints from, and add them to when missing
+   * @param variant Store variant name for the default DoG-SIFT settings
+   */
+  public BatchMatcher(List<Keypoint> queryKeypoints, KeypointStore store, String variant) {
+    this.queryKeypoints = queryKeypoints;
+    this.store = store;
+    this.variant = variant;
+    int dims = queryKeypoints.isEmpty() ? 128 : queryKeypoints.get(0).ivec.length;
+    byte[] data = new byte[queryKeypoints.size() * dims];
+    for (int i = 0; i < queryKeypoints.size(); i++) {
+      System.arraycopy(queryKeypoints.get(i).ivec, 0, data, i * dims, dims);
+    }
+    forest = new ByteKDForest(data, dims, KDForestKeypointMatcher.DEFAULT_TREES, 0);
+  }
+
+  /**
+   * @param candidates Number of the highest voted targets to verify geometrically
+   */
+  public void setCandidates(int candidates) {
+    this.candidates = candidates;
+  }
+
+  /**
+   * @param cache Cache that target images are fetched through, the default cache by default
+   */
+  public void setCache(ImageCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * @param voteChecks Distance checks per target keypoint when voting, fewer is faster but noisier
+   */
+  public void setVoteChecks(int voteChecks) {
+    this.voteChecks = voteChecks;
+  }
+
+  /**
+   * Rank targets against the query.
+   *
+   * @param targets Target image locations
+   * @return The verified candidates, most consistent matches first
+   */
+  public List<Result> match(final List<URL> targets) {
+    targetCount = targets.size();
+    final AtomicInteger failed = new AtomicInteger();
+    final PriorityQueue<Result> best = new PriorityQueue<>(candidates + 1, BY_VOTES);
+
+    // Stage 1: vote for every target, keeping only the best candidates
+    Timer timer = Timer.timer();
+    Parallel.forIndex(0, targets.size(), 1, new Operation<Integer>() {
+      @Override
+      public void perform(Integer i) {
+        PackedKeypoints keypoints;
+        try {
+          keypoints = load(targets.get(i));
+        } catch (IOException e) {
+          e.printStackTrace();
+          failed.incrementAndGet();
+          return;
+        }
+        Result result = new Result(targets.get(i), vote(keypoints), keypoints);
+        synchronized (best) {
+          best.add(result);
+          if (best.size() > candidates) {
+            best.poll();
+          }
+        }
+      }
+    });
+    voteMillis = timer.duration();
+    failures = failed.get();
+
+    // Stage 2: geometric verification of the candidates (each match is itself parallel)
+    timer = Timer.timer();
+    ParallelRansac fitter = new ParallelRansac(ParallelRansac.Transform.AFFINE, RANSAC_THRESHOLD,
+        RANSAC_ITERATIONS);
+    ConsistentLocalFeatureMatcher2d<Keypoint> matcher = new ConsistentLocalFeatureMatcher2d<>(
+        new KDForestKeypointMatcher<Keypoint>(RATIO_THRESHOLD), fitter);
+    matcher.setModelFeatures(queryKeypoints);
+    List<Result> results = new ArrayList<>(best);
+    for (Result result : results) {
+      if (matcher.findMatches(result.keypoints.toList())) {
+        result.matches = new ArrayList<>(matcher.getMatches());
+      }
+      // Release the mapped store entry
+      result.keypoints = null;
+    }
+    verifyMillis = timer.duration();
+    verified = results.size();
+
+    Collections.sort(results, BY_MATCHES);
+    return results;
+  }
+
+  private PackedKeypoints load(URL target) throws IOException {
+    return store.findFeatures(cache.getEncodedFile(target), engines.get(), variant);
+  }
+
+  /**
+   * Count the target keypoints whose nearest query descriptor passes the ratio test.
+   */
+  private int vote(PackedKeypoints keypoints) {
+    byte[] descriptor = new byte[keypoints.getDescriptorLength()];
+    int[] indices = new int[2];
+    int[] distances = new int[2];
+    int ratio = RATIO_THRESHOLD * RATIO_THRESHOLD;
+    int votes = 0;
+    for (int i = 0; i < keypoints.size(); i++) {
+      keypoints.getDescriptor(i, descriptor);
+      int found = forest.search(descriptor, 0, 2, voteChecks, indices, distances);
+      if (found == 1 || (found == 2 && 100 * distances[0] < ratio * distances[1])) {
+        votes++;
+      }
+    }
+    return votes;
+  }
+
+  /**
+   * @return Images per second over both stages of the last call to {@link #match(List)}
+   */
+  public double getImagesPerSecond() {
+    return targetCount * 1000.0 / Math.max(1, voteMillis + verifyMillis);
+  }
+
+  /**
+   * Print the time taken by each stage of the last call to {@link #match(List)}.
+   *
+   * @param out Stream to print to
+   */
+  public void printReport(PrintStream out) {
+    out.println(String.format("Voting:       %d targets in %dms (%.1f images/s), %d failed",
+        targetCount, voteMillis, targetCount * 1000.0 / Math.max(1, voteMillis), failures));
+    out.println(String.format("Verification: %d candidates in %dms", verified, verifyMillis));
+    out.println(String.format("Overall:      %.1f images/s", getImagesPerSecond()));
+  }
+
+  private static final Comparator<Result> BY_VOTES = new Comparator<Result>() {
+    @Override
+    public int compare(Result a, Result b) {
+      return Integer.compare(a.votes, b.votes);
+    }
+  };
+
+  private static final Comparator<Result> BY_MATCHES = new Comparator<Result>() {
+    @Override
+    public int compare(Result a, Result b) {
+      int c = Integer.compare(b.matches.size(), a.matches.size());
+      return c != 0 ? c : Integer.compare(b.votes, a.votes);
+    }
+  };
+
+  /**
+   * A candidate target with its vote and verified matches.
+   */
+  public static class Result {
+    private final URL target;
+    private final int votes;
+    private List<Pair<Keypoint>> matches = Collections.emptyList();
+    // Kept from voting until verified
+    private PackedKeypoints keypoints;
+
+    Result(URL target, int votes, PackedKeypoints keypoints) {
+      this.target = target;
+      this.votes = votes;
+      this.keypoints = keypoints;
+    }
+
+    /**
+     * @return The target image location
+     */
+    public URL getTarget() {
+      return target;
+    }
+
+    /**
+     * @return Number of target keypoints voting for the query
+     */
+    public int getVotes() {
+      return votes;
+    }
+
+    /**
+     * @return Geometrically consistent matches, as (target, query) pairs
+     */
+    public List<Pair<Keypoint>> getMatches() {
+      return matches;
+    }
+  }
+
+}
@@ -0,0 +1,371 @@
+package uk.ac.soton.ecs.dsj.ch5;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Randomised KD-forest over packed byte vectors (such as SIFT descriptors) for approximate nearest
+ * neighbour search.
+ * <p>
+ * Each tree splits on a dimension picked at random from the few with the highest variance, so the
+ * trees partition the space differently. A query descends every tree and then explores the most
+ * promising unexplored branches across all trees in best-bin-first order until a budget of
+ * distance checks is used up. Larger budgets give better recall at the cost of speed, a budget of
+ * at least {@link #size()} always returns the exact neighbours. Searches may run concurrently.
+ */
+public class ByteKDForest {
+  private static final int LEAF_SIZE = 4;
+  private static final int VARIANCE_SAMPLES = 128;
+  private static final int TOP_DIMENSIONS = 5;
+
+  private final byte[] data;
+  private final int dims;
+  private final int size;
+  private final int[] roots;
+  // Node arrays shared by all trees, a split dimension of -1 marks a leaf
+  private int[] splitDim;
+  private float[] splitValue;
+  private int[] low;
+  private int[] high;
+  private int numNodes;
+  // Point indices for every tree, leaves refer to ranges of this array
+  private final int[] items;
+
+  private final ThreadLocal<SearchState> states = new ThreadLocal<SearchState>() {
+    @Override
+    protected SearchState initialValue() {
+      return new SearchState(size);
+    }
+  };
+
+  /**
+   * Build a forest over packed vectors.
+   *
+   * @param data Vectors packed back to back, {@code dims} bytes each (not copied)
+   * @param dims Number of dimensions per vector
+   * @param numTrees Number of randomised trees
+   * @param seed Seed for the random split choices
+   */
+  public ByteKDForest(byte[] data, int dims, int numTrees, long seed) {
+    if (dims <= 0 || data.length % dims != 0) {
+      throw new IllegalArgumentException("Data is not a whole number of " + dims + "-d vectors");
+    }
+    if (numTrees < 1) {
+      throw new IllegalArgumentException("At least one tree is required");
+    }
+    this.data = data;
+    this.dims = dims;
+    this.size = data.length / dims;
+    this.roots = new int[numTrees];
+    this.items = new int[size * numTrees];
+
+    int capacity = Math.max(16, numTrees * (2 * size / LEAF_SIZE + 1));
+    splitDim = new int[capacity];
+    splitValue = new float[capacity];
+    low = new int[capacity];
+    high = new int[capacity];
+
+    Random random = new Random(seed);
+    float[] mean = new float[dims];
+    float[] variance = new float[dims];
+    for (int t = 0; t < numTrees; t++) {
+      int offset = t * size;
+      for (int i = 0; i < size; i++) {
+        items[offset + i] = i;
+      }
+      roots[t] = build(offset, offset + size, random, mean, variance);
+    }
+  }
+
+  /**
+   * @return Number of vectors in the forest
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return Number of dimensions per vector
+   */
+  public int getDimensions() {
+    return dims;
+  }
+
+  /**
+   * Find the approximate k nearest neighbours of a query vector.
+   *
+   * @param query Array holding the query vector
+   * @param queryOffset Offset of the query vector in the array
+   * @param k Number of neighbours to find
+   * @param maxChecks Maximum number of distance computations
+   * @param indices Output indices of the neighbours, nearest first (at least k long)
+   * @param distances Output squared distances of the neighbours (at least k long)
+   * @return Number of neighbours found, less than k only if the forest is smaller than k
+   */
+  public int search(byte[] query, int queryOffset, int k, int maxChecks, int[] indices,
+      int[] distances) {
+    SearchState state = states.get();
+    state.begin();
+    int found = 0;
+    int checks = 0;
+
+    // Descend every tree first so each contributes candidates, then explore the best branches
+    for (int root : roots) {
+      int node = descend(root, 0, query, queryOffset, state);
+      for (int i = low[node]; i < high[node]; i++) {
+        int item = items[i];
+        if (state.visit(item)) {
+          found = offer(item, distance(query, queryOffset, item), k, found, indices, distances);
+          checks++;
+        }
+      }
+    }
+    while (checks < maxChecks && state.heapSize > 0) {
+      float bound = state.heapKeys[0];
+      int node = state.pop();
+      node = descend(node, bound, query, queryOffset, state);
+      for (int i = low[node]; i < high[node] && checks < maxChecks; i++) {
+        int item = items[i];
+        if (state.visit(item)) {
+          found = offer(item, distance(query, queryOffset, item), k, found, indices, distances);
+          checks++;
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Squared Euclidean distance from a query vector to an indexed vector.
+   *
+   * @param query Array holding the query vector
+   * @param queryOffset Offset of the query vector in the array
+   * @param item Index of the indexed vector
+   * @return Squared distance
+   */
+  public int distance(byte[] query, int queryOffset, int item) {
+    int offset = item * dims;
+    int sum = 0;
+    for (int d = 0; d < dims; d++) {
+      int diff = query[queryOffset + d] - data[offset + d];
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  /**
+   * Follow the nearer child down to a leaf, queueing each farther child by its bound.
+   */
+  private int descend(int node, float bound, byte[] query, int queryOffset, SearchState state) {
+    while (splitDim[node] >= 0) {
+      float diff = query[queryOffset + splitDim[node]] - splitValue[node];
+      int near = diff < 0 ? low[node] : high[node];
+      int far = diff < 0 ? high[node] : low[node];
+      state.push(far, bound + diff * diff);
+      node = near;
+    }
+    return node;
+  }
+
+  /**
+   * Insert into a sorted top-k list, returning the new number of entries.
+   */
+  private static int offer(int item, int distance, int k, int found, int[] indices,
+      int[] distances) {
+    if (found == k && distance >= distances[k - 1]) {
+      return found;
+    }
+    int i = found < k ? found++ : k - 1;
+    while (i > 0 && distances[i - 1] > distance) {
+      indices[i] = indices[i - 1];
+      distances[i] = distances[i - 1];
+      i--;
+    }
+    indices[i] = item;
+    distances[i] = distance;
+    return found;
+  }
+
+  /**
+   * Build a subtree over items[start, end), returning its node.
+   */
+  private int build(int start, int end, Random random, float[] mean, float[] variance) {
+    int node = newNode();
+    if (end - start <= LEAF_SIZE) {
+      makeLeaf(node, start, end);
+      return node;
+    }
+
+    // Estimate per-dimension statistics from a sample of the points
+    Arrays.fill(mean, 0);
+    Arrays.fill(variance, 0);
+    int samples = Math.min(end - start, VARIANCE_SAMPLES);
+    for (int s = 0; s < samples; s++) {
+      int offset = items[start + s] * dims;
+      for (int d = 0; d < dims; d++) {
+        mean[d] += data[offset + d];
+      }
+    }
+    for (int d = 0; d < dims; d++) {
+      mean[d] /= samples;
+    }
+    for (int s = 0; s < samples; s++) {
+      int offset = items[start + s] * dims;
+      for (int d = 0; d < dims; d++) {
+        float diff = data[offset + d] - mean[d];
+        variance[d] += diff * diff;
+      }
+    }
+
+    // Choose at random between the highest variance dimensions
+    int[] top = new int[TOP_DIMENSIONS];
+    int numTop = 0;
+    for (int d = 0; d < dims; d++) {
+      if (numTop < TOP_DIMENSIONS || variance[d] > variance[top[numTop - 1]]) {
+        int i = numTop < TOP_DIMENSIONS ? numTop++ : numTop - 1;
+        while (i > 0 && variance[top[i - 1]] < variance[d]) {
+          top[i] = top[i - 1];
+          i--;
+        }
+        top[i] = d;
+      }
+    }
+    int dim = top[random.nextInt(numTop)];
+    if (variance[dim] == 0) {
+      dim = top[0];
+    }
+    float split = mean[dim];
+
+    // Partition around the split value
+    int mid = partition(start, end, dim, split);
+    if (mid == start || mid == end) {
+      // The sample missed the spread of this dimension, split at the midpoint of the range
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      for (int i = start; i < end; i++) {
+        int v = data[items[i] * dims + dim];
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+      }
+      if (min == max) {
+        makeLeaf(node, start, end);
+        return node;
+      }
+      split = (min + max + 1) / 2f;
+      mid = partition(start, end, dim, split);
+    }
+
+    splitDim[node] = dim;
+    splitValue[node] = split;
+    int left = build(start, mid, random, mean, variance);
+    int right = build(mid, end, random, mean, variance);
+    low[node] = left;
+    high[node] = right;
+    return node;
+  }
+
+  private int partition(int start, int end, int dim, float split) {
+    int mid = start;
+    for (int i = start; i < end; i++) {
+      if (data[items[i] * dims + dim] < split) {
+        int tmp = items[i];
+        items[i] = items[mid];
+        items[mid++] = tmp;
+      }
+    }
+    return mid;
+  }
+
+  private void makeLeaf(int node, int start, int end) {
+    splitDim[node] = -1;
+    low[node] = start;
+    high[node] = end;
+  }
+
+  private int newNode() {
+    if (numNodes == splitDim.length) {
+      int capacity = numNodes * 2;
+      splitDim = Arrays.copyOf(splitDim, capacity);
+      splitValue = Arrays.copyOf(splitValue, capacity);
+      low = Arrays.copyOf(low, capacity);
+      high = Arrays.copyOf(high, capacity);
+    }
+    return numNodes++;
+  }
+
+  /**
+   * Per-thread search state: the branch priority queue and a visited stamp per point.
+   */
+  private static class SearchState {
+    private final int[] visited;
+    private int stamp;
+    float[] heapKeys = new float[64];
+    private int[] heapNodes = new int[64];
+    int heapSize;
+
+    SearchState(int size) {
+      visited = new int[size];
+    }
+
+    void begin() {
+      heapSize = 0;
+      if (++stamp == Integer.MAX_VALUE) {
+        Arrays.fill(visited, 0);
+        stamp = 1;
+      }
+    }
+
+    /**
+     * @return Whether the point had not yet been visited by this search
+     */
+    boolean visit(int item) {
+      if (visited[item] == stamp) {
+        return false;
+      }
+      visited[item] = stamp;
+      return true;
+    }
+
+    void push(int node, float key) {
+      if (heapSize == heapKeys.length) {
+        heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+        heapNodes = Arrays.copyOf(heapNodes, heapSize * 2);
+      }
+      int i = heapSize++;
+      while (i > 0 && heapKeys[(i - 1) / 2] > key) {
+        int parent = (i - 1) / 2;
+        heapKeys[i] = heapKeys[parent];
+        heapNodes[i] = heapNodes[parent];
+        i = parent;
+      }
+      heapKeys[i] = key;
+      heapNodes[i] = node;
+    }
+
+    int pop() {
+      int node = heapNodes[0];
+      float key = heapKeys[--heapSize];
+      int last = heapNodes[heapSize];
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= heapSize) {
+          break;
+        }
+        if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) {
+          child++;
+        }
+        if (heapKeys[child] >= key) {
+          break;
+        }
+        heapKeys[i] = heapKeys[child];
+        heapNodes[i] = heapNodes[child];
+        i = child;
+      }
+      heapKeys[i] = key;
+      heapNodes[i] = last;
+      return node;
+    }
+  }
+
+}
@@ -0,0 +1,128 @@
+package uk.ac.soton.ecs.dsj.ch5;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.openimaj.feature.local.matcher.LocalFeatureMatcher;
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.pair.Pair;
+import org.openimaj.util.parallel.Parallel;
+import org.openimaj.util.parallel.Parallel.IntRange;
+
+/**
+ * Keypoint matcher using approximate nearest neighbour search over a randomised
+ * {@link ByteKDForest}, a faster alternative to {@code BasicMatcher} and
+ * {@code FastBasicKeypointMatcher}.
+ * <p>
+ * Matches are accepted with the same distance ratio test as the OpenIMAJ matchers (a threshold of
+ * 8 requires the nearest neighbour to be closer than 0.8 times the second nearest). The number of
+ * trees and distance checks per query trade recall for speed. Queries are matched in parallel. Can
+ * be used directly as the internal matcher of a {@code ConsistentLocalFeatureMatcher2d}.
+ *
+ * @param <T> Keypoint type
+ */
+public class KDForestKeypointMatcher<T extends Keypoint> implements LocalFeatureMatcher<T> {
+  /** Default number of randomised trees */
+  public static final int DEFAULT_TREES = 4;
+  /** Default number of distance checks per query */
+  public static final int DEFAULT_CHECKS = 256;
+
+  private final int numTrees;
+  private int threshold;
+  private int maxChecks;
+  private long seed = 0;
+
+  private List<T> modelKeypoints;
+  private ByteKDForest forest;
+  private List<Pair<T>> matches = new ArrayList<>();
+
+  /**
+   * Construct with the default number of trees and checks.
+   *
+   * @param threshold Ratio test threshold, as for {@code FastBasicKeypointMatcher}
+   */
+  public KDForestKeypointMatcher(int threshold) {
+    this(threshold, DEFAULT_TREES, DEFAULT_CHECKS);
+  }
+
+  /**
+   * @param threshold Ratio test threshold, as for {@code FastBasicKeypointMatcher}
+   * @param numTrees Number of randomised trees to build over the model keypoints
+   * @param maxChecks Maximum descriptor comparisons per query keypoint
+   */
+  public KDForestKeypointMatcher(int threshold, int numTrees, int maxChecks) {
+    this.threshold = threshold;
+    this.numTrees = numTrees;
+    this.maxChecks = maxChecks;
+  }
+
+  /**
+   * @param threshold Ratio test threshold
+   */
+  public void setThreshold(int threshold) {
+    this.threshold = threshold;
+  }
+
+  /**
+   * @param maxChecks Maximum descriptor comparisons per query keypoint, more improves recall
+   */
+  public void setMaxChecks(int maxChecks) {
+    this.maxChecks = maxChecks;
+  }
+
+  /**
+   * @param seed Seed for building the forest, applied on the next call to
+   *        {@link #setModelFeatures(List)}
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  @Override
+  public void setModelFeatures(List<T> modelKeypoints) {
+    this.modelKeypoints = modelKeypoints;
+    int dims = modelKeypoints.isEmpty() ? 128 : modelKeypoints.get(0).ivec.length;
+    byte[] data = new byte[modelKeypoints.size() * dims];
+    for (int i = 0; i < modelKeypoints.size(); i++) {
+      System.arraycopy(modelKeypoints.get(i).ivec, 0, data, i * dims, dims);
+    }
+    forest = new ByteKDForest(data, dims, numTrees, seed);
+  }
+
+  @Override
+  public boolean findMatches(final List<T> keys) {
+    if (forest == null) {
+      throw new IllegalStateException("Model features must be set before matching");
+    }
+    final int[] matched = new int[keys.size()];
+    final float ratio = threshold * threshold;
+    Parallel.forRange(0, keys.size(), 1, new Operation<IntRange>() {
+      @Override
+      public void perform(IntRange range) {
+        int[] indices = new int[2];
+        int[] distances = new int[2];
+        for (int q = range.start; q < range.stop; q++) {
+          int found = forest.search(keys.get(q).ivec, 0, 2, maxChecks, indices, distances);
+          // Distances are squared so the ratio is applied squared, as in the OpenIMAJ matchers
+          boolean accept =
+              found == 1 || (found == 2 && 100f * distances[0] < ratio * distances[1]);
+          matched[q] = accept ? indices[0] : -1;
+        }
+      }
+    });
+
+    matches = new ArrayList<>();
+    for (int q = 0; q < matched.length; q++) {
+      if (matched[q] >= 0) {
+        matches.add(new Pair<T>(keys.get(q), modelKeypoints.get(matched[q])));
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public List<Pair<T>> getMatches() {
+    return matches;
+  }
+
+}
@@ -0,0 +1,208 @@
+package uk.ac.soton.ecs.dsj.ch5;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.List;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.feature.local.engine.Engine;
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+import uk.ac.soton.ecs.dsj.util.Hashing;
+
+/**
+ * On-disk store of extracted keypoints, so SIFT extraction only runs once per image.
+ * <p>
+ * Each entry is a {@link PackedKeypoints} file named by the SHA-1 of a caller supplied variant
+ * string, which should change whenever the extraction settings do, and either the image's pixels or
+ * the bytes of the encoded image file (so a stored file is hashed but not decoded again, and the
+ * same image found at another path or under another name shares the entry). Entries are read back
+ * through a memory mapped buffer.
+ */
+public class KeypointStore {
+  /** System property that overrides the default store directory */
+  public static final String STORE_DIR_PROPERTY = "dsj.keypoint.dir";
+
+  private static final String SUFFIX = ".kps";
+
+  private static KeypointStore defaultStore;
+
+  private final File directory;
+
+  /**
+   * Create a store that keeps its files in the given directory, creating it if required.
+   *
+   * @param directory Directory to store keypoint files in
+   */
+  public KeypointStore(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * @return A shared store kept under {@code ~/.openimaj-tutorial/keypoints}, or the directory
+   *         given by the {@value #STORE_DIR_PROPERTY} system property
+   */
+  public static synchronized KeypointStore getDefault() {
+    if (defaultStore == null) {
+      String path = System.getProperty(STORE_DIR_PROPERTY);
+      File dir = path != null ? new File(path)
+          : new File(new File(System.getProperty("user.home"), ".openimaj-tutorial"), "keypoints");
+      defaultStore = new KeypointStore(dir);
+    }
+    return defaultStore;
+  }
+
+  /**
+   * @return The directory used to store keypoint files
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * @param image Image the keypoints are extracted from
+   * @param variant Name for the extraction settings
+   * @return Key identifying the image contents and settings
+   */
+  public static String key(FImage image, String variant) {
+    MessageDigest digest = Hashing.sha1();
+    digest.update(variant.getBytes(StandardCharsets.UTF_8));
+    int width = image.getWidth();
+    digest.update(ByteBuffer.allocate(8).putInt(width).putInt(image.getHeight()).array());
+    ByteBuffer row = ByteBuffer.allocate(width * 4).order(ByteOrder.LITTLE_ENDIAN);
+    FloatBuffer rowFloats = row.asFloatBuffer();
+    for (int y = 0; y < image.getHeight(); y++) {
+      rowFloats.clear();
+      rowFloats.put(image.pixels[y]);
+      digest.update(row.array(), 0, width * 4);
+    }
+    return Hashing.toHex(digest.digest());
+  }
+
+  /**
+   * @param file Encoded image file the keypoints are extracted from
+   * @param variant Name for the extraction settings
+   * @return Key identifying the encoded bytes of the file and settings
+   * @throws IOException If the file could not be read
+   */
+  public static String key(File file, String variant) throws IOException {
+    MessageDigest digest = Hashing.sha1();
+    digest.update(variant.getBytes(StandardCharsets.UTF_8));
+    // Separates the variant from the file contents, which are hashed as they are without decoding
+    digest.update((byte) '\n');
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    return Hashing.toHex(digest.digest());
+  }
+
+  /**
+   * Find keypoints of an encoded image file with an engine, serving them from the store where
+   * possible. The file is only read to hash it, and decoded on a store miss.
+   *
+   * @param file Encoded image file to extract keypoints from
+   * @param engine Engine to use on a store miss
+   * @param variant Name for the engine's settings
+   * @return The keypoints
+   * @throws IOException If the image or the store could not be read, or the store written
+   */
+  public PackedKeypoints findFeatures(File file, Engine<Keypoint, FImage> engine, String variant)
+      throws IOException {
+    String key = key(file, variant);
+    PackedKeypoints stored = get(key);
+    if (stored != null) {
+      return stored;
+    }
+    return put(key, engine.findFeatures(ImageUtilities.readF(file)));
+  }
+
+  /**
+   * Find keypoints with an engine (such as DoG-SIFT), serving them from the store where possible.
+   *
+   * @param image Image to extract keypoints from
+   * @param engine Engine to use on a store miss
+   * @param variant Name for the engine's settings
+   * @return The keypoints
+   * @throws IOException If the store could not be read or written
+   */
+  public PackedKeypoints findFeatures(FImage image, Engine<Keypoint, FImage> engine,
+      String variant) throws IOException {
+    String key = key(image, variant);
+    PackedKeypoints stored = get(key);
+    if (stored != null) {
+      return stored;
+    }
+    return put(key, engine.findFeatures(image));
+  }
+
+  /**
+   * @param key Entry key
+   * @return The stored keypoints, or null if there is no entry for the key
+   * @throws IOException If the entry exists but could not be read
+   */
+  public PackedKeypoints get(String key) throws IOException {
+    File file = file(key);
+    if (!file.isFile()) {
+      return null;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel()) {
+      // The mapping stays valid after the channel is closed
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      try {
+        return new PackedKeypoints(mapped);
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Not a keypoint file: " + file, e);
+      }
+    }
+  }
+
+  /**
+   * Store keypoints, replacing any existing entry.
+   *
+   * @param key Entry key
+   * @param keypoints Keypoints to store
+   * @return The stored keypoints, read back from the store
+   * @throws IOException If the entry could not be written
+   */
+  public PackedKeypoints put(String key, List<? extends Keypoint> keypoints) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+      throw new IOException("Unable to create keypoint directory: " + directory);
+    }
+    ByteBuffer encoded = PackedKeypoints.encode(keypoints);
+    File tmp = File.createTempFile("keypoints", ".tmp", directory);
+    try {
+      try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+          FileChannel channel = raf.getChannel()) {
+        while (encoded.hasRemaining()) {
+          channel.write(encoded);
+        }
+      }
+      Files.move(tmp.toPath(), file(key).toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp.toPath());
+    }
+    return get(key);
+  }
+
+  private File file(String key) {
+    return new File(directory, key + SUFFIX);
+  }
+
+}
@@ -0,0 +1,438 @@
+package uk.ac.soton.ecs.dsj.ch5;
+
+import Jama.Matrix;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.openimaj.feature.local.matcher.LocalFeatureMatcher;
+import org.openimaj.feature.local.matcher.consistent.ConsistentLocalFeatureMatcher2d;
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+import org.openimaj.math.geometry.point.Point2d;
+import org.openimaj.math.model.fit.RobustModelFitting;
+import org.openimaj.time.Timer;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.pair.Pair;
+import org.openimaj.util.parallel.Parallel;
+import org.openimaj.util.parallel.Parallel.IntRange;
+
+/**
+ * Runs the ch5 matching strategies over one pair of keypoint lists, sharing a single descriptor
+ * distance computation between them.
+ * <p>
+ * The first strategy to run computes a table holding the two nearest model keypoints of every
+ * target keypoint and the nearest target keypoint of every model keypoint, with one exhaustive
+ * parallel pass over all descriptor pairs. Each strategy then reproduces the behaviour of the
+ * corresponding OpenIMAJ matcher from the table alone, recording its matches and run time (the
+ * table is timed separately). Neighbours are exact, so strategies built on
+ * {@code FastBasicKeypointMatcher} (whose KD-tree search is approximate) can differ slightly.
+ */
+public class MatcherEvaluation {
+  private final List<Keypoint> model;
+  private final List<Keypoint> target;
+  private final List<Result> results = new ArrayList<>();
+
+  // Two nearest model keypoints (and squared distances) for each target keypoint
+  private int[] nearest;
+  private int[] nearestDistances;
+  // Nearest target keypoint for each model keypoint
+  private int[] reverseNearest;
+  private long tableMillis = -1;
+
+  /**
+   * @param model Keypoints matched against (e.g. from the query image)
+   * @param target Keypoints to find matches for (e.g. from the target image)
+   */
+  public MatcherEvaluation(List<Keypoint> model, List<Keypoint> target) {
+    this.model = model;
+    this.target = target;
+  }
+
+  /**
+   * Nearest neighbour ratio matching, as {@code BasicMatcher}.
+   *
+   * @param threshold Ratio threshold, as for {@code BasicMatcher}
+   * @return The result
+   */
+  public Result basic(int threshold) {
+    nearestDistances();
+    Timer timer = Timer.timer();
+    List<Pair<Keypoint>> matches = new ArrayList<>();
+    double ratio = threshold * threshold;
+    for (int t = 0; t < target.size(); t++) {
+      // BasicMatcher applies the ratio to plain (not squared) distances
+      double first = Math.sqrt(nearestDistances[t * 2]);
+      double second = Math.sqrt(nearestDistances[t * 2 + 1]);
+      if (nearest[t * 2] >= 0 && 100 * first < ratio * second) {
+        matches.add(pair(t, nearest[t * 2]));
+      }
+    }
+    return record("Basic", matches, timer);
+  }
+
+  /**
+   * Mutual nearest neighbour matching, as {@code BasicTwoWayMatcher}.
+   *
+   * @return The result
+   */
+  public Result twoWay() {
+    nearestDistances();
+    Timer timer = Timer.timer();
+    List<Pair<Keypoint>> matches = new ArrayList<>();
+    for (int t = 0; t < target.size(); t++) {
+      int m = nearest[t * 2];
+      if (m >= 0 && reverseNearest[m] == t) {
+        matches.add(pair(t, m));
+      }
+    }
+    return record("Basic2Way", matches, timer);
+  }
+
+  /**
+   * Ratio matching filtered by neighbourhood voting, as {@code VotingKeypointMatcher} with its
+   * default parameters: a match is kept if another match lands among the 15 model keypoints
+   * spatially closest to its own, and all matches are rejected if they collapse onto one point.
+   *
+   * @param threshold Ratio threshold, as for {@code FastBasicKeypointMatcher}
+   * @return The result
+   */
+  public Result voting(int threshold) {
+    final int neighbours = 15;
+    final int minVote = 1;
+    final float singularityDistance = 200;
+
+    nearestDistances();
+    Timer timer = Timer.timer();
+    final int[] ratioMatches = ratioMatches(threshold);
+    final int[] matchesPerModel = new int[model.size()];
+    for (int t = 0; t < ratioMatches.length; t++) {
+      if (ratioMatches[t] >= 0) {
+        matchesPerModel[ratioMatches[t]]++;
+      }
+    }
+
+    // Count the matches among each matched model keypoint's spatial neighbours
+    final int[] votes = new int[target.size()];
+    Parallel.forRange(0, target.size(), 1, new Operation<IntRange>() {
+      @Override
+      public void perform(IntRange range) {
+        int[] closest = new int[neighbours];
+        float[] closestDistances = new float[neighbours];
+        for (int t = range.start; t < range.stop; t++) {
+          int m = ratioMatches[t];
+          if (m < 0) {
+            continue;
+          }
+          Keypoint centre = model.get(m);
+          int found = 0;
+          for (int i = 0; i < model.size(); i++) {
+            float dx = model.get(i).x - centre.x;
+            float dy = model.get(i).y - centre.y;
+            float d = dx * dx + dy * dy;
+            if (found == neighbours && d >= closestDistances[neighbours - 1]) {
+              continue;
+            }
+            int j = found < neighbours ? found++ : neighbours - 1;
+            while (j > 0 && closestDistances[j - 1] > d) {
+              closest[j] = closest[j - 1];
+              closestDistances[j] = closestDistances[j - 1];
+              j--;
+            }
+            closest[j] = i;
+            closestDistances[j] = d;
+          }
+          for (int j = 0; j < found; j++) {
+            votes[t] += matchesPerModel[closest[j]];
+          }
+        }
+      }
+    });
+
+    List<Pair<Keypoint>> matches = new ArrayList<>();
+    for (int t = 0; t < target.size(); t++) {
+      if (ratioMatches[t] >= 0 && votes[t] > minVote) {
+        matches.add(pair(t, ratioMatches[t]));
+      }
+    }
+    if (!matches.isEmpty()) {
+      float cx = 0;
+      float cy = 0;
+      for (Pair<Keypoint> match : matches) {
+        cx += match.secondObject().x;
+        cy += match.secondObject().y;
+      }
+      cx /= matches.size();
+      cy /= matches.size();
+      boolean singular = true;
+      for (Pair<Keypoint> match : matches) {
+        float dx = match.secondObject().x - cx;
+        float dy = match.secondObject().y - cy;
+        if (dx * dx + dy * dy > singularityDistance) {
+          singular = false;
+          break;
+        }
+      }
+      if (singular) {
+        matches.clear();
+      }
+    }
+    return record("VotingKeypoint", matches, timer);
+  }
+
+  /**
+   * Ratio matching followed by robust model fitting, as a {@code ConsistentLocalFeatureMatcher2d}
+   * with a {@code FastBasicKeypointMatcher} inside.
+   *
+   * @param name Name to report the strategy under
+   * @param threshold Ratio threshold, as for {@code FastBasicKeypointMatcher}
+   * @param fitter Robust model fitter, holds the fitted model afterwards
+   * @return The result, whose matches are the inliers of the fitted model
+   */
+  public Result consistent(String name, int threshold,
+      RobustModelFitting<Point2d, Point2d, ?> fitter) {
+    nearestDistances();
+    Timer timer = Timer.timer();
+    ConsistentLocalFeatureMatcher2d<Keypoint> matcher =
+        new ConsistentLocalFeatureMatcher2d<Keypoint>(new TableMatcher(threshold), fitter);
+    matcher.setModelFeatures(model);
+    matcher.findMatches(target);
+    return record(name, matcher.getMatches(), timer);
+  }
+
+  /**
+   * @return Results of every strategy run so far, in the order they were run
+   */
+  public List<Result> getResults() {
+    return Collections.unmodifiableList(results);
+  }
+
+  /**
+   * @return Time taken to compute the shared neighbour table, or -1 if not yet computed
+   */
+  public long getTableMillis() {
+    return tableMillis;
+  }
+
+  /**
+   * Print the matches, inliers and time of every strategy run so far.
+   *
+   * @param out Stream to print to
+   * @param reference Transform from target to model coordinates used to count inliers
+   * @param tolerance Maximum distance (in pixels) from the transformed target keypoint to its
+   *        matched model keypoint for the match to count as an inlier
+   */
+  public void printReport(PrintStream out, Matrix reference, double tolerance) {
+    out.println(String.format("%-20s %8d ms", "Neighbour table", tableMillis));
+    for (Result result : results) {
+      out.println(String.format("%-20s %8d ms  %5d matches  %5d inliers", result.getName(),
+          result.getMillis(), result.getMatches().size(),
+          result.countInliers(reference, tolerance)));
+    }
+  }
+
+  private Result record(String name, List<Pair<Keypoint>> matches, Timer timer) {
+    Result result = new Result(name, matches, timer.duration());
+    results.add(result);
+    return result;
+  }
+
+  private Pair<Keypoint> pair(int t, int m) {
+    return new Pair<Keypoint>(target.get(t), model.get(m));
+  }
+
+  /**
+   * @return Nearest model keypoint for each target keypoint passing the squared distance ratio
+   *         test used by {@code FastBasicKeypointMatcher}, or -1
+   */
+  private int[] ratioMatches(int threshold) {
+    nearestDistances();
+    float ratio = threshold * threshold;
+    int[] matches = new int[target.size()];
+    for (int t = 0; t < matches.length; t++) {
+      boolean accept = nearest[t * 2] >= 0 && (nearest[t * 2 + 1] < 0
+          || 100f * nearestDistances[t * 2] < ratio * nearestDistances[t * 2 + 1]);
+      matches[t] = accept ? nearest[t * 2] : -1;
+    }
+    return matches;
+  }
+
+  /**
+   * Compute the shared table on first use.
+   */
+  private synchronized int[] nearestDistances() {
+    if (nearestDistances != null) {
+      return nearestDistances;
+    }
+    Timer timer = Timer.timer();
+    final int dims = model.isEmpty() ? 128 : model.get(0).ivec.length;
+    final byte[] modelData = new byte[model.size() * dims];
+    for (int m = 0; m < model.size(); m++) {
+      System.arraycopy(model.get(m).ivec, 0, modelData, m * dims, dims);
+    }
+    final int numModel = model.size();
+    final int[] best = new int[target.size() * 2];
+    final int[] bestDistances = new int[target.size() * 2];
+    final int[] reverse = new int[numModel];
+    final int[] reverseDistances = new int[numModel];
+    Arrays.fill(reverse, -1);
+    Arrays.fill(reverseDistances, Integer.MAX_VALUE);
+
+    Parallel.forRange(0, target.size(), 1, new Operation<IntRange>() {
+      @Override
+      public void perform(IntRange range) {
+        // Each range keeps its own reverse table, merged once at the end
+        int[] localReverse = new int[numModel];
+        int[] localReverseDistances = new int[numModel];
+        Arrays.fill(localReverseDistances, Integer.MAX_VALUE);
+        for (int t = range.start; t < range.stop; t++) {
+          byte[] q = target.get(t).ivec;
+          int first = -1;
+          int second = -1;
+          int firstDistance = Integer.MAX_VALUE;
+          int secondDistance = Integer.MAX_VALUE;
+          for (int m = 0; m < numModel; m++) {
+            int offset = m * dims;
+            int d = 0;
+            for (int i = 0; i < dims; i++) {
+              int diff = q[i] - modelData[offset + i];
+              d += diff * diff;
+            }
+            if (d < firstDistance) {
+              second = first;
+              secondDistance = firstDistance;
+              first = m;
+              firstDistance = d;
+            } else if (d < secondDistance) {
+              second = m;
+              secondDistance = d;
+            }
+            if (d < localReverseDistances[m]) {
+              localReverseDistances[m] = d;
+              localReverse[m] = t;
+            }
+          }
+          best[t * 2] = first;
+          best[t * 2 + 1] = second;
+          bestDistances[t * 2] = firstDistance;
+          bestDistances[t * 2 + 1] = secondDistance;
+        }
+        synchronized (reverse) {
+          for (int m = 0; m < numModel; m++) {
+            // Ties go to the lowest target index, as a sequential scan would
+            if (localReverseDistances[m] < reverseDistances[m]
+                || (localReverseDistances[m] == reverseDistances[m]
+                    && localReverse[m] < reverse[m])) {
+              reverseDistances[m] = localReverseDistances[m];
+              reverse[m] = localReverse[m];
+            }
+          }
+        }
+      }
+    });
+    nearest = best;
+    reverseNearest = reverse;
+    nearestDistances = bestDistances;
+    tableMillis = timer.duration();
+    return nearestDistances;
+  }
+
+  /**
+   * Inner matcher for the consistent strategies that answers from the shared table. Only valid for
+   * this evaluation's own model and target lists.
+   */
+  private class TableMatcher implements LocalFeatureMatcher<Keypoint> {
+    private final int threshold;
+    private List<Pair<Keypoint>> matches = new ArrayList<>();
+
+    TableMatcher(int threshold) {
+      this.threshold = threshold;
+    }
+
+    @Override
+    public void setModelFeatures(List<Keypoint> modelkeys) {
+      if (modelkeys != model) {
+        throw new IllegalArgumentException("Table matcher only supports the evaluated model");
+      }
+    }
+
+    @Override
+    public boolean findMatches(List<Keypoint> keys) {
+      if (keys != target) {
+        throw new IllegalArgumentException("Table matcher only supports the evaluated target");
+      }
+      int[] ratioMatches = ratioMatches(threshold);
+      matches = new ArrayList<>();
+      for (int t = 0; t < ratioMatches.length; t++) {
+        if (ratioMatches[t] >= 0) {
+          matches.add(pair(t, ratioMatches[t]));
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public List<Pair<Keypoint>> getMatches() {
+      return matches;
+    }
+  }
+
+  /**
+   * Outcome of one strategy.
+   */
+  public static class Result {
+    private final String name;
+    private final List<Pair<Keypoint>> matches;
+    private final long millis;
+
+    Result(String name, List<Pair<Keypoint>> matches, long millis) {
+      this.name = name;
+      this.matches = matches;
+      this.millis = millis;
+    }
+
+    /**
+     * @return Name of the strategy
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return Matches as (target, model) pairs
+     */
+    public List<Pair<Keypoint>> getMatches() {
+      return matches;
+    }
+
+    /**
+     * @return Time taken by the strategy, excluding the shared table
+     */
+    public long getMillis() {
+      return millis;
+    }
+
+    /**
+     * @param transform 3x3 transform from target to model coordinates
+     * @param tolerance Maximum reprojection distance in pixels
+     * @return Number of matches consistent with the transform
+     */
+    public int countInliers(Matrix transform, double tolerance) {
+      double[][] h = transform.getArray();
+      double limit = tolerance * tolerance;
+      int inliers = 0;
+      for (Pair<Keypoint> match : matches) {
+        Keypoint t = match.firstObject();
+        Keypoint m = match.secondObject();
+        double w = h[2][0] * t.x + h[2][1] * t.y + h[2][2];
+        double dx = (h[0][0] * t.x + h[0][1] * t.y + h[0][2]) / w - m.x;
+        double dy = (h[1][0] * t.x + h[1][1] * t.y + h[1][2]) / w - m.y;
+        if (dx * dx + dy * dy <= limit) {
+          inliers++;
+        }
+      }
+      return inliers;
+    }
+  }
+
+}
@@ -0,0 +1,223 @@
+package uk.ac.soton.ecs.dsj.ch5;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.List;
+import org.openimaj.feature.local.list.MemoryLocalFeatureList;
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+
+/**
+ * Structure-of-arrays view of a list of {@link Keypoint}s backed by a single buffer (usually a
+ * memory mapped {@link KeypointStore} file).
+ * <p>
+ * The layout is a 16 byte header (magic, version, count, descriptor length) followed by the x, y,
+ * scale and orientation arrays as little endian floats and finally every descriptor's bytes back to
+ * back. Values are read straight from the buffer so matching can run without building
+ * {@code Keypoint} objects; {@link #toList()} is available where the OpenIMAJ matchers need them.
+ */
+public class PackedKeypoints {
+  static final int MAGIC = 0x4B505453; // "KPTS"
+  static final int VERSION = 1;
+  static final int HEADER_BYTES = 16;
+  private static final int DEFAULT_DESCRIPTOR_LENGTH = 128;
+
+  private final int size;
+  private final int descriptorLength;
+  private final FloatBuffer x;
+  private final FloatBuffer y;
+  private final FloatBuffer scale;
+  private final FloatBuffer ori;
+  private final ByteBuffer descriptors;
+
+  /**
+   * Wrap a buffer holding the packed layout, starting at its current position.
+   *
+   * @param buffer Packed keypoints
+   * @throws IllegalArgumentException If the buffer does not hold packed keypoints
+   */
+  PackedKeypoints(ByteBuffer buffer) {
+    ByteBuffer data = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    if (data.remaining() < HEADER_BYTES || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+      throw new IllegalArgumentException("Not a packed keypoint buffer");
+    }
+    size = data.getInt(8);
+    descriptorLength = data.getInt(12);
+    if (data.remaining() < byteSize(size, descriptorLength)) {
+      throw new IllegalArgumentException("Truncated packed keypoint buffer");
+    }
+    x = floats(data, 0);
+    y = floats(data, 1);
+    scale = floats(data, 2);
+    ori = floats(data, 3);
+    data.position(HEADER_BYTES + 16 * size);
+    descriptors = data.slice();
+  }
+
+  private FloatBuffer floats(ByteBuffer data, int array) {
+    data.position(HEADER_BYTES + 4 * size * array);
+    data.limit(data.position() + 4 * size);
+    FloatBuffer view = data.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    data.clear();
+    return view;
+  }
+
+  /**
+   * Pack keypoints into a heap buffer.
+   *
+   * @param keypoints Keypoints to pack, all descriptors must have the same length
+   * @return The packed keypoints
+   */
+  public static PackedKeypoints pack(List<? extends Keypoint> keypoints) {
+    return new PackedKeypoints(encode(keypoints));
+  }
+
+  /**
+   * Encode keypoints into the packed layout.
+   *
+   * @param keypoints Keypoints to pack, all descriptors must have the same length
+   * @return Buffer positioned at the start of the packed data
+   */
+  static ByteBuffer encode(List<? extends Keypoint> keypoints) {
+    int n = keypoints.size();
+    int length = n == 0 ? DEFAULT_DESCRIPTOR_LENGTH : keypoints.get(0).ivec.length;
+    ByteBuffer buffer =
+        ByteBuffer.allocate((int) byteSize(n, length)).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(length);
+    for (Keypoint k : keypoints) {
+      buffer.putFloat(k.x);
+    }
+    for (Keypoint k : keypoints) {
+      buffer.putFloat(k.y);
+    }
+    for (Keypoint k : keypoints) {
+      buffer.putFloat(k.scale);
+    }
+    for (Keypoint k : keypoints) {
+      buffer.putFloat(k.ori);
+    }
+    for (Keypoint k : keypoints) {
+      if (k.ivec.length != length) {
+        throw new IllegalArgumentException("Descriptors must all have the same length");
+      }
+      buffer.put(k.ivec);
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static long byteSize(int n, int descriptorLength) {
+    return HEADER_BYTES + (long) n * (16 + descriptorLength);
+  }
+
+  /**
+   * @return Number of keypoints
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return Number of bytes in each descriptor
+   */
+  public int getDescriptorLength() {
+    return descriptorLength;
+  }
+
+  /**
+   * @param i Keypoint index
+   * @return X position of the keypoint
+   */
+  public float getX(int i) {
+    return x.get(i);
+  }
+
+  /**
+   * @param i Keypoint index
+   * @return Y position of the keypoint
+   */
+  public float getY(int i) {
+    return y.get(i);
+  }
+
+  /**
+   * @param i Keypoint index
+   * @return Scale of the keypoint
+   */
+  public float getScale(int i) {
+    return scale.get(i);
+  }
+
+  /**
+   * @param i Keypoint index
+   * @return Orientation of the keypoint
+   */
+  public float getOrientation(int i) {
+    return ori.get(i);
+  }
+
+  /**
+   * @param i Keypoint index
+   * @param d Descriptor dimension
+   * @return Descriptor value (signed, as stored in {@link Keypoint#ivec})
+   */
+  public byte getDescriptor(int i, int d) {
+    return descriptors.get(i * descriptorLength + d);
+  }
+
+  /**
+   * Copy a descriptor into a caller supplied array.
+   *
+   * @param i Keypoint index
+   * @param out Array of at least {@link #getDescriptorLength()} bytes
+   * @return The output array
+   */
+  public byte[] getDescriptor(int i, byte[] out) {
+    int offset = i * descriptorLength;
+    for (int d = 0; d < descriptorLength; d++) {
+      out[d] = descriptors.get(offset + d);
+    }
+    return out;
+  }
+
+  /**
+   * Squared Euclidean distance between two descriptors, the same measure used by the OpenIMAJ
+   * keypoint matchers.
+   *
+   * @param i Keypoint index in this list
+   * @param other List holding the other keypoint (may be this list)
+   * @param j Keypoint index in the other list
+   * @return Squared distance between the descriptors
+   */
+  public int distanceSquared(int i, PackedKeypoints other, int j) {
+    int a = i * descriptorLength;
+    int b = j * other.descriptorLength;
+    int sum = 0;
+    for (int d = 0; d < descriptorLength; d++) {
+      int diff = descriptors.get(a + d) - other.descriptors.get(b + d);
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  /**
+   * @param i Keypoint index
+   * @return A new keypoint object holding a copy of the keypoint
+   */
+  public Keypoint getKeypoint(int i) {
+    return new Keypoint(getX(i), getY(i), getOrientation(i), getScale(i),
+        getDescriptor(i, new byte[descriptorLength]));
+  }
+
+  /**
+   * @return All the keypoints as objects, for use with the OpenIMAJ matchers
+   */
+  public MemoryLocalFeatureList<Keypoint> toList() {
+    MemoryLocalFeatureList<Keypoint> list = new MemoryLocalFeatureList<>(descriptorLength, size);
+    for (int i = 0; i < size; i++) {
+      list.add(getKeypoint(i));
+    }
+    return list;
+  }
+
+}
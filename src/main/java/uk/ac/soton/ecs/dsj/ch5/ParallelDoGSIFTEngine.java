@@ -0,0 +1,319 @@
+package uk.ac.soton.ecs.dsj.ch5;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.feature.local.list.MemoryLocalFeatureList;
+import org.openimaj.image.FImage;
+import org.openimaj.image.analysis.pyramid.OctaveProcessor;
+import org.openimaj.image.analysis.pyramid.gaussian.GaussianOctave;
+import org.openimaj.image.analysis.pyramid.gaussian.GaussianPyramid;
+import org.openimaj.image.analysis.pyramid.gaussian.GaussianPyramidOptions;
+import org.openimaj.image.feature.local.descriptor.gradient.SIFTFeatureProvider;
+import org.openimaj.image.feature.local.detector.dog.collector.OctaveKeypointCollector;
+import org.openimaj.image.feature.local.detector.dog.extractor.DominantOrientationExtractor;
+import org.openimaj.image.feature.local.detector.dog.extractor.GradientFeatureExtractor;
+import org.openimaj.image.feature.local.detector.dog.extractor.OrientationHistogramExtractor;
+import org.openimaj.image.feature.local.detector.dog.pyramid.DoGOctaveExtremaFinder;
+import org.openimaj.image.feature.local.detector.pyramid.BasicOctaveExtremaFinder;
+import org.openimaj.image.feature.local.detector.pyramid.OctaveInterestPointFinder;
+import org.openimaj.image.feature.local.detector.pyramid.OctaveInterestPointListener;
+import org.openimaj.image.feature.local.engine.DoGSIFTEngineOptions;
+import org.openimaj.image.feature.local.engine.Engine;
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.GlobalExecutorPool;
+import org.openimaj.util.parallel.Parallel;
+
+/**
+ * Multi-core alternative to {@code DoGSIFTEngine}, giving the same keypoints in the same order.
+ * <p>
+ * The Gaussian pyramid is still built one octave after another, but each octave is handed to the
+ * shared thread pool for extrema detection as soon as it is built, so detection overlaps with the
+ * remaining blurring. The extrema are then described in parallel, in runs sharing an octave and
+ * scale so each run computes its gradient images once.
+ * <p>
+ * Images larger than the tile size are split into tiles that overlap by a margin, and the tiles are
+ * processed in parallel. Each keypoint is kept only by the tile whose core (the tile without its
+ * margin) holds it, which removes the duplicates found in the overlaps. Tiles start on multiples of
+ * {@value #TILE_ALIGNMENT} pixels so the pyramid samples the same pixels as for the whole image.
+ * Keypoints whose support is wider than the margin, and scales coarser than a tile allows, can
+ * differ from whole image extraction.
+ */
+public class ParallelDoGSIFTEngine implements Engine<Keypoint, FImage> {
+  /** Default size of the core of each tile */
+  public static final int DEFAULT_TILE_SIZE = 2048;
+  /** Default margin added around each tile core */
+  public static final int DEFAULT_TILE_OVERLAP = 128;
+  /** Tiles start on multiples of this many pixels */
+  public static final int TILE_ALIGNMENT = 64;
+
+  private final DoGSIFTEngineOptions<FImage> options;
+  private int tileSize = DEFAULT_TILE_SIZE;
+  private int tileOverlap = DEFAULT_TILE_OVERLAP;
+
+  /**
+   * Construct with the default DoG-SIFT options.
+   */
+  public ParallelDoGSIFTEngine() {
+    this(new DoGSIFTEngineOptions<FImage>());
+  }
+
+  /**
+   * @param options Options, as for {@code DoGSIFTEngine}
+   */
+  public ParallelDoGSIFTEngine(DoGSIFTEngineOptions<FImage> options) {
+    this.options = options;
+  }
+
+  /**
+   * @return The options, which should not be changed while features are being found
+   */
+  public DoGSIFTEngineOptions<FImage> getOptions() {
+    return options;
+  }
+
+  /**
+   * @param tileSize Size of the core of each tile, images no larger than this are not tiled
+   */
+  public void setTileSize(int tileSize) {
+    if (tileSize < TILE_ALIGNMENT) {
+      throw new IllegalArgumentException("Tiles must be at least " + TILE_ALIGNMENT + " pixels");
+    }
+    this.tileSize = tileSize;
+  }
+
+  /**
+   * @param tileOverlap Margin added around each tile core, larger margins reproduce more of the
+   *        large scale keypoints near tile seams
+   */
+  public void setTileOverlap(int tileOverlap) {
+    this.tileOverlap = tileOverlap;
+  }
+
+  @Override
+  public LocalFeatureList<Keypoint> findFeatures(FImage image) {
+    if (image.getWidth() <= tileSize && image.getHeight() <= tileSize) {
+      return extract(image, true);
+    }
+    return findFeaturesTiled(image);
+  }
+
+  /**
+   * Extract each tile on its own thread, keeping the keypoints in each tile's core.
+   */
+  private LocalFeatureList<Keypoint> findFeaturesTiled(final FImage image) {
+    final int tilesX = (image.getWidth() + tileSize - 1) / tileSize;
+    final int tilesY = (image.getHeight() + tileSize - 1) / tileSize;
+    final List<List<Keypoint>> tiles = new ArrayList<>();
+    for (int i = 0; i < tilesX * tilesY; i++) {
+      tiles.add(null);
+    }
+
+    Parallel.forIndex(0, tilesX * tilesY, 1, new Operation<Integer>() {
+      @Override
+      public void perform(Integer tile) {
+        int coreX = (tile % tilesX) * tileSize;
+        int coreY = (tile / tilesX) * tileSize;
+        int coreX1 = Math.min(coreX + tileSize, image.getWidth());
+        int coreY1 = Math.min(coreY + tileSize, image.getHeight());
+        int x = Math.max(0, (coreX - tileOverlap) / TILE_ALIGNMENT * TILE_ALIGNMENT);
+        int y = Math.max(0, (coreY - tileOverlap) / TILE_ALIGNMENT * TILE_ALIGNMENT);
+        int x1 = Math.min(coreX1 + tileOverlap, image.getWidth());
+        int y1 = Math.min(coreY1 + tileOverlap, image.getHeight());
+
+        List<Keypoint> kept = new ArrayList<>();
+        for (Keypoint k : extract(image.extractROI(x, y, x1 - x, y1 - y), false)) {
+          k.x += x;
+          k.y += y;
+          if (k.x >= coreX && k.x < coreX1 && k.y >= coreY && k.y < coreY1) {
+            kept.add(k);
+          }
+        }
+        tiles.set(tile, kept);
+      }
+    });
+
+    LocalFeatureList<Keypoint> keypoints = new MemoryLocalFeatureList<>();
+    for (List<Keypoint> tile : tiles) {
+      keypoints.addAll(tile);
+    }
+    return keypoints;
+  }
+
+  /**
+   * Build the pyramid, find the extrema of each octave and describe them, using the thread pool
+   * when parallel is set.
+   */
+  private LocalFeatureList<Keypoint> extract(FImage image, final boolean parallel) {
+    final List<OctaveExtrema> octaves = new ArrayList<>();
+    final List<Future<?>> detections = new ArrayList<>();
+    GaussianPyramidOptions<FImage> pyramidOptions = new GaussianPyramidOptions<>(options);
+    pyramidOptions.setKeepOctaves(false);
+    pyramidOptions.setPyramidProcessor(null);
+    pyramidOptions.setOctaveProcessor(new OctaveProcessor<GaussianOctave<FImage>, FImage>() {
+      @Override
+      public void process(GaussianOctave<FImage> octave) {
+        OctaveExtrema extrema = new OctaveExtrema(octave);
+        octaves.add(extrema);
+        if (parallel) {
+          detections.add(GlobalExecutorPool.getPool().submit(extrema));
+        } else {
+          extrema.run();
+        }
+      }
+    });
+    new GaussianPyramid<>(pyramidOptions).process(image);
+    for (Future<?> detection : detections) {
+      try {
+        detection.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while finding extrema", e);
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("Unable to find extrema", e.getCause());
+      }
+    }
+
+    // Describe runs of extrema sharing a scale image, in the order they were found
+    final List<ExtremaRun> runs = new ArrayList<>();
+    for (OctaveExtrema extrema : octaves) {
+      extrema.addRuns(runs);
+    }
+    final List<LocalFeatureList<Keypoint>> described = new ArrayList<>();
+    for (int i = 0; i < runs.size(); i++) {
+      described.add(null);
+    }
+    Operation<Integer> describe = new Operation<Integer>() {
+      @Override
+      public void perform(Integer run) {
+        described.set(run, runs.get(run).describe());
+      }
+    };
+    if (parallel) {
+      Parallel.forIndex(0, runs.size(), 1, describe);
+    } else {
+      for (int i = 0; i < runs.size(); i++) {
+        describe.perform(i);
+      }
+    }
+
+    LocalFeatureList<Keypoint> keypoints = new MemoryLocalFeatureList<>();
+    for (LocalFeatureList<Keypoint> run : described) {
+      keypoints.addAll(run);
+    }
+    return keypoints;
+  }
+
+  /**
+   * Feature extractor configured as in {@code DoGSIFTEngine}, not thread safe so one per run.
+   */
+  private GradientFeatureExtractor createExtractor() {
+    OrientationHistogramExtractor histograms =
+        new OrientationHistogramExtractor(options.getNumOriHistBins(), options.getScaling(),
+            options.getSmoothingIterations(), options.getSamplingSize());
+    return new GradientFeatureExtractor(
+        new DominantOrientationExtractor(options.getPeakThreshold(), histograms),
+        new SIFTFeatureProvider(options.getNumOriBins(), options.getNumSpatialBins(),
+            options.getValueThreshold(), options.getGaussianSigma()),
+        options.getMagnificationFactor() * options.getNumSpatialBins());
+  }
+
+  /**
+   * Finds and records the extrema of one octave as (scale index, x, y, scale).
+   */
+  private class OctaveExtrema
+      implements Runnable, OctaveInterestPointListener<GaussianOctave<FImage>, FImage> {
+    private final GaussianOctave<FImage> octave;
+    private final List<float[]> points = new ArrayList<>();
+
+    OctaveExtrema(GaussianOctave<FImage> octave) {
+      this.octave = octave;
+    }
+
+    @Override
+    public void run() {
+      BasicOctaveExtremaFinder inner = new BasicOctaveExtremaFinder(
+          options.getMagnitudeThreshold(), options.getEigenvalueRatio());
+      new DoGOctaveExtremaFinder(inner, this).process(octave);
+    }
+
+    @Override
+    public void foundInterestPoint(OctaveInterestPointFinder<GaussianOctave<FImage>, FImage> finder,
+        float x, float y, float octaveScale) {
+      points.add(new float[] {finder.getCurrentScaleIndex(), x, y, octaveScale});
+    }
+
+    void addRuns(List<ExtremaRun> runs) {
+      int start = 0;
+      for (int i = 1; i <= points.size(); i++) {
+        if (i == points.size() || points.get(i)[0] != points.get(start)[0]) {
+          runs.add(new ExtremaRun(octave, (int) points.get(start)[0], points.subList(start, i)));
+          start = i;
+        }
+      }
+    }
+  }
+
+  /**
+   * Extrema found at the same scale of an octave, as a finder that reports them again to its
+   * listener when processing their octave, so they can be described by a collector.
+   */
+  private class ExtremaRun implements OctaveInterestPointFinder<GaussianOctave<FImage>, FImage> {
+    private final GaussianOctave<FImage> octave;
+    private final int scaleIndex;
+    private final List<float[]> points;
+    private OctaveInterestPointListener<GaussianOctave<FImage>, FImage> listener;
+
+    ExtremaRun(GaussianOctave<FImage> octave, int scaleIndex, List<float[]> points) {
+      this.octave = octave;
+      this.scaleIndex = scaleIndex;
+      this.points = points;
+    }
+
+    LocalFeatureList<Keypoint> describe() {
+      OctaveKeypointCollector<FImage> collector = new OctaveKeypointCollector<>(createExtractor());
+      setOctaveInterestPointListener(collector);
+      process(octave);
+      return collector.getFeatures();
+    }
+
+    @Override
+    public GaussianOctave<FImage> getOctave() {
+      return octave;
+    }
+
+    @Override
+    public int getCurrentScaleIndex() {
+      return scaleIndex;
+    }
+
+    @Override
+    public void setOctaveInterestPointListener(
+        OctaveInterestPointListener<GaussianOctave<FImage>, FImage> listener) {
+      this.listener = listener;
+    }
+
+    @Override
+    public OctaveInterestPointListener<GaussianOctave<FImage>, FImage>
+        getOctaveInterestPointListener() {
+      return listener;
+    }
+
+    @Override
+    public void process(GaussianOctave<FImage> octave) {
+      if (octave != this.octave) {
+        throw new IllegalArgumentException("Extrema were found in a different octave");
+      }
+      if (listener == null) {
+        return;
+      }
+      for (float[] point : points) {
+        listener.foundInterestPoint(this, point[1], point[2], point[3]);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,583 @@
+package uk.ac.soton.ecs.dsj.ch5;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.openimaj.math.geometry.point.Point2d;
+import org.openimaj.math.geometry.transforms.HomographyModel;
+import org.openimaj.math.model.fit.RobustModelFitting;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.pair.IndependentPair;
+import org.openimaj.util.parallel.Parallel;
+
+/**
+ * Parallel RANSAC for affine transforms and homographies between matched 2D points, a drop-in
+ * alternative to {@code RobustAffineTransformEstimator} and {@code RobustHomographyEstimator}.
+ * <p>
+ * Hypotheses are tested in rounds shared between the cores, each scored only until it can no longer
+ * beat the best of the earlier rounds. Each hypothesis that does is refined by least squares on its
+ * inliers (as in LO-RANSAC), and after each round the iteration limit is lowered to the number of
+ * samples needed to draw an all-inlier sample with the requested confidence, so easy problems
+ * finish after a round. Every hypothesis draws its sample from a generator seeded by the fixed seed
+ * and its number, and each round's best is taken in the order drawn, so a fit is repeatable
+ * whatever the number of cores or the thread timing.
+ * <p>
+ * Inliers are tested as by the OpenIMAJ estimators, with the same threshold: a squared transfer
+ * error in pixels at or below it, the forward error for affine transforms (as
+ * {@code AlgebraicResidual2d} of an affine model) and the sum of the forward and backward errors
+ * for homographies (as {@code SymmetricTransferResidual2d}). The model maps the first point of each
+ * pair to the second and is always a {@link HomographyModel} (affine transforms have a last row of
+ * 0, 0, 1), so {@code getModel().getTransform()} works as for the OpenIMAJ estimators.
+ */
+public class ParallelRansac implements RobustModelFitting<Point2d, Point2d, HomographyModel> {
+  /** Default seed for sampling, fixed so fits are repeatable */
+  public static final long DEFAULT_SEED = 0;
+  /** Default probability of having drawn at least one all-inlier sample before stopping */
+  public static final double DEFAULT_CONFIDENCE = 0.995;
+
+  // Hypotheses tested between updates of the best, fixed so the fit does not depend on the cores
+  private static final int ROUND_SIZE = 128;
+  private static final int LO_ITERATIONS = 4;
+
+  /**
+   * Transform to estimate.
+   */
+  public enum Transform {
+    /** 6 degrees of freedom, estimated from 3 points */
+    AFFINE(3),
+    /** 8 degrees of freedom, estimated from 4 points */
+    HOMOGRAPHY(4);
+
+    private final int sampleSize;
+
+    private Transform(int sampleSize) {
+      this.sampleSize = sampleSize;
+    }
+  }
+
+  private final Transform transform;
+  private final double threshold;
+  private final int maxIterations;
+  private final double confidence;
+  private long seed = DEFAULT_SEED;
+
+  private HomographyModel model = new HomographyModel();
+  private List<IndependentPair<Point2d, Point2d>> inliers = new ArrayList<>();
+  private List<IndependentPair<Point2d, Point2d>> outliers = new ArrayList<>();
+  private int iterations;
+
+  /**
+   * Construct with the default confidence.
+   *
+   * @param transform Transform to estimate
+   * @param threshold Maximum squared transfer error of an inlier
+   * @param maxIterations Maximum number of hypotheses to test
+   */
+  public ParallelRansac(Transform transform, double threshold, int maxIterations) {
+    this(transform, threshold, maxIterations, DEFAULT_CONFIDENCE);
+  }
+
+  /**
+   * @param transform Transform to estimate
+   * @param threshold Maximum squared transfer error of an inlier
+   * @param maxIterations Maximum number of hypotheses to test
+   * @param confidence Probability of having drawn an all-inlier sample before stopping early
+   */
+  public ParallelRansac(Transform transform, double threshold, int maxIterations,
+      double confidence) {
+    this.transform = transform;
+    this.threshold = threshold;
+    this.maxIterations = maxIterations;
+    this.confidence = confidence;
+  }
+
+  /**
+   * @param seed Seed for sampling, each hypothesis draws from its own generator derived from it
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * @return Number of hypotheses drawn by the last fit
+   */
+  public int getIterations() {
+    return iterations;
+  }
+
+  @Override
+  public boolean fitData(final List<? extends IndependentPair<Point2d, Point2d>> data) {
+    final int n = data.size();
+    final int s = transform.sampleSize;
+    inliers = new ArrayList<>();
+    outliers = new ArrayList<>(data);
+    iterations = 0;
+    if (n < s) {
+      return false;
+    }
+
+    final Points points = new Points(data);
+    final int workers = Math.min(Runtime.getRuntime().availableProcessors(), ROUND_SIZE);
+    final double[][] roundModels = new double[ROUND_SIZE][];
+    final int[] roundCounts = new int[ROUND_SIZE];
+    double[] best = null;
+    int count = s - 1;
+    int limit = maxIterations;
+
+    while (iterations < limit) {
+      final int first = iterations;
+      final int stop = Math.min(first + ROUND_SIZE, limit);
+      final int toBeat = count;
+      Parallel.forIndex(0, workers, 1, new Operation<Integer>() {
+        @Override
+        public void perform(Integer worker) {
+          Random random = new Random();
+          int[] sample = new int[s];
+          boolean[] mask = new boolean[n];
+          for (int i = first + worker; i < stop; i += workers) {
+            roundModels[i - first] = null;
+            // Each hypothesis has its own generator, so the same are drawn however they are shared
+            random.setSeed(seed + 0x9E3779B97F4A7C15L * i);
+            sample(random, n, sample);
+            double[] h = new double[9];
+            if (!points.solveMinimal(transform, sample, h)) {
+              continue;
+            }
+            // Abandon the hypothesis once it cannot beat the best of the earlier rounds
+            int hypothesisCount = points.score(transform, h, threshold, toBeat, null);
+            if (hypothesisCount <= toBeat) {
+              continue;
+            }
+            roundCounts[i - first] = localOptimise(points, h, hypothesisCount, mask);
+            roundModels[i - first] = h;
+          }
+        }
+      });
+
+      // Take the best of the round in the order drawn, so the fit does not depend on timing
+      for (int i = 0; i < stop - first; i++) {
+        if (roundModels[i] != null && roundCounts[i] > count) {
+          best = roundModels[i];
+          count = roundCounts[i];
+        }
+      }
+      iterations = stop;
+      if (best != null) {
+        limit = Math.min(limit, requiredIterations(count, n));
+      }
+    }
+
+    if (best == null) {
+      return false;
+    }
+
+    boolean[] mask = new boolean[n];
+    points.score(transform, best, threshold, 0, mask);
+    outliers = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      (mask[i] ? inliers : outliers).add(data.get(i));
+    }
+    model = new HomographyModel();
+    model.setTransform(new Matrix(best, 3).transpose());
+    return true;
+  }
+
+  /**
+   * Refit to the inliers of a hypothesis by least squares, starting from a relaxed threshold that
+   * shrinks to the real one (as in LO-RANSAC), keeping each refit that raises the inlier count.
+   */
+  private int localOptimise(Points points, double[] h, int count, boolean[] mask) {
+    double[] refined = new double[9];
+    for (int i = LO_ITERATIONS; i > 0; i--) {
+      points.score(transform, h, threshold * i, 0, mask);
+      if (!points.solveLeastSquares(transform, mask, refined)) {
+        continue;
+      }
+      int refinedCount = points.score(transform, refined, threshold, count, null);
+      if (refinedCount > count) {
+        System.arraycopy(refined, 0, h, 0, 9);
+        count = refinedCount;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Number of samples needed to draw one made up only of inliers with the required confidence.
+   */
+  private int requiredIterations(int count, int n) {
+    double allInliers = Math.pow((double) count / n, transform.sampleSize);
+    if (allInliers >= 1) {
+      return 1;
+    }
+    double required = Math.log(1 - confidence) / Math.log1p(-allInliers);
+    return required >= maxIterations ? maxIterations : (int) Math.ceil(required);
+  }
+
+  private static void sample(Random random, int n, int[] sample) {
+    for (int i = 0; i < sample.length; i++) {
+      int index;
+      boolean repeated;
+      do {
+        index = random.nextInt(n);
+        repeated = false;
+        for (int j = 0; j < i; j++) {
+          repeated |= sample[j] == index;
+        }
+      } while (repeated);
+      sample[i] = index;
+    }
+  }
+
+
+  @Override
+  public int numItemsToEstimate() {
+    return transform.sampleSize;
+  }
+
+  @Override
+  public HomographyModel getModel() {
+    return model;
+  }
+
+  @Override
+  public List<? extends IndependentPair<Point2d, Point2d>> getInliers() {
+    return inliers;
+  }
+
+  @Override
+  public List<? extends IndependentPair<Point2d, Point2d>> getOutliers() {
+    return outliers;
+  }
+
+  /**
+   * Point pairs in pixel coordinates plus a normalised copy (centred, mean distance of root 2) for
+   * well conditioned estimation. Transforms are 3x3 row-major arrays in pixel coordinates.
+   */
+  private static class Points {
+    final int n;
+    final double[] x1, y1, x2, y2;
+    final double[] nx1, ny1, nx2, ny2;
+    // Similarity transforms from pixel to normalised coordinates
+    final double[] t1, t2;
+
+    Points(List<? extends IndependentPair<Point2d, Point2d>> data) {
+      n = data.size();
+      x1 = new double[n];
+      y1 = new double[n];
+      x2 = new double[n];
+      y2 = new double[n];
+      for (int i = 0; i < n; i++) {
+        Point2d a = data.get(i).firstObject();
+        Point2d b = data.get(i).secondObject();
+        x1[i] = a.getX();
+        y1[i] = a.getY();
+        x2[i] = b.getX();
+        y2[i] = b.getY();
+      }
+      nx1 = new double[n];
+      ny1 = new double[n];
+      nx2 = new double[n];
+      ny2 = new double[n];
+      t1 = normalise(x1, y1, nx1, ny1);
+      t2 = normalise(x2, y2, nx2, ny2);
+    }
+
+    private static double[] normalise(double[] x, double[] y, double[] nx, double[] ny) {
+      int n = x.length;
+      double cx = 0;
+      double cy = 0;
+      for (int i = 0; i < n; i++) {
+        cx += x[i];
+        cy += y[i];
+      }
+      cx /= n;
+      cy /= n;
+      double dist = 0;
+      for (int i = 0; i < n; i++) {
+        dist += Math.hypot(x[i] - cx, y[i] - cy);
+      }
+      double scale = dist > 0 ? Math.sqrt(2) * n / dist : 1;
+      for (int i = 0; i < n; i++) {
+        nx[i] = (x[i] - cx) * scale;
+        ny[i] = (y[i] - cy) * scale;
+      }
+      return new double[] {scale, 0, -scale * cx, 0, scale, -scale * cy, 0, 0, 1};
+    }
+
+    /**
+     * Count the pairs within the threshold, optionally marking them in a mask. Without a mask,
+     * returns early (with a count no greater than {@code toBeat}) once {@code toBeat} cannot be
+     * exceeded.
+     */
+    int score(Transform transform, double[] h, double threshold, int toBeat, boolean[] mask) {
+      double[] inv = null;
+      if (transform == Transform.HOMOGRAPHY) {
+        inv = invert(h);
+        if (inv == null) {
+          return 0;
+        }
+      }
+      int count = 0;
+      for (int i = 0; i < n; i++) {
+        double error = transfer(h, x1[i], y1[i], x2[i], y2[i]);
+        if (inv != null) {
+          error += transfer(inv, x2[i], y2[i], x1[i], y1[i]);
+        }
+        boolean inlier = error <= threshold;
+        if (inlier) {
+          count++;
+        }
+        if (mask != null) {
+          mask[i] = inlier;
+        } else if (count + n - i - 1 <= toBeat) {
+          return count;
+        }
+      }
+      return count;
+    }
+
+    private static double transfer(double[] h, double x, double y, double u, double v) {
+      double w = h[6] * x + h[7] * y + h[8];
+      double dx = (h[0] * x + h[1] * y + h[2]) / w - u;
+      double dy = (h[3] * x + h[4] * y + h[5]) / w - v;
+      double error = dx * dx + dy * dy;
+      return Double.isNaN(error) ? Double.POSITIVE_INFINITY : error;
+    }
+
+    /**
+     * Solve exactly for the transform through a minimal sample, returning false if degenerate.
+     */
+    boolean solveMinimal(Transform transform, int[] sample, double[] h) {
+      double[] hn = new double[9];
+      if (transform == Transform.AFFINE) {
+        double[] m = new double[9];
+        double[] u = new double[3];
+        double[] v = new double[3];
+        for (int r = 0; r < 3; r++) {
+          int i = sample[r];
+          m[r * 3] = nx1[i];
+          m[r * 3 + 1] = ny1[i];
+          m[r * 3 + 2] = 1;
+          u[r] = nx2[i];
+          v[r] = ny2[i];
+        }
+        if (!solve3(m, u, hn, 0) || !solve3(m, v, hn, 3)) {
+          return false;
+        }
+        hn[8] = 1;
+      } else {
+        // Direct linear transform with the last element fixed at 1
+        double[][] a = new double[8][9];
+        for (int r = 0; r < 4; r++) {
+          int i = sample[r];
+          double x = nx1[i];
+          double y = ny1[i];
+          double u = nx2[i];
+          double v = ny2[i];
+          double[] row = a[2 * r];
+          row[0] = x;
+          row[1] = y;
+          row[2] = 1;
+          row[6] = -u * x;
+          row[7] = -u * y;
+          row[8] = u;
+          row = a[2 * r + 1];
+          row[3] = x;
+          row[4] = y;
+          row[5] = 1;
+          row[6] = -v * x;
+          row[7] = -v * y;
+          row[8] = v;
+        }
+        if (!eliminate(a, hn)) {
+          return false;
+        }
+        hn[8] = 1;
+      }
+      denormalise(hn, h);
+      return true;
+    }
+
+    /**
+     * Least squares fit to the masked pairs, returning false if it is degenerate.
+     */
+    boolean solveLeastSquares(Transform transform, boolean[] mask, double[] h) {
+      double[] hn = new double[9];
+      if (transform == Transform.AFFINE) {
+        double[] ata = new double[9];
+        double[] atu = new double[3];
+        double[] atv = new double[3];
+        for (int i = 0; i < n; i++) {
+          if (!mask[i]) {
+            continue;
+          }
+          double[] p = {nx1[i], ny1[i], 1};
+          for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 3; c++) {
+              ata[r * 3 + c] += p[r] * p[c];
+            }
+            atu[r] += p[r] * nx2[i];
+            atv[r] += p[r] * ny2[i];
+          }
+        }
+        if (!solve3(ata, atu, hn, 0) || !solve3(ata, atv, hn, 3)) {
+          return false;
+        }
+        hn[8] = 1;
+      } else {
+        // Direct linear transform, the solution is the eigenvector of A'A with least eigenvalue
+        double[][] ata = new double[9][9];
+        double[] r1 = new double[9];
+        double[] r2 = new double[9];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+          if (!mask[i]) {
+            continue;
+          }
+          count++;
+          double x = nx1[i];
+          double y = ny1[i];
+          double u = nx2[i];
+          double v = ny2[i];
+          r1[0] = x;
+          r1[1] = y;
+          r1[2] = 1;
+          r1[6] = -u * x;
+          r1[7] = -u * y;
+          r1[8] = -u;
+          r2[3] = x;
+          r2[4] = y;
+          r2[5] = 1;
+          r2[6] = -v * x;
+          r2[7] = -v * y;
+          r2[8] = -v;
+          for (int r = 0; r < 9; r++) {
+            for (int c = r; c < 9; c++) {
+              ata[r][c] += r1[r] * r1[c] + r2[r] * r2[c];
+            }
+          }
+        }
+        if (count < 4) {
+          return false;
+        }
+        for (int r = 0; r < 9; r++) {
+          for (int c = 0; c < r; c++) {
+            ata[r][c] = ata[c][r];
+          }
+        }
+        // Eigenvalues of a symmetric matrix are returned in ascending order
+        Matrix vectors = new EigenvalueDecomposition(new Matrix(ata)).getV();
+        for (int i = 0; i < 9; i++) {
+          hn[i] = vectors.get(i, 0);
+        }
+      }
+      denormalise(hn, h);
+      return true;
+    }
+
+    /**
+     * Convert a normalised transform to pixel coordinates, scaled so the last element is 1.
+     */
+    private void denormalise(double[] hn, double[] h) {
+      // inverse(t2) * hn * t1, where inverse(t2) undoes a scale and translation
+      double[] tmp = multiply(hn, t1);
+      double s = t2[0];
+      double cx = -t2[2] / s;
+      double cy = -t2[5] / s;
+      for (int c = 0; c < 3; c++) {
+        h[c] = tmp[c] / s + cx * tmp[6 + c];
+        h[3 + c] = tmp[3 + c] / s + cy * tmp[6 + c];
+        h[6 + c] = tmp[6 + c];
+      }
+      double w = h[8];
+      if (w != 0) {
+        for (int i = 0; i < 9; i++) {
+          h[i] /= w;
+        }
+      }
+    }
+
+    private static double[] multiply(double[] a, double[] b) {
+      double[] out = new double[9];
+      for (int r = 0; r < 3; r++) {
+        for (int c = 0; c < 3; c++) {
+          out[r * 3 + c] = a[r * 3] * b[c] + a[r * 3 + 1] * b[3 + c] + a[r * 3 + 2] * b[6 + c];
+        }
+      }
+      return out;
+    }
+
+    private static double det3(double[] m) {
+      return m[0] * (m[4] * m[8] - m[5] * m[7]) - m[1] * (m[3] * m[8] - m[5] * m[6])
+          + m[2] * (m[3] * m[7] - m[4] * m[6]);
+    }
+
+    private static double[] invert(double[] m) {
+      double det = det3(m);
+      if (Math.abs(det) < 1e-12) {
+        return null;
+      }
+      return new double[] {(m[4] * m[8] - m[5] * m[7]) / det, (m[2] * m[7] - m[1] * m[8]) / det,
+          (m[1] * m[5] - m[2] * m[4]) / det, (m[5] * m[6] - m[3] * m[8]) / det,
+          (m[0] * m[8] - m[2] * m[6]) / det, (m[2] * m[3] - m[0] * m[5]) / det,
+          (m[3] * m[7] - m[4] * m[6]) / det, (m[1] * m[6] - m[0] * m[7]) / det,
+          (m[0] * m[4] - m[1] * m[3]) / det};
+    }
+
+    /**
+     * Solve a 3x3 system by Cramer's rule into out[offset, offset + 3).
+     */
+    private static boolean solve3(double[] m, double[] b, double[] out, int offset) {
+      double det = det3(m);
+      if (Math.abs(det) < 1e-9) {
+        return false;
+      }
+      for (int c = 0; c < 3; c++) {
+        double[] mc = m.clone();
+        for (int r = 0; r < 3; r++) {
+          mc[r * 3 + c] = b[r];
+        }
+        out[offset + c] = det3(mc) / det;
+      }
+      return true;
+    }
+
+    /**
+     * Gaussian elimination with partial pivoting on an 8x9 augmented system.
+     */
+    private static boolean eliminate(double[][] a, double[] out) {
+      for (int col = 0; col < 8; col++) {
+        int pivot = col;
+        for (int r = col + 1; r < 8; r++) {
+          if (Math.abs(a[r][col]) > Math.abs(a[pivot][col])) {
+            pivot = r;
+          }
+        }
+        if (Math.abs(a[pivot][col]) < 1e-10) {
+          return false;
+        }
+        double[] tmp = a[col];
+        a[col] = a[pivot];
+        a[pivot] = tmp;
+        for (int r = col + 1; r < 8; r++) {
+          double f = a[r][col] / a[col][col];
+          for (int c = col; c < 9; c++) {
+            a[r][c] -= f * a[col][c];
+          }
+        }
+      }
+      for (int r = 7; r >= 0; r--) {
+        double sum = a[r][8];
+        for (int c = r + 1; c < 8; c++) {
+          sum -= a[r][c] * out[c];
+        }
+        out[r] = sum / a[r][r];
+      }
+      return true;
+    }
+  }
+
+}
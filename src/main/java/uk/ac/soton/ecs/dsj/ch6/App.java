@@ -4,9 +4,10 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map.Entry;
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
 import org.openimaj.data.dataset.MapBackedDataset;
 import org.openimaj.data.dataset.VFSGroupDataset;
-import org.openimaj.data.dataset.VFSListDataset;
 import org.openimaj.image.DisplayUtilities;
 import org.openimaj.image.FImage;
 import org.openimaj.image.ImageUtilities;
@@ -21,16 +22,24 @@ public class App {
   private static final String TEST_WINDOW_ID = "TEST_WINDOW";
 
   public static void main(String[] args) {
-    VFSGroupDataset<FImage> groupedFaces = null;
+    GroupedDataset<String, ? extends ListDataset<FImage>, FImage> faces = null;
     try {
       URI facesURI = new URI(App.class.getResource("/att_faces.zip").toString());
-      groupedFaces =
+      VFSGroupDataset<FImage> groupedFaces =
           new VFSGroupDataset<FImage>("zip:" + facesURI.toString(), ImageUtilities.FIMAGE_READER);
 
+      // Each face is read at most once below, so decode straight from the zip
+      faces = groupedFaces;
+      // !!! Alternative method - pack the faces on the first run, then read them memory mapped
+      // faces = PackedImageDataset.openOrCreate(PackedImageDataset.getDefaultFile("att_faces"),
+      // groupedFaces);
+      // !!! Alternative method - decode each face once into an off-heap cache, only worth it when
+      // faces are read more than once (e.g. drawing several random faces per group)
+      // faces = new CachedGroupDataset(groupedFaces, new FImageCache());
     } catch (Exception e) {
       e.printStackTrace();
     } finally {
-      if (groupedFaces == null) {
+      if (faces == null) {
         return;
       }
     }
@@ -38,7 +47,7 @@ public class App {
     // --- Exercise 1
     int count = 0;
     List<FImage> randomFaces = new ArrayList<>();
-    for (final Entry<String, VFSListDataset<FImage>> entry : groupedFaces.entrySet()) {
+    for (final Entry<String, ? extends ListDataset<FImage>> entry : faces.entrySet()) {
       randomFaces.add(entry.getValue().getRandomInstance());
       count += entry.getValue().size();
     }
@@ -65,8 +74,8 @@ public class App {
 
     // --- Exercise 4
     // -- Unable to use Bing so used grouped faces
-    MapBackedDataset<String, VFSListDataset<FImage>, FImage> mbd = new MapBackedDataset<>();
-    for (Entry<String, VFSListDataset<FImage>> entry : groupedFaces.entrySet()) {
+    MapBackedDataset<String, ListDataset<FImage>, FImage> mbd = new MapBackedDataset<>();
+    for (Entry<String, ? extends ListDataset<FImage>> entry : faces.entrySet()) {
       mbd.add(entry.getKey(), entry.getValue());
     }
     System.out.println("Groups: " + mbd.size());
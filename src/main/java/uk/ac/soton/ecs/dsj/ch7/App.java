@@ -1,16 +1,17 @@
 package uk.ac.soton.ecs.dsj.ch7;
 
 import java.net.URI;
-import javax.swing.JFrame;
-import org.openimaj.image.DisplayUtilities;
 import org.openimaj.image.MBFImage;
-import org.openimaj.image.processing.convolution.FGaussianConvolve;
-import org.openimaj.image.processing.edges.CannyEdgeDetector;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.util.function.Function;
 import org.openimaj.video.Video;
-import org.openimaj.video.VideoDisplay;
-import org.openimaj.video.VideoDisplayListener;
 import org.openimaj.video.capture.VideoCapture;
 import org.openimaj.video.xuggle.XuggleVideo;
+import uk.ac.soton.ecs.dsj.processing.RecursiveGaussianBlur;
+import uk.ac.soton.ecs.dsj.video.FramePool;
+import uk.ac.soton.ecs.dsj.video.NamedWindowStage;
+import uk.ac.soton.ecs.dsj.video.TiledCannyStage;
+import uk.ac.soton.ecs.dsj.video.VideoPipeline;
 
 /**
  * Test application for OpenIMAJ-Tutorial Chapter 7 exercises.
@@ -28,6 +29,8 @@ public class App {
       video = new XuggleVideo(vidURI.getPath());
       // !!! Instead Use the webcam feed
       webcam = new VideoCapture(320, 240);
+      // !!! Instead replay the tutorial video at the camera's rate, e.g. with no camera
+      // webcam = ReplayVideo.fromFile(new File(vidURI)).setRate(25);
     } catch (Exception e) {
       e.printStackTrace();
     } finally {
@@ -37,26 +40,56 @@ public class App {
       }
     }
 
-    // Process tutorial video and display
-    FGaussianConvolve fgc = new FGaussianConvolve(3);
-    JFrame frame = null;
-    for (MBFImage mbfImage : video) {
-      frame = DisplayUtilities.displayName(mbfImage.process(fgc), "videoFrames");
-    }
-    frame.setVisible(false);
-    frame.dispose();
-
-    // Use webcam source in place
-    VideoDisplay<MBFImage> webcamDisplay = VideoDisplay.createVideoDisplay(webcam);
-    webcamDisplay.addVideoListener(new VideoDisplayListener<MBFImage>() {
-      @Override
-      public void beforeUpdate(MBFImage frame) {
-        frame.processInplace(new CannyEdgeDetector());
-      }
+    // Process tutorial video and display (decoding, blurring and display on separate threads)
+    // Frames are copied into recycled buffers and blurred in place, not allocated per frame
+    // Recursive blur, one core per frame as the pipeline already processes frames in parallel
+    final RecursiveGaussianBlur fgc = new RecursiveGaussianBlur(3, false);
+    // !!! Alternative blur - convolution, cost growing with sigma
+    // final FGaussianConvolve fgc = new FGaussianConvolve(3);
+    FramePool<MBFImage> pool = FramePool.forMBFImage(ColourSpace.RGB);
+    NamedWindowStage<MBFImage> display = new NamedWindowStage<>("videoFrames");
+    VideoPipeline<MBFImage, MBFImage> pipeline =
+        new VideoPipeline<>(video, new Function<MBFImage, MBFImage>() {
+          @Override
+          public MBFImage apply(MBFImage frame) {
+            return frame.processInplace(fgc);
+          }
+        }, display).setFramePool(pool);
+    pipeline.run();
+    pipeline.printReport(System.out);
+    System.out.println("Frames: " + pool);
+    display.close();
+    // !!! Alternative method - decode, process and display in turn on one thread
+    // JFrame frame = null;
+    // for (MBFImage mbfImage : video) {
+    // frame = DisplayUtilities.displayName(mbfImage.process(fgc), "videoFrames");
+    // }
+    // frame.setVisible(false);
+    // frame.dispose();
 
-      @Override
-      public void afterUpdate(VideoDisplay<MBFImage> display) {}
-    });
+    // Use webcam source in place, dropping the oldest frames if edge detection falls behind
+    // Edges are only found again where the scene has changed, so one worker in frame order
+    if (webcam != null) {
+      TiledCannyStage canny = new TiledCannyStage();
+      new VideoPipeline<>(webcam, canny, new NamedWindowStage<MBFImage>("webcam")).setWorkers(1)
+          .setDropPolicy(VideoPipeline.DropPolicy.DROP_OLDEST).setFramePool(pool).run();
+      System.out.println("Canny: " + canny);
+      // !!! Alternative stage - edges found over the whole of every frame, on any number of workers
+      // new VideoPipeline<>(webcam, new CannyEdgeStage(), new NamedWindowStage<MBFImage>("webcam"))
+      // .setDropPolicy(VideoPipeline.DropPolicy.DROP_OLDEST).setFramePool(pool).run();
+    }
+    // !!! Alternative method - edge detection on the display thread
+    // final CannyEdgeStage canny = new CannyEdgeStage();
+    // VideoDisplay<MBFImage> webcamDisplay = VideoDisplay.createVideoDisplay(webcam);
+    // webcamDisplay.addVideoListener(new VideoDisplayListener<MBFImage>() {
+    // @Override
+    // public void beforeUpdate(MBFImage frame) {
+    // canny.apply(frame);
+    // }
+    //
+    // @Override
+    // public void afterUpdate(VideoDisplay<MBFImage> display) {}
+    // });
 
   }
 
@@ -1,22 +1,16 @@
 package uk.ac.soton.ecs.dsj.ch8;
 
-import java.util.List;
-import org.openimaj.image.FImage;
 import org.openimaj.image.MBFImage;
-import org.openimaj.image.colour.RGBColour;
-import org.openimaj.image.colour.Transforms;
-import org.openimaj.image.processing.face.detection.FaceDetector;
+import org.openimaj.image.colour.ColourSpace;
 import org.openimaj.image.processing.face.detection.keypoints.FKEFaceDetector;
-import org.openimaj.image.processing.face.detection.keypoints.FacialKeypoint;
-import org.openimaj.image.processing.face.detection.keypoints.FacialKeypoint.FacialKeypointType;
-import org.openimaj.image.typography.hershey.HersheyFont;
-import org.openimaj.image.processing.face.detection.keypoints.KEDetectedFace;
-import org.openimaj.math.geometry.point.Point2dImpl;
-import org.openimaj.math.geometry.shape.Ellipse;
 import org.openimaj.video.Video;
-import org.openimaj.video.VideoDisplay;
-import org.openimaj.video.VideoDisplayListener;
 import org.openimaj.video.capture.VideoCapture;
+import uk.ac.soton.ecs.dsj.video.AdaptiveScaleFaceDetector;
+import uk.ac.soton.ecs.dsj.video.FaceTracker;
+import uk.ac.soton.ecs.dsj.video.FramePool;
+import uk.ac.soton.ecs.dsj.video.NamedWindowStage;
+import uk.ac.soton.ecs.dsj.video.TrackingFaceOverlayStage;
+import uk.ac.soton.ecs.dsj.video.VideoPipeline;
 
 /**
  * Test application for OpenIMAJ-Tutorial Chapter 8 exercises.
@@ -31,6 +25,8 @@ public class App {
     try {
       // Use the webcam feed
       vc = new VideoCapture(320, 240);
+      // !!! Instead replay the tutorial video, e.g. with no camera (see video.HeadlessBenchmark)
+      // vc = ReplayVideo.fromFile(new File(App.class.getResource("/keyboardcat.flv").toURI()));
     } catch (Exception e) {
       e.printStackTrace();
     } finally {
@@ -40,42 +36,42 @@ public class App {
       }
     }
 
-    // Do face detection on input stream
-    VideoDisplay<MBFImage> vd = VideoDisplay.createVideoDisplay(vc);
-    vd.addVideoListener(new VideoDisplayListener<MBFImage>() {
-      @Override
-      public void beforeUpdate(MBFImage frame) {
-        FaceDetector<KEDetectedFace, FImage> fd = new FKEFaceDetector();
-        // Draw faces
-        List<KEDetectedFace> faces = fd.detectFaces(Transforms.calculateIntensity(frame));
-        // Draw points
-        for (KEDetectedFace face : faces) {
-          frame.drawShape(face.getBounds(), RGBColour.RED);
-          for (FacialKeypoint point : face.getKeypoints()) {
-            Point2dImpl pos = point.position.clone();
-            pos.translate(face.getBounds().getTopLeft());
-            frame.drawPoint(pos, RGBColour.GREEN, 3);
-          }
-        }
-        // Draw speech bubbles
-        for (KEDetectedFace face : faces) {
-          Point2dImpl pos = face.getKeypoint(FacialKeypointType.MOUTH_LEFT).position.clone();
-          pos.translate(face.getBounds().getTopLeft());
-          pos.translate(-5, -5);
-          frame.drawShapeFilled(new Ellipse(pos.x, pos.y, 10, 5, 0), RGBColour.WHITE);
-          pos.translate(-20, -20);
-          frame.drawShapeFilled(new Ellipse(pos.x, pos.y, 20, 10, 0), RGBColour.WHITE);
-          pos.translate(-50, -50);
-          frame.drawShapeFilled(new Ellipse(pos.x, pos.y, 70, 30, 0), RGBColour.WHITE);
-          pos.translate(-20, 5);
-          frame.drawText("OpenIMAJ!", (int) pos.x, (int) pos.y, HersheyFont.ASTROLOGY, 10, RGBColour.BLACK);
-        }
-      }
-
-      @Override
-      public void afterUpdate(VideoDisplay<MBFImage> display) {}
-    });
-
+    // Do face detection on input stream, off the display thread so the display keeps up
+    // Faces are detected every few frames and followed in between, so one worker in frame order
+    // Detection is on a smaller copy of the frame when needed to take at most a frame period
+    // (40ms), no smaller than half size so faces close to the camera are still found
+    // Each detection searches strips of the frame on every core, for faces from 40 pixels (80 in
+    // the frame at half size)
+    AdaptiveScaleFaceDetector detector = new AdaptiveScaleFaceDetector(
+        new FKEFaceDetector(new ParallelHaarCascadeDetector(40)), 40).setMinScale(0.5f);
+    // !!! Alternative detector - one core, faces from 80 pixels at any scale
+    // AdaptiveScaleFaceDetector detector = new AdaptiveScaleFaceDetector(40).setMinScale(0.5f);
+    TrackingFaceOverlayStage overlay = new TrackingFaceOverlayStage(new FaceTracker(detector));
+    new VideoPipeline<>(vc, overlay, new NamedWindowStage<MBFImage>("faces")).setWorkers(1)
+        .setDropPolicy(VideoPipeline.DropPolicy.DROP_OLDEST)
+        .setFramePool(FramePool.forMBFImage(ColourSpace.RGB)).run();
+    System.out.println("Faces: " + overlay);
+    System.out.println("Detection: " + detector);
+    // !!! Alternative detection - always at full size
+    // TrackingFaceOverlayStage overlay = new TrackingFaceOverlayStage();
+    // !!! Alternative stage - faces only searched for where the scene has changed
+    // TiledFaceOverlayStage overlay = new TiledFaceOverlayStage();
+    // !!! Alternative stage - whole of every frame searched, on any number of workers
+    // new VideoPipeline<>(vc, new FaceOverlayStage(), new NamedWindowStage<MBFImage>("faces"))
+    // .setDropPolicy(VideoPipeline.DropPolicy.DROP_OLDEST)
+    // .setFramePool(FramePool.forMBFImage(ColourSpace.RGB)).run();
+    // !!! Alternative method - face detection on the display thread
+    // final FaceOverlayStage overlay = new FaceOverlayStage();
+    // VideoDisplay<MBFImage> vd = VideoDisplay.createVideoDisplay(vc);
+    // vd.addVideoListener(new VideoDisplayListener<MBFImage>() {
+    // @Override
+    // public void beforeUpdate(MBFImage frame) {
+    // overlay.apply(frame);
+    // }
+    //
+    // @Override
+    // public void afterUpdate(VideoDisplay<MBFImage> display) {}
+    // });
   }
 
 }
@@ -0,0 +1,57 @@
+package uk.ac.soton.ecs.dsj.ch8;
+
+import java.io.File;
+import java.util.List;
+import org.openimaj.data.dataset.VFSGroupDataset;
+import org.openimaj.data.dataset.VFSListDataset;
+import org.openimaj.experiment.dataset.util.DatasetAdaptors;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.processing.face.detection.keypoints.KEDetectedFace;
+import org.openimaj.time.Timer;
+import uk.ac.soton.ecs.dsj.dataset.Prefetcher;
+
+/**
+ * Batch face detection over a directory of images (given as the first argument, with an optional
+ * smallest face size in pixels as the second) using a {@link BatchFaceDetector}. Without arguments
+ * the Chapter 13 faces are used, with a smaller face size to suit them.
+ */
+public class BatchFaceDetect {
+  private static final int ATT_FACES_MIN_SIZE = 40;
+
+  public static void main(String[] args) throws Exception {
+    List<FImage> images;
+    int minSize;
+    if (args.length > 0) {
+      File dir = new File(args[0]);
+      if (!dir.isDirectory()) {
+        System.err.println("Not a directory: " + args[0]);
+        return;
+      }
+      images = new VFSListDataset<>(dir.getAbsolutePath(), ImageUtilities.FIMAGE_READER);
+      minSize = args.length > 1 ? Integer.parseInt(args[1]) : BatchFaceDetector.DEFAULT_MIN_SIZE;
+    } else {
+      String faces = BatchFaceDetect.class.getResource("/att_faces.zip").toURI().toString();
+      images = DatasetAdaptors
+          .asList(new VFSGroupDataset<>("zip:" + faces, ImageUtilities.FIMAGE_READER));
+      minSize = ATT_FACES_MIN_SIZE;
+    }
+
+    BatchFaceDetector detector = new BatchFaceDetector(minSize);
+    Prefetcher<BatchFaceDetector.Result> results = detector.detect(images);
+    Timer timer = Timer.timer();
+    for (BatchFaceDetector.Result result : results) {
+      StringBuilder line = new StringBuilder(String.format("%5d: %d faces", result.getIndex(),
+          result.getFaces().size()));
+      for (KEDetectedFace face : result.getFaces()) {
+        line.append(String.format("  %s (%.0f)", face.getBounds(), face.getConfidence()));
+      }
+      System.out.println(line);
+    }
+    long millis = timer.duration();
+    System.out.println(String.format("Detection: %s, %.1f images/s", detector,
+        detector.getImages() * 1000.0 / Math.max(1, millis)));
+    System.out.println("Prefetch: " + results);
+  }
+
+}
@@ -0,0 +1,123 @@
+package uk.ac.soton.ecs.dsj.ch8;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openimaj.image.FImage;
+import org.openimaj.image.processing.face.detection.keypoints.FKEFaceDetector;
+import org.openimaj.image.processing.face.detection.keypoints.KEDetectedFace;
+import org.openimaj.util.function.Function;
+import uk.ac.soton.ecs.dsj.dataset.Prefetcher;
+
+/**
+ * Detects the faces (with keypoints) in every image of a dataset using all cores, streaming back
+ * the faces of each image as they are found.
+ * <p>
+ * Each image is read and searched on a worker of the shared thread pool through a
+ * {@link Prefetcher}, so at most its capacity of results are held ahead of the consumer, and
+ * results come back in dataset order (or as soon as each is ready when unordered). Each worker
+ * keeps its own detector, as detectors hold the scale being searched. Images are searched whole on
+ * their worker rather than split further with a {@link ParallelHaarCascadeDetector}, the images
+ * already keep the cores busy.
+ */
+public class BatchFaceDetector {
+  /** Default smallest face detected, in pixels */
+  public static final int DEFAULT_MIN_SIZE = 80;
+
+  private final int minSize;
+  private final ThreadLocal<FKEFaceDetector> detectors = new ThreadLocal<FKEFaceDetector>() {
+    @Override
+    protected FKEFaceDetector initialValue() {
+      return new FKEFaceDetector(minSize);
+    }
+  };
+
+  private final AtomicLong images = new AtomicLong();
+  private final AtomicLong faces = new AtomicLong();
+  private final AtomicLong detectNanos = new AtomicLong();
+
+  /**
+   * Create a batch detector finding faces of the default minimum size.
+   */
+  public BatchFaceDetector() {
+    this(DEFAULT_MIN_SIZE);
+  }
+
+  /**
+   * @param minSize Smallest face detected, in pixels
+   */
+  public BatchFaceDetector(int minSize) {
+    this.minSize = minSize;
+  }
+
+  /**
+   * Detect the faces in every image, e.g. of a {@code VFSListDataset} that reads each on access.
+   * Images are read and searched as the results are iterated, see {@link Prefetcher} for the
+   * capacity and order.
+   *
+   * @param dataset Images to search, read concurrently from worker threads
+   * @return Faces of each image, in dataset order by default
+   */
+  public Prefetcher<Result> detect(final List<FImage> dataset) {
+    return new Prefetcher<>(dataset.size(), new Function<Integer, Result>() {
+      @Override
+      public Result apply(Integer index) {
+        FImage image = dataset.get(index);
+        long start = System.nanoTime();
+        List<KEDetectedFace> found = detectors.get().detectFaces(image);
+        detectNanos.addAndGet(System.nanoTime() - start);
+        images.incrementAndGet();
+        faces.addAndGet(found.size());
+        return new Result(index, found);
+      }
+    });
+  }
+
+  /**
+   * @return Number of images searched over every batch
+   */
+  public long getImages() {
+    return images.get();
+  }
+
+  /**
+   * @return Number of faces found over every batch
+   */
+  public long getFaces() {
+    return faces.get();
+  }
+
+  @Override
+  public String toString() {
+    long n = images.get();
+    return String.format("%d images, %d faces, %.1fms detection per image (over every worker)", n,
+        faces.get(), n == 0 ? 0 : detectNanos.get() / 1e6 / n);
+  }
+
+  /**
+   * The faces found in one image of a batch.
+   */
+  public static class Result {
+    private final int index;
+    private final List<KEDetectedFace> faces;
+
+    Result(int index, List<KEDetectedFace> faces) {
+      this.index = index;
+      this.faces = faces;
+    }
+
+    /**
+     * @return Index of the image in the dataset
+     */
+    public int getIndex() {
+      return index;
+    }
+
+    /**
+     * @return Faces found in the image, with their keypoints
+     */
+    public List<KEDetectedFace> getFaces() {
+      return faces;
+    }
+  }
+
+}
@@ -0,0 +1,148 @@
+package uk.ac.soton.ecs.dsj.ch8;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.openimaj.image.FImage;
+import org.openimaj.image.analysis.algorithm.SummedSqTiltAreaTable;
+import org.openimaj.image.objectdetection.haar.Detector;
+import org.openimaj.image.objectdetection.haar.StageTreeClassifier;
+import org.openimaj.image.processing.face.detection.HaarCascadeDetector;
+import org.openimaj.math.geometry.shape.Rectangle;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+import org.openimaj.util.parallel.Parallel.IntRange;
+
+/**
+ * Multi-core alternative to {@link HaarCascadeDetector}, giving the same faces in the same order.
+ * Use with {@code new FKEFaceDetector(new ParallelHaarCascadeDetector())} for keypoints.
+ * <p>
+ * The integral images are computed once per image and shared by every scale, as before. At each
+ * scale the cascade is set to that scale, then the rows of window positions are split into strips
+ * searched in parallel on the shared thread pool (classifying a window only reads the cascade and
+ * integral images). Strips partition the window positions rather than the image, so no window is
+ * searched twice and there are no duplicates at the seams; the windows found are put back in row
+ * order and grouped into faces by the usual overlap filter. Scales with few rows of windows are
+ * searched on the calling thread. A region of interest set on the detector bounds the windows as in
+ * {@code Detector.detect}. One image at a time, as the cascade holds the current scale.
+ */
+public class ParallelHaarCascadeDetector extends HaarCascadeDetector {
+  /** Rows of window positions below which a scale is searched on the calling thread */
+  public static final int MIN_PARALLEL_ROWS = 8;
+
+  /**
+   * Detect with the default cascade and minimum face size.
+   */
+  public ParallelHaarCascadeDetector() {
+    super();
+  }
+
+  /**
+   * @param minSize Smallest face detected, in pixels
+   */
+  public ParallelHaarCascadeDetector(int minSize) {
+    super(minSize);
+  }
+
+  /**
+   * @param cascade Name of the cascade resource or file
+   * @param minSize Smallest face detected, in pixels
+   */
+  public ParallelHaarCascadeDetector(String cascade, int minSize) {
+    super(cascade, minSize);
+  }
+
+  @Override
+  public void setCascade(String name) throws Exception {
+    // Called from the constructors, replaces the detector
+    super.setCascade(name);
+    detector = new StripDetector(detector);
+  }
+
+  @Override
+  public void readBinary(DataInput in) throws IOException {
+    super.readBinary(in);
+    detector = new StripDetector(detector);
+  }
+
+  /**
+   * Detector searching each scale in strips of rows, with the settings of the detector it replaces.
+   */
+  private static class StripDetector extends Detector {
+
+    StripDetector(Detector settings) {
+      super(settings.getClassifier(), settings.getScaleFactor(), settings.smallStep(),
+          settings.bigStep());
+      setMinimumDetectionSize(settings.getMinimumDetectionSize());
+      setMaximumDetectionSize(settings.getMaximumDetectionSize());
+    }
+
+    @Override
+    public List<Rectangle> detect(FImage image) {
+      final List<Rectangle> results = new ArrayList<>();
+      final int width = image.getWidth();
+      final int height = image.getHeight();
+      StageTreeClassifier classifier = getClassifier();
+      final SummedSqTiltAreaTable sat =
+          new SummedSqTiltAreaTable(image, classifier.hasTiltedFeatures());
+
+      // Count the scales up to the largest window fitting, skipping those below the minimum size
+      int scales = 0;
+      int firstScale = 0;
+      for (float s = 1; s * classifier.getWidth() < width - 10
+          && s * classifier.getHeight() < height - 10; s *= scaleFactor) {
+        float w = s * classifier.getWidth();
+        float h = s * classifier.getHeight();
+        if (w < minSize || h < minSize) {
+          firstScale++;
+        }
+        if (maxSize > 0 && (w > maxSize || h > maxSize)) {
+          break;
+        }
+        scales++;
+      }
+
+      float scale = (float) Math.pow(scaleFactor, firstScale);
+      for (int i = firstScale; i < scales; i++) {
+        final float step = Math.max(2, scale);
+        final int w = (int) (scale * classifier.getWidth());
+        final int h = (int) (scale * classifier.getHeight());
+        // Window positions within the region of interest, if any, bounded as by Detector.detect
+        final int startX = (int) (roi == null ? 0 : Math.max(0, roi.x));
+        final int startY = (int) (roi == null ? 0 : Math.max(0, roi.y));
+        final int stopX =
+            Math.round(((roi == null ? width : Math.min(width, roi.x + roi.width)) - w) / step);
+        final int stopY =
+            Math.round(((roi == null ? height : Math.min(height, roi.y + roi.height)) - h) / step);
+        classifier.setScale(scale);
+
+        if (stopY - startY < MIN_PARALLEL_ROWS) {
+          detectAtScale(sat, startX, stopX, startY, stopY, step, w, h, results);
+        } else {
+          // Windows found in each strip, kept at the strip's first row so they stay in row order
+          final List<List<Rectangle>> strips = new ArrayList<>();
+          for (int y = startY; y < stopY; y++) {
+            strips.add(null);
+          }
+          Parallel.forRange(startY, stopY, 1, new Operation<IntRange>() {
+            @Override
+            public void perform(IntRange range) {
+              List<Rectangle> found = new ArrayList<>();
+              detectAtScale(sat, startX, stopX, range.start, range.stop, step, w, h, found);
+              strips.set(range.start - startY, found);
+            }
+          });
+          for (List<Rectangle> strip : strips) {
+            if (strip != null) {
+              results.addAll(strip);
+            }
+          }
+        }
+        scale *= scaleFactor;
+      }
+      return results;
+    }
+  }
+
+}
@@ -2,7 +2,6 @@ package uk.ac.soton.ecs.dsj.ch9;
 
 import java.net.URI;
 import org.openimaj.audio.SampleChunk;
-import org.openimaj.audio.analysis.FourierTransform;
 import org.openimaj.audio.filters.EQFilter;
 import org.openimaj.audio.filters.EQFilter.EQType;
 import org.openimaj.video.xuggle.XuggleAudio;
@@ -45,11 +44,22 @@ public class App {
     final AudioSpectrogram spectogram = new AudioSpectrogram(600, 400);
     spectogram.showWindow("FFT Spectogram");
     EQFilter eq = new EQFilter(xa, EQType.LPF, 5000);
-    FourierTransform fft2 = new FourierTransform(eq);
-    while ((sc = fft2.nextSampleChunk()) != null) {
-      float[][] fftData = fft2.getNormalisedMagnitudes(1f / Integer.MAX_VALUE);
-      spectogram.setData(fftData[0]);
+    // Half overlapping Hann windows however the audio is chunked, reusing the same buffers
+    // (see SpectrogramBenchmark)
+    StreamingSpectrogram stft = new StreamingSpectrogram().setScale(1f / Integer.MAX_VALUE);
+    float[] magnitudes = new float[stft.getBins()];
+    while ((sc = eq.nextSampleChunk()) != null) {
+      stft.write(sc.getSampleBuffer());
+      while (stft.nextFrame(magnitudes)) {
+        spectogram.setData(magnitudes);
+      }
     }
+    // !!! Alternative method - transform each chunk as it is, with new buffers every time
+    // FourierTransform fft2 = new FourierTransform(eq);
+    // while ((sc = fft2.nextSampleChunk()) != null) {
+    // float[][] fftData = fft2.getNormalisedMagnitudes(1f / Integer.MAX_VALUE);
+    // spectogram.setData(fftData[0]);
+    // }
 
   }
 
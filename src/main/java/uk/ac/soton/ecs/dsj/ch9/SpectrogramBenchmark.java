@@ -0,0 +1,134 @@
+package uk.ac.soton.ecs.dsj.ch9;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import org.openimaj.audio.AudioFormat;
+import org.openimaj.audio.SampleChunk;
+import org.openimaj.audio.analysis.FourierTransform;
+import uk.ac.soton.ecs.dsj.video.AllocationMeter;
+import uk.ac.soton.ecs.dsj.video.LatencyStats;
+
+/**
+ * Benchmark comparing the Chapter 9 spectrogram, a {@link FourierTransform} of each chunk, against
+ * a {@link StreamingSpectrogram}, over a long synthesised sweep (as the tutorial audio, which needs
+ * no decoder). The chunks are made beforehand so only the transforms are measured. Prints the
+ * percentiles of the cost of each chunk, the bytes allocated and the garbage collections. Run with
+ * an optional duration in seconds (default 600) and chunk size in samples (default 4096).
+ */
+public class SpectrogramBenchmark {
+  private static final double SAMPLE_RATE_KHZ = 44.1;
+  private static final float SCALE = 1f / Integer.MAX_VALUE;
+  private static final int WARM_UP_CHUNKS = 500;
+
+  public static void main(String[] args) {
+    int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 600;
+    int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+    List<SampleChunk> chunks = sweep(seconds, chunkSize);
+    System.out.println(String.format("Audio: %ds linear sweep at %.1fkHz, %d chunks of %d samples",
+        seconds, SAMPLE_RATE_KHZ, chunks.size(), chunkSize));
+
+    // Warm up the JIT so none is penalised
+    List<SampleChunk> warmUp = chunks.subList(0, Math.min(WARM_UP_CHUNKS, chunks.size()));
+    runFourier(warmUp, null);
+    runStreaming(warmUp, new StreamingSpectrogram(), null);
+
+    LatencyStats latency = new LatencyStats();
+    long collections = collections();
+    AllocationMeter meter = new AllocationMeter();
+    int columns = runFourier(chunks, latency);
+    System.out.println(String.format("FourierTransform: %d columns, %s, %d GCs, latency %s",
+        columns, meter, collections() - collections, latency));
+
+    // The default windows, then as the chunks (to a power of 2) with no overlap for comparison
+    int size = Integer.highestOneBit(chunkSize);
+    StreamingSpectrogram[] transforms = {new StreamingSpectrogram(),
+        new StreamingSpectrogram(size, size, StreamingSpectrogram.Window.RECTANGULAR)};
+    for (StreamingSpectrogram stft : transforms) {
+      latency = new LatencyStats();
+      collections = collections();
+      meter.reset();
+      columns = runStreaming(chunks, stft, latency);
+      System.out.println(String.format("Streaming (%d/%d): %d columns, %s, %d GCs, latency %s",
+          stft.getSize(), stft.getHop(), columns, meter, collections() - collections, latency));
+    }
+  }
+
+  /**
+   * Transform each chunk as in the Chapter 9 app.
+   *
+   * @return Number of spectra produced
+   */
+  private static int runFourier(List<SampleChunk> chunks, LatencyStats latency) {
+    FourierTransform fft = new FourierTransform();
+    int columns = 0;
+    for (SampleChunk chunk : chunks) {
+      long start = System.nanoTime();
+      fft.process(chunk);
+      float[][] magnitudes = fft.getNormalisedMagnitudes(SCALE);
+      columns += magnitudes.length > 0 ? 1 : 0;
+      if (latency != null) {
+        latency.record(System.nanoTime() - start);
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * Stream the chunks through a transform.
+   *
+   * @return Number of spectra produced
+   */
+  private static int runStreaming(List<SampleChunk> chunks, StreamingSpectrogram stft,
+      LatencyStats latency) {
+    stft.setScale(SCALE);
+    float[] magnitudes = new float[stft.getBins()];
+    int columns = 0;
+    for (SampleChunk chunk : chunks) {
+      long start = System.nanoTime();
+      stft.write(chunk.getSampleBuffer());
+      while (stft.nextFrame(magnitudes)) {
+        columns++;
+      }
+      if (latency != null) {
+        latency.record(System.nanoTime() - start);
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * 16 bit mono chunks of a sweep from 20Hz to 20kHz at half full scale.
+   */
+  private static List<SampleChunk> sweep(int seconds, int chunkSize) {
+    AudioFormat format =
+        new AudioFormat(16, SAMPLE_RATE_KHZ, 1).setSigned(true).setBigEndian(false);
+    double rate = SAMPLE_RATE_KHZ * 1000;
+    long total = (long) (seconds * rate);
+    List<SampleChunk> chunks = new ArrayList<>();
+    double phase = 0;
+    for (long start = 0; start < total; start += chunkSize) {
+      int count = (int) Math.min(chunkSize, total - start);
+      byte[] bytes = new byte[2 * count];
+      for (int i = 0; i < count; i++) {
+        double frequency = 20 + (20000 - 20) * (start + i) / (double) total;
+        phase += 2 * Math.PI * frequency / rate;
+        short sample = (short) (0.5 * Short.MAX_VALUE * Math.sin(phase));
+        bytes[2 * i] = (byte) sample;
+        bytes[2 * i + 1] = (byte) (sample >> 8);
+      }
+      chunks.add(new SampleChunk(bytes, format));
+    }
+    return chunks;
+  }
+
+  private static long collections() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+}
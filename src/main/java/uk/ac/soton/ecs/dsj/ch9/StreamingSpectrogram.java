@@ -0,0 +1,288 @@
+package uk.ac.soton.ecs.dsj.ch9;
+
+import org.openimaj.audio.samples.SampleBuffer;
+
+/**
+ * Short-time Fourier transform of an audio stream, giving a spectrum for every window of samples
+ * a hop apart however the stream is split into chunks, without allocating once running.
+ * <p>
+ * Samples (mixed down to mono and scaled) are written into a ring buffer, growing it only if a
+ * chunk is larger than it has ever held. Each frame multiplies the window of samples by a window
+ * function and transforms it with a radix-2 FFT whose bit reversal and twiddle factors are computed
+ * once: the real samples are packed in pairs into a complex FFT of half the size, which is then
+ * unpacked into the spectrum of the whole window. Magnitudes are written into the caller's array,
+ * normalised by the window so that a full scale sine gives 1 at its frequency. Unlike
+ * {@code FourierTransform}, which transforms each chunk as it is with new buffers (and a new FFT
+ * plan) every time, the window and hop, and so the resolution and overlap, do not depend on the
+ * chunks. Not thread safe.
+ */
+public class StreamingSpectrogram {
+  /** Default samples in each window */
+  public static final int DEFAULT_SIZE = 1024;
+
+  /**
+   * Function applied to the samples of each window before the transform.
+   */
+  public enum Window {
+    /** No weighting, the most resolution but the most leakage between frequencies */
+    RECTANGULAR,
+    /** Raised cosine falling to zero at the ends */
+    HANN,
+    /** Raised cosine not quite falling to zero, less leakage to nearby frequencies than Hann */
+    HAMMING
+  }
+
+  private final int size;
+  private final int hop;
+  private final Window windowFunction;
+  private final float[] window;
+  private final float norm;
+  private float scale = 1;
+
+  // Unread samples are from read to written (positions in the stream), at position & mask
+  private float[] ring;
+  private int mask;
+  private long written;
+  private long read;
+
+  // Complex FFT of half the window: bit reversed order, twiddles and the working buffers
+  private final int half;
+  private final int[] reverse;
+  private final float[] cos;
+  private final float[] sin;
+  private final float[] unpackCos;
+  private final float[] unpackSin;
+  private final float[] re;
+  private final float[] im;
+
+  private long frames;
+
+  /**
+   * Create a transform of the default size with a Hann window, half overlapping.
+   */
+  public StreamingSpectrogram() {
+    this(DEFAULT_SIZE, DEFAULT_SIZE / 2, Window.HANN);
+  }
+
+  /**
+   * @param size Samples in each window, a power of 2 of at least 4
+   * @param hop Samples between the starts of windows, up to the size (overlap is size - hop)
+   * @param windowFunction Function applied to each window
+   */
+  public StreamingSpectrogram(int size, int hop, Window windowFunction) {
+    if (size < 4 || Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException("Size must be a power of 2 of at least 4: " + size);
+    }
+    if (hop < 1 || hop > size) {
+      throw new IllegalArgumentException("Hop must be in [1, " + size + "]: " + hop);
+    }
+    this.size = size;
+    this.hop = hop;
+    this.windowFunction = windowFunction;
+
+    window = new float[size];
+    double sum = 0;
+    for (int i = 0; i < size; i++) {
+      double phase = 2 * Math.PI * i / size;
+      switch (windowFunction) {
+        case HANN:
+          window[i] = (float) (0.5 - 0.5 * Math.cos(phase));
+          break;
+        case HAMMING:
+          window[i] = (float) (0.54 - 0.46 * Math.cos(phase));
+          break;
+        default:
+          window[i] = 1;
+      }
+      sum += window[i];
+    }
+    // Each side of the spectrum holds half of a sine's amplitude, weighted by the window
+    norm = (float) (2 / sum);
+
+    ring = new float[2 * size];
+    mask = ring.length - 1;
+
+    half = size / 2;
+    int bits = Integer.numberOfTrailingZeros(half);
+    reverse = new int[half];
+    for (int i = 0; i < half; i++) {
+      reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+    }
+    cos = new float[Math.max(1, half / 2)];
+    sin = new float[cos.length];
+    for (int i = 0; i < cos.length; i++) {
+      cos[i] = (float) Math.cos(2 * Math.PI * i / half);
+      sin[i] = (float) Math.sin(2 * Math.PI * i / half);
+    }
+    unpackCos = new float[half];
+    unpackSin = new float[half];
+    for (int i = 0; i < half; i++) {
+      unpackCos[i] = (float) Math.cos(2 * Math.PI * i / size);
+      unpackSin[i] = (float) Math.sin(2 * Math.PI * i / size);
+    }
+    re = new float[half];
+    im = new float[half];
+  }
+
+  /**
+   * @param scale Factor samples are multiplied by, e.g. {@code 1f / Integer.MAX_VALUE} to bring
+   *        those of a {@link SampleBuffer} into [-1, 1]
+   * @return This transform
+   */
+  public StreamingSpectrogram setScale(float scale) {
+    this.scale = scale;
+    return this;
+  }
+
+  /**
+   * Add the samples of a chunk, averaging its channels.
+   *
+   * @param buffer Samples to add
+   */
+  public void write(SampleBuffer buffer) {
+    int channels = buffer.getFormat().getNumChannels();
+    int count = buffer.size() / channels;
+    ensureCapacity(count);
+    float channelScale = scale / channels;
+    for (int i = 0; i < count; i++) {
+      float sum = 0;
+      for (int c = 0; c < channels; c++) {
+        sum += buffer.get(i * channels + c);
+      }
+      ring[(int) (written++ & mask)] = sum * channelScale;
+    }
+  }
+
+  /**
+   * Add mono samples.
+   *
+   * @param samples Array holding the samples
+   * @param offset Index of the first sample
+   * @param length Number of samples
+   */
+  public void write(float[] samples, int offset, int length) {
+    ensureCapacity(length);
+    for (int i = 0; i < length; i++) {
+      ring[(int) (written++ & mask)] = samples[offset + i] * scale;
+    }
+  }
+
+  /**
+   * Grow the ring buffer, keeping the unread samples at their positions, if the samples to be added
+   * would not fit.
+   */
+  private void ensureCapacity(int count) {
+    long needed = written - read + count;
+    if (needed <= ring.length) {
+      return;
+    }
+    int capacity = ring.length;
+    while (capacity < needed) {
+      capacity *= 2;
+    }
+    float[] grown = new float[capacity];
+    for (long p = read; p < written; p++) {
+      grown[(int) (p & (capacity - 1))] = ring[(int) (p & mask)];
+    }
+    ring = grown;
+    mask = capacity - 1;
+  }
+
+  /**
+   * Transform the next window, if enough samples have been added, and move on by the hop.
+   *
+   * @param magnitudes Array of at least {@link #getBins()} to hold the magnitude of each frequency
+   * @return Whether there was a window to transform
+   */
+  public boolean nextFrame(float[] magnitudes) {
+    if (written - read < size) {
+      return false;
+    }
+
+    // Pack even samples as real and odd as imaginary parts, in bit reversed order
+    for (int k = 0; k < half; k++) {
+      int j = reverse[k];
+      long p = read + 2 * k;
+      re[j] = ring[(int) (p & mask)] * window[2 * k];
+      im[j] = ring[(int) ((p + 1) & mask)] * window[2 * k + 1];
+    }
+
+    // Radix-2 butterflies, doubling the length transformed each pass
+    for (int length = 2; length <= half; length <<= 1) {
+      int span = length >> 1;
+      int stride = half / length;
+      for (int start = 0; start < half; start += length) {
+        for (int j = 0; j < span; j++) {
+          float wr = cos[j * stride];
+          float wi = -sin[j * stride];
+          int a = start + j;
+          int b = a + span;
+          float tr = wr * re[b] - wi * im[b];
+          float ti = wr * im[b] + wi * re[b];
+          re[b] = re[a] - tr;
+          im[b] = im[a] - ti;
+          re[a] += tr;
+          im[a] += ti;
+        }
+      }
+    }
+
+    // Separate the transforms of the even and odd samples and combine them into the full spectrum
+    for (int k = 0; k < half; k++) {
+      int c = (half - k) & (half - 1);
+      float zr = re[k];
+      float zi = im[k];
+      float cr = re[c];
+      float ci = -im[c];
+      float er = 0.5f * (zr + cr);
+      float ei = 0.5f * (zi + ci);
+      float or = 0.5f * (zi - ci);
+      float oi = -0.5f * (zr - cr);
+      float ur = unpackCos[k];
+      float ui = -unpackSin[k];
+      float xr = er + ur * or - ui * oi;
+      float xi = ei + ur * oi + ui * or;
+      // The constant is not split between two sides of the spectrum
+      magnitudes[k] = (float) Math.sqrt(xr * xr + xi * xi) * (k == 0 ? norm / 2 : norm);
+    }
+
+    read += hop;
+    frames++;
+    return true;
+  }
+
+  /**
+   * @return Number of frequencies in each spectrum, from 0 up to just below half the sample rate
+   */
+  public int getBins() {
+    return half;
+  }
+
+  /**
+   * @return Samples in each window
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * @return Samples between the starts of windows
+   */
+  public int getHop() {
+    return hop;
+  }
+
+  /**
+   * @return Number of windows transformed
+   */
+  public long getFrames() {
+    return frames;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d frames of %d samples every %d (%.0f%% overlap), %s window", frames,
+        size, hop, 100.0 * (size - hop) / size, windowFunction);
+  }
+
+}
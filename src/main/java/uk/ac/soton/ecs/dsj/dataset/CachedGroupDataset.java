@@ -0,0 +1,42 @@
+package uk.ac.soton.ecs.dsj.dataset;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+import org.openimaj.data.identity.Identifiable;
+import org.openimaj.image.FImage;
+
+/**
+ * Grouped image dataset (such as a {@code VFSGroupDataset}) with every group wrapped in a
+ * {@link CachedListDataset} sharing one {@link FImageCache}. Groups keep the order of the source
+ * dataset.
+ */
+public class CachedGroupDataset extends MapBackedDataset<String, ListDataset<FImage>, FImage> {
+  private final FImageCache cache;
+
+  /**
+   * @param source Grouped dataset to read images from on a cache miss
+   * @param cache Cache to hold decoded images
+   */
+  public CachedGroupDataset(GroupedDataset<String, ? extends ListDataset<FImage>, FImage> source,
+      FImageCache cache) {
+    super(new LinkedHashMap<String, ListDataset<FImage>>());
+    this.cache = cache;
+    String prefix = source instanceof Identifiable ? ((Identifiable) source).getID()
+        : source.getClass().getName() + "@" + System.identityHashCode(source);
+    for (Map.Entry<String, ? extends ListDataset<FImage>> group : source.entrySet()) {
+      put(group.getKey(),
+          new CachedListDataset(group.getValue(), cache, prefix + "/" + group.getKey()));
+    }
+  }
+
+  /**
+   * @return The cache shared by every group
+   */
+  public FImageCache getCache() {
+    return cache;
+  }
+
+}
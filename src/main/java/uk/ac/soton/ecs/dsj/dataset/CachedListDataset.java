@@ -0,0 +1,88 @@
+package uk.ac.soton.ecs.dsj.dataset;
+
+import java.util.AbstractList;
+import java.util.Random;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.identity.Identifiable;
+import org.openimaj.image.FImage;
+
+/**
+ * List dataset of images that reads each image from a source dataset only when it is not held by
+ * an {@link FImageCache}, avoiding repeated reading and decoding of the same files.
+ * <p>
+ * Instances are cached under the dataset's ID and their index, so datasets sharing a cache need
+ * distinct IDs. Every call returns a new copy of the image.
+ */
+public class CachedListDataset extends AbstractList<FImage>
+    implements ListDataset<FImage>, Identifiable {
+  private final ListDataset<FImage> source;
+  private final FImageCache cache;
+  private final String id;
+  private final Random random = new Random();
+
+  /**
+   * Wrap a dataset, using its own ID if it has one.
+   *
+   * @param source Dataset to read images from on a cache miss
+   * @param cache Cache to hold decoded images
+   */
+  public CachedListDataset(ListDataset<FImage> source, FImageCache cache) {
+    this(source, cache, source instanceof Identifiable ? ((Identifiable) source).getID()
+        : source.getClass().getName() + "@" + System.identityHashCode(source));
+  }
+
+  /**
+   * @param source Dataset to read images from on a cache miss
+   * @param cache Cache to hold decoded images
+   * @param id Unique ID of the dataset within the cache
+   */
+  public CachedListDataset(ListDataset<FImage> source, FImageCache cache, String id) {
+    this.source = source;
+    this.cache = cache;
+    this.id = id;
+  }
+
+  @Override
+  public FImage getInstance(int index) {
+    String key = id + "#" + index;
+    FImage image = cache.get(key);
+    if (image == null) {
+      image = source.getInstance(index);
+      cache.put(key, image);
+    }
+    return image;
+  }
+
+  @Override
+  public FImage get(int index) {
+    return getInstance(index);
+  }
+
+  @Override
+  public FImage getRandomInstance() {
+    return getInstance(random.nextInt(size()));
+  }
+
+  @Override
+  public int numInstances() {
+    return source.numInstances();
+  }
+
+  @Override
+  public int size() {
+    return source.size();
+  }
+
+  @Override
+  public String getID() {
+    return id;
+  }
+
+  /**
+   * @return The cache holding this dataset's images
+   */
+  public FImageCache getCache() {
+    return cache;
+  }
+
+}
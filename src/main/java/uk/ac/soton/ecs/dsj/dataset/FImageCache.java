@@ -0,0 +1,176 @@
+package uk.ac.soton.ecs.dsj.dataset;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.openimaj.image.FImage;
+
+/**
+ * Least recently used cache of decoded {@link FImage}s, held as raw floats outside the Java heap.
+ * <p>
+ * Pixels are kept in direct buffers so a large cache does not add to garbage collection work, and
+ * the total size of the cached pixels is kept within a byte budget by evicting the least recently
+ * used images. Images are copied in and out, so callers may modify what they get back. Hit, miss
+ * and eviction counts are kept for reporting. All methods are thread safe.
+ */
+public class FImageCache {
+  /** Default budget of 64MB */
+  public static final long DEFAULT_BUDGET = 64L << 20;
+
+  private final long budget;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * Construct with the default budget.
+   */
+  public FImageCache() {
+    this(DEFAULT_BUDGET);
+  }
+
+  /**
+   * @param budget Maximum number of bytes of pixels to hold
+   */
+  public FImageCache(long budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * @param key Image key
+   * @return A copy of the cached image, or null if it is not cached
+   */
+  public FImage get(String key) {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry == null) {
+        misses++;
+        return null;
+      }
+      hits++;
+    }
+    // Copy outside the lock through a view of the entry's own buffer
+    FImage image = new FImage(entry.width, entry.height);
+    FloatBuffer pixels = entry.pixels.duplicate();
+    for (int y = 0; y < entry.height; y++) {
+      pixels.get(image.pixels[y]);
+    }
+    return image;
+  }
+
+  /**
+   * Cache a copy of an image, evicting the least recently used images to stay within the budget.
+   * Images larger than the whole budget are not cached.
+   *
+   * @param key Image key
+   * @param image Image to cache
+   */
+  public void put(String key, FImage image) {
+    long size = 4L * image.getWidth() * image.getHeight();
+    if (size > budget || size > Integer.MAX_VALUE) {
+      return;
+    }
+    FloatBuffer pixels =
+        ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    for (int y = 0; y < image.getHeight(); y++) {
+      pixels.put(image.pixels[y]);
+    }
+    pixels.flip();
+    Entry entry = new Entry(image.getWidth(), image.getHeight(), pixels.asReadOnlyBuffer());
+
+    synchronized (this) {
+      Entry replaced = entries.put(key, entry);
+      if (replaced != null) {
+        bytes -= replaced.size();
+      }
+      bytes += size;
+      Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+      while (bytes > budget) {
+        bytes -= eldest.next().getValue().size();
+        eldest.remove();
+        evictions++;
+      }
+    }
+  }
+
+  /**
+   * Remove every image, leaving the counters unchanged.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  /**
+   * @return Maximum number of bytes of pixels held
+   */
+  public long getBudget() {
+    return budget;
+  }
+
+  /**
+   * @return Number of bytes of pixels currently held
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return Number of images currently held
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return Number of lookups that found an image
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return Number of lookups that did not find an image
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return Number of images evicted to stay within the budget
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    long lookups = hits + misses;
+    return String.format("%d images, %.1f/%.1fMB, %d hits, %d misses (%.1f%% hit rate), %d evicted",
+        entries.size(), bytes / 1048576.0, budget / 1048576.0, hits, misses,
+        lookups == 0 ? 0 : 100.0 * hits / lookups, evictions);
+  }
+
+  private static class Entry {
+    final int width;
+    final int height;
+    final FloatBuffer pixels;
+
+    Entry(int width, int height, FloatBuffer pixels) {
+      this.width = width;
+      this.height = height;
+      this.pixels = pixels;
+    }
+
+    long size() {
+      return 4L * width * height;
+    }
+  }
+
+}
@@ -0,0 +1,58 @@
+package uk.ac.soton.ecs.dsj.dataset;
+
+import java.io.File;
+import org.openimaj.data.dataset.VFSGroupDataset;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.time.Timer;
+
+/**
+ * Converts a grouped image dataset (a directory or archive of one folder per group, e.g.
+ * {@code zip:/path/att_faces.zip}) into a {@link PackedImageDataset} file, then times reading every
+ * image back through both.
+ * <p>
+ * Usage: {@code PackDataset <vfs uri> [output file]}, the output defaults to
+ * {@link PackedImageDataset#getDefaultFile(String)} named after the source.
+ */
+public class PackDataset {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: PackDataset <vfs uri> [output file]");
+      return;
+    }
+    String uri = args[0];
+    File output;
+    if (args.length > 1) {
+      output = new File(args[1]);
+    } else {
+      String name = new File(uri.replaceFirst("^[a-z]+:", "")).getName();
+      name = name.replaceFirst("\\.[^.]*$", "");
+      output = PackedImageDataset.getDefaultFile(name);
+    }
+
+    VFSGroupDataset<FImage> source = new VFSGroupDataset<>(uri, ImageUtilities.FIMAGE_READER);
+    Timer timer = Timer.timer();
+    PackedImageDataset.write(source, output);
+    System.out.println(String.format("Packed %d images into %s in %dms", source.numInstances(),
+        output, timer.duration()));
+
+    // Compare a full read through each
+    timer = Timer.timer();
+    int count = 0;
+    for (FImage image : source) {
+      count += image.getWidth() > 0 ? 1 : 0;
+    }
+    System.out.println(String.format("VFS read:    %d images in %dms", count, timer.duration()));
+
+    timer = Timer.timer();
+    PackedImageDataset packed = new PackedImageDataset(output);
+    count = 0;
+    for (FImage image : packed) {
+      count += image.getWidth() > 0 ? 1 : 0;
+    }
+    System.out.println(String.format("Packed read: %d images (%dx%d) in %dms", count,
+        packed.getWidth(), packed.getHeight(), timer.duration()));
+  }
+
+}
@@ -0,0 +1,299 @@
+package uk.ac.soton.ecs.dsj.dataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+import org.openimaj.data.identity.Identifiable;
+import org.openimaj.image.FImage;
+
+/**
+ * Grouped dataset of equally sized images read from a single packed file through memory mapped
+ * buffers, a fast replacement for decoding images from a zip with a {@code VFSGroupDataset}.
+ * <p>
+ * The file holds a header (magic, version, image width and height, number of groups), a group index
+ * (name, pixel offset and image count of each group) and then every image's pixels as little endian
+ * floats in fixed size blocks, so any image is found in constant time.
+ * {@link Group#getPixels(int)} gives a zero-copy view of an image's pixels;
+ * {@link Group#getInstance(int)} copies them into a new {@link FImage}, as an {@code FImage} cannot
+ * be backed by a buffer.
+ */
+public class PackedImageDataset extends MapBackedDataset<String, ListDataset<FImage>, FImage> {
+  static final int MAGIC = 0x50494D47; // "PIMG"
+  static final int VERSION = 1;
+  /** File name suffix of packed datasets */
+  public static final String SUFFIX = ".pimg";
+  private static final int HEADER_BYTES = 20;
+
+  private final File file;
+  private final int width;
+  private final int height;
+
+  /**
+   * Open a packed dataset file.
+   *
+   * @param file File written by {@link #write(GroupedDataset, File)}
+   * @throws IOException If the file could not be read or is not a packed dataset
+   */
+  public PackedImageDataset(File file) throws IOException {
+    super(new LinkedHashMap<String, ListDataset<FImage>>());
+    this.file = file;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel()) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(channel, header, 0);
+      if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+        throw new IOException("Not a packed image dataset: " + file);
+      }
+      width = header.getInt(8);
+      height = header.getInt(12);
+      int numGroups = header.getInt(16);
+
+      // Read the group index, then map each group's pixel blocks (the mappings outlive the channel)
+      long position = HEADER_BYTES;
+      long imageBytes = 4L * width * height;
+      for (int g = 0; g < numGroups; g++) {
+        ByteBuffer entry = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, entry, position);
+        byte[] name = new byte[entry.getInt(0)];
+        readFully(channel, ByteBuffer.wrap(name), position + 4);
+        entry = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, entry, position + 4 + name.length);
+        position += 4 + name.length + 16;
+
+        String key = new String(name, StandardCharsets.UTF_8);
+        long offset = entry.getLong(0);
+        int count = entry.getInt(8);
+        if (offset + count * imageBytes > channel.size()) {
+          throw new IOException("Truncated packed image dataset: " + file);
+        }
+        MappedByteBuffer pixels =
+            channel.map(FileChannel.MapMode.READ_ONLY, offset, count * imageBytes);
+        put(key, new Group(key, pixels.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer(), count));
+      }
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of packed image dataset");
+      }
+    }
+  }
+
+  /**
+   * @param name Dataset name
+   * @return The file {@code ~/.openimaj-tutorial/datasets/<name>.pimg}
+   */
+  public static File getDefaultFile(String name) {
+    File home = new File(System.getProperty("user.home"), ".openimaj-tutorial");
+    return new File(new File(home, "datasets"), name + SUFFIX);
+  }
+
+  /**
+   * Open a packed dataset, first packing the source dataset into the file if it does not exist.
+   * The file is not rebuilt when the source changes, delete it to do so.
+   *
+   * @param file Packed dataset file
+   * @param source Dataset to pack if the file does not exist
+   * @return The packed dataset
+   * @throws IOException If the file could not be written or read
+   */
+  public static PackedImageDataset openOrCreate(File file,
+      GroupedDataset<String, ? extends ListDataset<FImage>, FImage> source) throws IOException {
+    if (!file.isFile()) {
+      write(source, file);
+    }
+    return new PackedImageDataset(file);
+  }
+
+  /**
+   * Pack a grouped dataset into a file, replacing any existing file.
+   *
+   * @param source Dataset to pack, every image must have the same size
+   * @param file File to write
+   * @throws IOException If the file could not be written
+   * @throws IllegalArgumentException If the images are not all the same size
+   */
+  public static void write(GroupedDataset<String, ? extends ListDataset<FImage>, FImage> source,
+      File file) throws IOException {
+    // Find the image size and lay out the index
+    int width = -1;
+    int height = -1;
+    long indexBytes = 0;
+    Map<String, byte[]> names = new LinkedHashMap<>();
+    for (Map.Entry<String, ? extends ListDataset<FImage>> group : source.entrySet()) {
+      byte[] name = group.getKey().getBytes(StandardCharsets.UTF_8);
+      names.put(group.getKey(), name);
+      indexBytes += 4 + name.length + 16;
+      if (width < 0 && !group.getValue().isEmpty()) {
+        FImage first = group.getValue().getInstance(0);
+        width = first.getWidth();
+        height = first.getHeight();
+      }
+    }
+    width = Math.max(width, 0);
+    height = Math.max(height, 0);
+    int imageBytes = 4 * width * height;
+
+    File directory = file.getAbsoluteFile().getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+      throw new IOException("Unable to create directory: " + directory);
+    }
+    File tmp = File.createTempFile("dataset", ".tmp", directory);
+    try {
+      try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+          FileChannel channel = raf.getChannel()) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(names.size());
+        header.flip();
+        writeFully(channel, header);
+
+        // Pixel blocks follow the index, aligned to 64 bytes
+        long offset = (HEADER_BYTES + indexBytes + 63) / 64 * 64;
+        for (Map.Entry<String, ? extends ListDataset<FImage>> group : source.entrySet()) {
+          byte[] name = names.get(group.getKey());
+          int count = group.getValue().size();
+          ByteBuffer entry =
+              ByteBuffer.allocate(4 + name.length + 16).order(ByteOrder.LITTLE_ENDIAN);
+          entry.putInt(name.length).put(name).putLong(offset).putInt(count).putInt(0);
+          entry.flip();
+          writeFully(channel, entry);
+          offset += (long) count * imageBytes;
+        }
+
+        channel.position((HEADER_BYTES + indexBytes + 63) / 64 * 64);
+        ByteBuffer block = ByteBuffer.allocate(imageBytes).order(ByteOrder.LITTLE_ENDIAN);
+        FloatBuffer floats = block.asFloatBuffer();
+        for (Map.Entry<String, ? extends ListDataset<FImage>> group : source.entrySet()) {
+          for (FImage image : group.getValue()) {
+            if (image.getWidth() != width || image.getHeight() != height) {
+              throw new IllegalArgumentException(String.format(
+                  "Image in group %s is %dx%d, expected %dx%d", group.getKey(), image.getWidth(),
+                  image.getHeight(), width, height));
+            }
+            floats.clear();
+            for (int y = 0; y < height; y++) {
+              floats.put(image.pixels[y]);
+            }
+            block.clear();
+            writeFully(channel, block);
+          }
+        }
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp.toPath());
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * @return The packed dataset file
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return Width of every image
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * @return Height of every image
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * The images of one group, backed by a mapped region of the file.
+   */
+  public class Group extends AbstractList<FImage> implements ListDataset<FImage>, Identifiable {
+    private final String id;
+    private final FloatBuffer pixels;
+    private final int count;
+    private final Random random = new Random();
+
+    Group(String id, FloatBuffer pixels, int count) {
+      this.id = id;
+      this.pixels = pixels;
+      this.count = count;
+    }
+
+    /**
+     * @param index Image index
+     * @return Read-only view of the image's pixels in row-major order, without copying
+     */
+    public FloatBuffer getPixels(int index) {
+      if (index < 0 || index >= count) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+      }
+      FloatBuffer view = pixels.duplicate();
+      view.position(index * width * height);
+      view.limit(view.position() + width * height);
+      return view.slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public FImage getInstance(int index) {
+      FloatBuffer view = getPixels(index);
+      FImage image = new FImage(width, height);
+      for (int y = 0; y < height; y++) {
+        view.get(image.pixels[y]);
+      }
+      return image;
+    }
+
+    @Override
+    public FImage get(int index) {
+      return getInstance(index);
+    }
+
+    @Override
+    public FImage getRandomInstance() {
+      return getInstance(random.nextInt(count));
+    }
+
+    @Override
+    public int numInstances() {
+      return count;
+    }
+
+    @Override
+    public int size() {
+      return count;
+    }
+
+    @Override
+    public String getID() {
+      return id;
+    }
+  }
+
+}
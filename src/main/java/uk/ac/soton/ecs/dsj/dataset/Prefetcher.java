@@ -0,0 +1,312 @@
+package uk.ac.soton.ecs.dsj.dataset;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.image.Image;
+import org.openimaj.image.ImageProvider;
+import org.openimaj.util.function.Function;
+import org.openimaj.util.pair.IndependentPair;
+import org.openimaj.util.parallel.GlobalExecutorPool;
+
+/**
+ * Iterates a dataset while its items are read and decoded ahead of the consumer on a worker pool,
+ * so that processing each item does not wait on the decoding of the next.
+ * <p>
+ * At most {@link #setCapacity(int) capacity} items are fetched ahead, bounding the memory held.
+ * Items are returned in dataset order by default, or as soon as each is ready when unordered. The
+ * queue depth (fetched items waiting to be consumed) and stalls (the consumer waiting for an item)
+ * are recorded over every iteration, see {@link #toString()}. Each call to {@link #iterator()}
+ * starts a new pass over the source; an iterator abandoned early lets at most the items already
+ * fetched ahead finish, or can be {@link PrefetchIterator#close() closed} to cancel them.
+ *
+ * @param <T> Type of item returned
+ */
+public class Prefetcher<T> implements Iterable<T> {
+  /** Default number of items fetched ahead of the consumer */
+  public static final int DEFAULT_CAPACITY = 16;
+
+  private final int size;
+  private final Function<Integer, T> fetch;
+  private ExecutorService executor = GlobalExecutorPool.getPool();
+  private int capacity = DEFAULT_CAPACITY;
+  private boolean ordered = true;
+
+  private final AtomicLong fetched = new AtomicLong();
+  private final AtomicLong stalls = new AtomicLong();
+  private final AtomicLong stallNanos = new AtomicLong();
+  private final AtomicLong depthSum = new AtomicLong();
+  private final AtomicInteger maxDepth = new AtomicInteger();
+
+  /**
+   * @param size Number of items
+   * @param fetch Reads and decodes the item at an index, called concurrently from worker threads
+   */
+  public Prefetcher(int size, Function<Integer, T> fetch) {
+    this.size = size;
+    this.fetch = fetch;
+  }
+
+  /**
+   * Prefetch the instances of a list dataset, e.g. one that reads each instance on access.
+   *
+   * @param source Dataset to read
+   * @return Prefetcher over the dataset's instances
+   */
+  public static <T> Prefetcher<T> of(final ListDataset<T> source) {
+    return new Prefetcher<>(source.numInstances(), new Function<Integer, T>() {
+      @Override
+      public T apply(Integer index) {
+        return source.getInstance(index);
+      }
+    });
+  }
+
+  /**
+   * Prefetch every instance of a grouped dataset, group by group.
+   *
+   * @param source Grouped dataset to read
+   * @return Prefetcher over (group, instance) pairs
+   */
+  public static <K, T> Prefetcher<IndependentPair<K, T>> of(
+      GroupedDataset<K, ? extends ListDataset<T>, T> source) {
+    // Index every instance by its group and position in the group
+    final List<K> keys = new ArrayList<>();
+    final List<ListDataset<T>> groups = new ArrayList<>();
+    final List<Integer> starts = new ArrayList<>();
+    int total = 0;
+    for (Map.Entry<K, ? extends ListDataset<T>> entry : source.entrySet()) {
+      keys.add(entry.getKey());
+      groups.add(entry.getValue());
+      starts.add(total);
+      total += entry.getValue().size();
+    }
+    return new Prefetcher<>(total, new Function<Integer, IndependentPair<K, T>>() {
+      @Override
+      public IndependentPair<K, T> apply(Integer index) {
+        int low = 0;
+        int high = starts.size() - 1;
+        while (low < high) {
+          int mid = (low + high + 1) >>> 1;
+          if (starts.get(mid) <= index) {
+            low = mid;
+          } else {
+            high = mid - 1;
+          }
+        }
+        return IndependentPair.pair(keys.get(low), groups.get(low).get(index - starts.get(low)));
+      }
+    });
+  }
+
+  /**
+   * Prefetch the images of a list of image providers, e.g. dataset records that decode their image
+   * each time it is requested.
+   *
+   * @param source Image providers to read
+   * @return Prefetcher over (provider, decoded image) pairs
+   */
+  public static <R extends ImageProvider<I>, I extends Image<?, I>>
+      Prefetcher<IndependentPair<R, I>> ofImages(final List<R> source) {
+    return new Prefetcher<>(source.size(), new Function<Integer, IndependentPair<R, I>>() {
+      @Override
+      public IndependentPair<R, I> apply(Integer index) {
+        R provider = source.get(index);
+        return IndependentPair.pair(provider, provider.getImage());
+      }
+    });
+  }
+
+  /**
+   * @param executor Pool to fetch items on, the shared OpenIMAJ pool by default. Do not iterate
+   *        from one of its own threads, the fetches could then wait behind the consumer forever.
+   * @return This prefetcher
+   */
+  public Prefetcher<T> setExecutor(ExecutorService executor) {
+    this.executor = executor;
+    return this;
+  }
+
+  /**
+   * @param capacity Maximum number of items fetched ahead of the consumer
+   * @return This prefetcher
+   */
+  public Prefetcher<T> setCapacity(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+    }
+    this.capacity = capacity;
+    return this;
+  }
+
+  /**
+   * @param ordered Whether items are returned in source order, otherwise as soon as each is ready
+   * @return This prefetcher
+   */
+  public Prefetcher<T> setOrdered(boolean ordered) {
+    this.ordered = ordered;
+    return this;
+  }
+
+  @Override
+  public PrefetchIterator iterator() {
+    return new PrefetchIterator();
+  }
+
+  /**
+   * @return Number of items returned over every iteration
+   */
+  public long getFetched() {
+    return fetched.get();
+  }
+
+  /**
+   * @return Number of times the consumer had to wait for an item
+   */
+  public long getStalls() {
+    return stalls.get();
+  }
+
+  /**
+   * @return Total time the consumer spent waiting for items
+   */
+  public long getStallMillis() {
+    return stallNanos.get() / 1000000;
+  }
+
+  /**
+   * @return Mean number of fetched items waiting when the consumer asked for the next
+   */
+  public double getMeanQueueDepth() {
+    long count = fetched.get();
+    return count == 0 ? 0 : depthSum.get() / (double) count;
+  }
+
+  /**
+   * @return Largest number of fetched items waiting when the consumer asked for the next
+   */
+  public int getMaxQueueDepth() {
+    return maxDepth.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d items, %d stalls (%dms), queue depth mean %.1f max %d of %d",
+        getFetched(), getStalls(), getStallMillis(), getMeanQueueDepth(), getMaxQueueDepth(),
+        capacity);
+  }
+
+  /**
+   * One pass over the source, fetching ahead as items are consumed.
+   */
+  public class PrefetchIterator implements Iterator<T>, Closeable {
+    private final ArrayDeque<Future<T>> pending = new ArrayDeque<>();
+    private final CompletionService<T> completion =
+        ordered ? null : new ExecutorCompletionService<T>(executor);
+    private final AtomicInteger ready = new AtomicInteger();
+    private int submitted;
+    private int consumed;
+
+    PrefetchIterator() {
+      fill();
+    }
+
+    /**
+     * Submit fetches until the capacity is reached or the source is exhausted.
+     */
+    private void fill() {
+      while (submitted < size && submitted - consumed < capacity) {
+        final int index = submitted++;
+        Callable<T> task = new Callable<T>() {
+          @Override
+          public T call() {
+            T item = fetch.apply(index);
+            ready.incrementAndGet();
+            return item;
+          }
+        };
+        pending.add(completion == null ? executor.submit(task) : completion.submit(task));
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return consumed < size;
+    }
+
+    @Override
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      int depth = ready.get();
+      depthSum.addAndGet(depth);
+      int max;
+      while (depth > (max = maxDepth.get()) && !maxDepth.compareAndSet(max, depth)) {
+        // Retry until the maximum is at least this depth
+      }
+
+      try {
+        // Take the next item in order, or whichever finishes first
+        Future<T> future = completion == null ? pending.peek() : completion.poll();
+        if (future == null || !future.isDone()) {
+          long start = System.nanoTime();
+          if (completion != null) {
+            future = completion.take();
+          }
+          future.get();
+          stalls.incrementAndGet();
+          stallNanos.addAndGet(System.nanoTime() - start);
+        }
+        pending.remove(future);
+        T item = future.get();
+        ready.decrementAndGet();
+        consumed++;
+        fetched.incrementAndGet();
+        fill();
+        return item;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while prefetching", e);
+      } catch (ExecutionException e) {
+        close();
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new IllegalStateException("Prefetch failed", e.getCause());
+      }
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Cancel the items still being fetched and end the iteration.
+     */
+    @Override
+    public void close() {
+      for (Future<T> future : pending) {
+        future.cancel(false);
+      }
+      pending.clear();
+      consumed = size;
+    }
+  }
+
+}
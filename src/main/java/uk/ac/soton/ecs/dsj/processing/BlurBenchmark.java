@@ -0,0 +1,104 @@
+package uk.ac.soton.ecs.dsj.processing;
+
+import java.util.Random;
+import org.openimaj.image.FImage;
+import org.openimaj.image.processing.convolution.FGaussianConvolve;
+import org.openimaj.image.processor.SinglebandImageProcessor;
+import org.openimaj.time.Timer;
+
+/**
+ * Benchmark comparing {@link FGaussianConvolve} against {@link RecursiveGaussianBlur} (on one core
+ * and in parallel) over a range of sigmas, printing the time of each and the difference of the
+ * recursive result from the convolution, both away from the edges and over the whole image. Run
+ * with an optional image width and height (default 1024x768).
+ */
+public class BlurBenchmark {
+  private static final float[] SIGMAS = {1, 2, 3, 5, 10, 20};
+  private static final int RUNS = 5;
+
+  public static void main(String[] args) {
+    int width = args.length > 1 ? Integer.parseInt(args[0]) : 1024;
+    int height = args.length > 1 ? Integer.parseInt(args[1]) : 768;
+    FImage image = testImage(width, height);
+    System.out.println(String.format("Image: %dx%d, best of %d runs", width, height, RUNS));
+    // Warm up the JIT so the first sigma is not penalised
+    time(new FGaussianConvolve(2), image, image.clone());
+    time(new RecursiveGaussianBlur(2, false), image, image.clone());
+    time(new RecursiveGaussianBlur(2, true), image, image.clone());
+    System.out.println("Sigma  Convolve  Recursive(1 core)  Recursive(parallel)"
+        + "  Interior max/RMS  Overall max");
+
+    for (float sigma : SIGMAS) {
+      FImage expected = image.clone();
+      long convolve = time(new FGaussianConvolve(sigma), image, expected);
+      FImage actual = image.clone();
+      long single = time(new RecursiveGaussianBlur(sigma, false), image, actual);
+      long parallel = time(new RecursiveGaussianBlur(sigma, true), image, image.clone());
+
+      // Compare away from the edges, where the edge treatments of the two differ
+      int margin = (int) Math.ceil(4 * sigma);
+      double interiorMax = 0;
+      double interiorSquares = 0;
+      long interiorCount = 0;
+      double overallMax = 0;
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          double diff = Math.abs(expected.pixels[y][x] - actual.pixels[y][x]);
+          overallMax = Math.max(overallMax, diff);
+          if (x >= margin && y >= margin && x < width - margin && y < height - margin) {
+            interiorMax = Math.max(interiorMax, diff);
+            interiorSquares += diff * diff;
+            interiorCount++;
+          }
+        }
+      }
+      double rms = Math.sqrt(interiorSquares / Math.max(1, interiorCount));
+      System.out.println(String.format("%5.1f  %6dms  %15dms  %17dms  %9.4f/%.4f  %11.4f", sigma,
+          convolve, single, parallel, interiorMax, rms, overallMax));
+    }
+  }
+
+  /**
+   * Time the best of several runs of a processor, leaving the last result in the output image.
+   */
+  private static long time(SinglebandImageProcessor<Float, FImage> processor, FImage source,
+      FImage output) {
+    long best = Long.MAX_VALUE;
+    for (int run = 0; run < RUNS; run++) {
+      FImage working = source.clone();
+      Timer t = Timer.timer();
+      working.processInplace(processor);
+      best = Math.min(best, t.duration());
+      if (run == RUNS - 1) {
+        output.internalAssign(working);
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Noise over bright rectangles on a dark background, with values in [0, 1].
+   */
+  private static FImage testImage(int width, int height) {
+    Random random = new Random(0);
+    FImage image = new FImage(width, height);
+    for (int i = 0; i < 40; i++) {
+      int x = random.nextInt(width);
+      int y = random.nextInt(height);
+      int w = 1 + random.nextInt(width / 4);
+      int h = 1 + random.nextInt(height / 4);
+      for (int yy = y; yy < Math.min(height, y + h); yy++) {
+        for (int xx = x; xx < Math.min(width, x + w); xx++) {
+          image.pixels[yy][xx] = 0.7f;
+        }
+      }
+    }
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        image.pixels[y][x] += 0.3f * random.nextFloat();
+      }
+    }
+    return image;
+  }
+
+}
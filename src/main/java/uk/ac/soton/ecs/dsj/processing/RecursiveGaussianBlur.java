@@ -0,0 +1,219 @@
+package uk.ac.soton.ecs.dsj.processing;
+
+import java.util.Arrays;
+import org.openimaj.image.FImage;
+import org.openimaj.image.processor.SinglebandImageProcessor;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+import org.openimaj.util.parallel.Parallel.IntRange;
+
+/**
+ * Gaussian blur using the recursive (IIR) filter of Young and van Vliet, "Recursive implementation
+ * of the Gaussian filter" (1995), an alternative to {@code FGaussianConvolve} whose cost per pixel
+ * does not grow with sigma.
+ * <p>
+ * Each axis is filtered by a third order causal pass followed by an anti-causal pass. Rows are
+ * filtered along their arrays, and columns a whole row at a time so memory is still read in order.
+ * Edges are treated as replicated to infinity, with the anti-causal pass started from the exact
+ * state of Triggs and Sdika, "Boundary conditions for Young-van Vliet recursive filtering" (2006),
+ * computed once per sigma. Large images are split into strips of rows (then of columns) across the
+ * available cores. The filter is an approximation, within around 3% of the peak of a sampled
+ * Gaussian kernel, best for sigma of 2 or more; sigma must be at least 0.5.
+ * <p>
+ * Multi-band images are blurred band by band, e.g. {@code image.processInplace(blur)}.
+ */
+public class RecursiveGaussianBlur implements SinglebandImageProcessor<Float, FImage> {
+  /** Images with fewer pixels than this are processed on the calling thread only */
+  public static final int PARALLEL_THRESHOLD = 1 << 16;
+
+  private final float sigma;
+  private final boolean parallel;
+  // Filter coefficients: y[n] = b * x[n] + a1 * y[n-1] + a2 * y[n-2] + a3 * y[n-3]
+  private final float b;
+  private final float a1;
+  private final float a2;
+  private final float a3;
+  // Anti-causal start state from the last three causal outputs (relative to the edge value)
+  private final float[][] boundary;
+
+  /**
+   * @param sigma Standard deviation of the Gaussian, at least 0.5
+   */
+  public RecursiveGaussianBlur(float sigma) {
+    this(sigma, true);
+  }
+
+  /**
+   * @param sigma Standard deviation of the Gaussian, at least 0.5
+   * @param parallel Whether large images are split across the available cores
+   */
+  public RecursiveGaussianBlur(float sigma, boolean parallel) {
+    if (!(sigma >= 0.5f)) {
+      throw new IllegalArgumentException("Sigma must be at least 0.5: " + sigma);
+    }
+    this.sigma = sigma;
+    this.parallel = parallel;
+
+    double q = sigma >= 2.5 ? 0.98711 * sigma - 0.96330
+        : 3.97156 - 4.14554 * Math.sqrt(1 - 0.26891 * sigma);
+    double q2 = q * q;
+    double q3 = q2 * q;
+    double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+    double c1 = (2.44413 * q + 2.85619 * q2 + 1.26661 * q3) / b0;
+    double c2 = -(1.4281 * q2 + 1.26661 * q3) / b0;
+    double c3 = 0.422205 * q3 / b0;
+    a1 = (float) c1;
+    a2 = (float) c2;
+    a3 = (float) c3;
+    b = (float) (1 - (c1 + c2 + c3));
+    boundary = boundaryMatrix(1 - (c1 + c2 + c3), c1, c2, c3, (int) Math.ceil(20 * sigma) + 64);
+  }
+
+  /**
+   * Find the anti-causal start state for each of the last three causal outputs by running the
+   * filter over a long constant extension of the signal. The filter is linear so this is exact up
+   * to the decay over the extension.
+   */
+  private static float[][] boundaryMatrix(double b, double a1, double a2, double a3, int length) {
+    float[][] m = new float[3][3];
+    double[] forward = new double[length + 3];
+    double[] backward = new double[length + 3];
+    for (int k = 0; k < 3; k++) {
+      // forward[0..2] are the last three causal outputs, oldest first, then the extension
+      Arrays.fill(forward, 0);
+      forward[2 - k] = 1;
+      for (int n = 3; n < forward.length; n++) {
+        forward[n] = a1 * forward[n - 1] + a2 * forward[n - 2] + a3 * forward[n - 3];
+      }
+      double y1 = 0;
+      double y2 = 0;
+      double y3 = 0;
+      for (int n = forward.length - 1; n >= 3; n--) {
+        backward[n] = b * forward[n] + a1 * y1 + a2 * y2 + a3 * y3;
+        y3 = y2;
+        y2 = y1;
+        y1 = backward[n];
+      }
+      for (int j = 0; j < 3; j++) {
+        m[j][k] = (float) backward[3 + j];
+      }
+    }
+    return m;
+  }
+
+  /**
+   * @return Standard deviation of the Gaussian
+   */
+  public float getSigma() {
+    return sigma;
+  }
+
+  @Override
+  public void processImage(final FImage image) {
+    final float[][] pixels = image.pixels;
+    final int width = image.width;
+    final int height = image.height;
+    if (width == 0 || height == 0) {
+      return;
+    }
+    if (parallel && width * height >= PARALLEL_THRESHOLD) {
+      Parallel.forRange(0, height, 1, new Operation<IntRange>() {
+        @Override
+        public void perform(IntRange range) {
+          filterRows(pixels, range.start, range.stop);
+        }
+      });
+      Parallel.forRange(0, width, 1, new Operation<IntRange>() {
+        @Override
+        public void perform(IntRange range) {
+          filterColumns(pixels, range.start, range.stop);
+        }
+      });
+    } else {
+      filterRows(pixels, 0, height);
+      filterColumns(pixels, 0, width);
+    }
+  }
+
+  private void filterRows(float[][] pixels, int startRow, int endRow) {
+    for (int y = startRow; y < endRow; y++) {
+      float[] row = pixels[y];
+      int n = row.length;
+      float last = row[n - 1];
+
+      // Causal pass, starting from the steady state of the replicated first pixel
+      float y1 = row[0];
+      float y2 = y1;
+      float y3 = y1;
+      for (int x = 0; x < n; x++) {
+        float v = b * row[x] + a1 * y1 + a2 * y2 + a3 * y3;
+        row[x] = v;
+        y3 = y2;
+        y2 = y1;
+        y1 = v;
+      }
+
+      // Anti-causal pass, starting from the exact state for the replicated last pixel
+      float d0 = y1 - last;
+      float d1 = y2 - last;
+      float d2 = y3 - last;
+      y1 = last + boundary[0][0] * d0 + boundary[0][1] * d1 + boundary[0][2] * d2;
+      y2 = last + boundary[1][0] * d0 + boundary[1][1] * d1 + boundary[1][2] * d2;
+      y3 = last + boundary[2][0] * d0 + boundary[2][1] * d1 + boundary[2][2] * d2;
+      for (int x = n - 1; x >= 0; x--) {
+        float v = b * row[x] + a1 * y1 + a2 * y2 + a3 * y3;
+        row[x] = v;
+        y3 = y2;
+        y2 = y1;
+        y1 = v;
+      }
+    }
+  }
+
+  private void filterColumns(float[][] pixels, int startCol, int endCol) {
+    int height = pixels.length;
+    int count = endCol - startCol;
+    // Per column state, so each pass reads and writes whole rows in order
+    float[] s1 = new float[count];
+    float[] s2 = new float[count];
+    float[] s3 = new float[count];
+    float[] last = new float[count];
+    System.arraycopy(pixels[height - 1], startCol, last, 0, count);
+
+    // Causal pass
+    System.arraycopy(pixels[0], startCol, s1, 0, count);
+    System.arraycopy(s1, 0, s2, 0, count);
+    System.arraycopy(s1, 0, s3, 0, count);
+    for (int y = 0; y < height; y++) {
+      float[] row = pixels[y];
+      for (int i = 0, x = startCol; i < count; i++, x++) {
+        float v = b * row[x] + a1 * s1[i] + a2 * s2[i] + a3 * s3[i];
+        row[x] = v;
+        s3[i] = s2[i];
+        s2[i] = s1[i];
+        s1[i] = v;
+      }
+    }
+
+    // Anti-causal pass, s1..s3 hold the last three causal outputs
+    for (int i = 0; i < count; i++) {
+      float d0 = s1[i] - last[i];
+      float d1 = s2[i] - last[i];
+      float d2 = s3[i] - last[i];
+      s1[i] = last[i] + boundary[0][0] * d0 + boundary[0][1] * d1 + boundary[0][2] * d2;
+      s2[i] = last[i] + boundary[1][0] * d0 + boundary[1][1] * d1 + boundary[1][2] * d2;
+      s3[i] = last[i] + boundary[2][0] * d0 + boundary[2][1] * d1 + boundary[2][2] * d2;
+    }
+    for (int y = height - 1; y >= 0; y--) {
+      float[] row = pixels[y];
+      for (int i = 0, x = startCol; i < count; i++, x++) {
+        float v = b * row[x] + a1 * s1[i] + a2 * s2[i] + a3 * s3[i];
+        row[x] = v;
+        s3[i] = s2[i];
+        s2[i] = s1[i];
+        s1[i] = v;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,56 @@
+package uk.ac.soton.ecs.dsj.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Helpers for producing the content hashes used to key on-disk caches.
+ */
+public final class Hashing {
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private Hashing() {}
+
+  /**
+   * @return A new SHA-1 digest instance
+   */
+  public static MessageDigest sha1() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-1
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param data Bytes to hash
+   * @return Lower case hex SHA-1 of the provided bytes
+   */
+  public static String sha1Hex(byte[] data) {
+    return toHex(sha1().digest(data));
+  }
+
+  /**
+   * @param text Text to hash (UTF-8 encoded before hashing)
+   * @return Lower case hex SHA-1 of the provided text
+   */
+  public static String sha1Hex(String text) {
+    return sha1Hex(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @param digest Raw digest bytes
+   * @return Lower case hex representation of the digest
+   */
+  public static String toHex(byte[] digest) {
+    char[] out = new char[digest.length * 2];
+    for (int i = 0; i < digest.length; i++) {
+      out[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+      out[i * 2 + 1] = HEX[digest[i] & 0xF];
+    }
+    return new String(out);
+  }
+
+}
@@ -0,0 +1,265 @@
+package uk.ac.soton.ecs.dsj.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+
+/**
+ * Content-addressed local cache in front of {@link ImageUtilities#readMBF(URL)}.
+ * <p>
+ * Decoded images are stored as raw float rasters named by the SHA-1 of the encoded source bytes,
+ * so two URLs serving the same file share one raster. Remote URLs are additionally indexed by the
+ * SHA-1 of the URL itself, letting repeat runs skip both the network fetch and the decode.
+ * {@code file:} URLs are always re-hashed (cheap compared to decoding) so local edits are picked up
+ * and no network is needed. Rasters are read back through a memory mapped buffer.
+ */
+public class ImageCache {
+  /** System property that overrides the default cache directory */
+  public static final String CACHE_DIR_PROPERTY = "dsj.cache.dir";
+
+  private static final int MAGIC = 0x4D424649; // "MBFI"
+  private static final int VERSION = 1;
+  private static final String RASTER_SUFFIX = ".mbf";
+  private static final String ENCODED_SUFFIX = ".enc";
+  private static final String URL_INDEX_PREFIX = "url-";
+
+  private static ImageCache defaultCache;
+
+  private final File directory;
+
+  /**
+   * Create a cache that stores its rasters in the given directory, creating it if required.
+   *
+   * @param directory Directory to store cache files in
+   */
+  public ImageCache(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * @return A shared cache stored under {@code ~/.openimaj-tutorial/images}, or the directory
+   *         given by the {@value #CACHE_DIR_PROPERTY} system property
+   */
+  public static synchronized ImageCache getDefault() {
+    if (defaultCache == null) {
+      String path = System.getProperty(CACHE_DIR_PROPERTY);
+      File dir = path != null ? new File(path)
+          : new File(new File(System.getProperty("user.home"), ".openimaj-tutorial"), "images");
+      defaultCache = new ImageCache(dir);
+    }
+    return defaultCache;
+  }
+
+  /**
+   * @return The directory used to store cache files
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Read a multi-band image, serving it from the cache where possible. Behaves like
+   * {@link ImageUtilities#readMBF(URL)} on a cache miss.
+   *
+   * @param url Source of the image, may be remote or a {@code file:} URL
+   * @return The decoded image, each call returns a new independent instance
+   * @throws IOException If the image could not be fetched, decoded or cached
+   */
+  public MBFImage readMBF(URL url) throws IOException {
+    boolean local = "file".equalsIgnoreCase(url.getProtocol());
+    File index = new File(directory, URL_INDEX_PREFIX + Hashing.sha1Hex(url.toExternalForm()));
+
+    // Remote sources are trusted not to change so can be resolved without touching the network
+    if (!local && index.isFile()) {
+      String contentHash = new String(Files.readAllBytes(index.toPath()), StandardCharsets.UTF_8);
+      File raster = rasterFile(contentHash.trim());
+      if (raster.isFile()) {
+        return readRaster(raster);
+      }
+    }
+
+    byte[] encoded = readFully(url);
+    String contentHash = Hashing.sha1Hex(encoded);
+    File raster = rasterFile(contentHash);
+    MBFImage image;
+    if (raster.isFile()) {
+      image = readRaster(raster);
+    } else {
+      image = ImageUtilities.readMBF(new ByteArrayInputStream(encoded));
+      ensureDirectory();
+      writeRaster(image, raster);
+    }
+    if (!local) {
+      ensureDirectory();
+      writeAtomically(index, contentHash.getBytes(StandardCharsets.UTF_8));
+    }
+    return image;
+  }
+
+  /**
+   * Get a local file holding the encoded image, for readers that decode from a file themselves.
+   * Remote sources are fetched once and their encoded bytes kept in the cache (named by content
+   * like the rasters, through the same URL index), {@code file:} URLs are simply their own file.
+   *
+   * @param url Source of the image, may be remote or a {@code file:} URL
+   * @return File of the encoded image, not to be modified
+   * @throws IOException If the image could not be fetched or cached
+   */
+  public File getEncodedFile(URL url) throws IOException {
+    if ("file".equalsIgnoreCase(url.getProtocol())) {
+      try {
+        return new File(url.toURI());
+      } catch (URISyntaxException e) {
+        throw new IOException("Not a local file: " + url, e);
+      }
+    }
+    File index = new File(directory, URL_INDEX_PREFIX + Hashing.sha1Hex(url.toExternalForm()));
+    if (index.isFile()) {
+      String contentHash = new String(Files.readAllBytes(index.toPath()), StandardCharsets.UTF_8);
+      File encoded = encodedFile(contentHash.trim());
+      if (encoded.isFile()) {
+        return encoded;
+      }
+    }
+
+    byte[] bytes = readFully(url);
+    String contentHash = Hashing.sha1Hex(bytes);
+    File encoded = encodedFile(contentHash);
+    ensureDirectory();
+    if (!encoded.isFile()) {
+      writeAtomically(encoded, bytes);
+    }
+    writeAtomically(index, contentHash.getBytes(StandardCharsets.UTF_8));
+    return encoded;
+  }
+
+  private File encodedFile(String contentHash) {
+    return new File(directory, contentHash + ENCODED_SUFFIX);
+  }
+
+  private File rasterFile(String contentHash) {
+    return new File(directory, contentHash + RASTER_SUFFIX);
+  }
+
+  private void ensureDirectory() throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+      throw new IOException("Unable to create cache directory: " + directory);
+    }
+  }
+
+  private static byte[] readFully(URL url) throws IOException {
+    try (InputStream in = url.openStream()) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  /**
+   * Write the raw raster: header (magic, version, width, height, bands, colour space name) followed
+   * by each band's rows as little endian floats.
+   */
+  private void writeRaster(MBFImage image, File target) throws IOException {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    byte[] colourSpace = image.colourSpace.name().getBytes(StandardCharsets.UTF_8);
+
+    File tmp = File.createTempFile("raster", ".tmp", directory);
+    try {
+      try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+          FileChannel channel = raf.getChannel()) {
+        ByteBuffer header =
+            ByteBuffer.allocate(24 + colourSpace.length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(image.numBands());
+        header.putInt(colourSpace.length).put(colourSpace);
+        header.flip();
+        writeFully(channel, header);
+
+        ByteBuffer row = ByteBuffer.allocate(width * 4).order(ByteOrder.LITTLE_ENDIAN);
+        FloatBuffer rowFloats = row.asFloatBuffer();
+        for (FImage band : image.bands) {
+          for (int y = 0; y < height; y++) {
+            rowFloats.clear();
+            rowFloats.put(band.pixels[y]);
+            row.clear();
+            writeFully(channel, row);
+          }
+        }
+      }
+      moveAtomically(tmp, target);
+    } finally {
+      // Still there only if the write or move failed
+      Files.deleteIfExists(tmp.toPath());
+    }
+  }
+
+  private static MBFImage readRaster(File source) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(source, "r");
+        FileChannel channel = raf.getChannel()) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      mapped.order(ByteOrder.LITTLE_ENDIAN);
+      if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION) {
+        throw new IOException("Not a cached raster: " + source);
+      }
+      int width = mapped.getInt();
+      int height = mapped.getInt();
+      int numBands = mapped.getInt();
+      byte[] colourSpace = new byte[mapped.getInt()];
+      mapped.get(colourSpace);
+
+      FloatBuffer floats = mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+      FImage[] bands = new FImage[numBands];
+      for (int b = 0; b < numBands; b++) {
+        bands[b] = new FImage(width, height);
+        for (int y = 0; y < height; y++) {
+          floats.get(bands[b].pixels[y]);
+        }
+      }
+      return new MBFImage(ColourSpace.valueOf(new String(colourSpace, StandardCharsets.UTF_8)),
+          bands);
+    }
+  }
+
+  private void writeAtomically(File target, byte[] data) throws IOException {
+    File tmp = File.createTempFile("index", ".tmp", directory);
+    try {
+      Files.write(tmp.toPath(), data);
+      moveAtomically(tmp, target);
+    } finally {
+      Files.deleteIfExists(tmp.toPath());
+    }
+  }
+
+  private static void moveAtomically(File from, File to) throws IOException {
+    Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+}
@@ -0,0 +1,245 @@
+package uk.ac.soton.ecs.dsj.video;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.openimaj.image.FImage;
+import org.openimaj.image.processing.face.detection.FaceDetector;
+import org.openimaj.image.processing.face.detection.keypoints.FKEFaceDetector;
+import org.openimaj.image.processing.face.detection.keypoints.FacialKeypoint;
+import org.openimaj.image.processing.face.detection.keypoints.KEDetectedFace;
+import org.openimaj.math.geometry.point.Point2dImpl;
+import org.openimaj.math.geometry.shape.Rectangle;
+
+/**
+ * Detects faces on a downscaled copy of each image, choosing the scale for each image so that
+ * detection stays within a time budget, and maps the faces found back to the full image.
+ * <p>
+ * Most of the cost of a cascade is in its smallest windows, so shrinking the image is in effect
+ * raising the smallest face found (to the detector's minimum size divided by the scale) and the
+ * cost falls with the number of pixels. After each detection the cost per pixel and the time taken
+ * to downscale are measured and smoothed, and the next scale chosen to fill the budget, between the
+ * minimum scale and full size.
+ * Bounds and keypoints are scaled back to the full image, the face patches are left at the scale
+ * they were found. The chosen scale, latency and number of faces are recorded, see
+ * {@link #toString()}. Not thread safe, as the wrapped detector may not be.
+ */
+public class AdaptiveScaleFaceDetector implements FaceDetector<KEDetectedFace, FImage> {
+  /** Default smallest scale images are detected at */
+  public static final float DEFAULT_MIN_SCALE = 0.25f;
+  // Weight of the newest measurement in the smoothed cost per pixel
+  private static final double SMOOTHING = 0.3;
+
+  private final FaceDetector<KEDetectedFace, FImage> detector;
+  private float budgetMillis;
+  private float minScale = DEFAULT_MIN_SCALE;
+  private float scale = 1;
+  // Smoothed detection time per pixel detected on and time to downscale, in milliseconds, or -1
+  // before the first measurement
+  private double millisPerPixel = -1;
+  private double resizeMillis = -1;
+
+  private final LatencyStats latency = new LatencyStats();
+  private long frames;
+  private long faces;
+  private double scaleSum;
+
+  /**
+   * Detect with a default {@link FKEFaceDetector}.
+   *
+   * @param budgetMillis Time to stay within for each detection
+   */
+  public AdaptiveScaleFaceDetector(float budgetMillis) {
+    this(new FKEFaceDetector(), budgetMillis);
+  }
+
+  /**
+   * @param detector Detector to run on the downscaled images, used only by this detector
+   * @param budgetMillis Time to stay within for each detection
+   */
+  public AdaptiveScaleFaceDetector(FaceDetector<KEDetectedFace, FImage> detector,
+      float budgetMillis) {
+    this.detector = detector;
+    setBudgetMillis(budgetMillis);
+  }
+
+  /**
+   * @param budgetMillis Time to stay within for each detection
+   * @return This detector
+   */
+  public AdaptiveScaleFaceDetector setBudgetMillis(float budgetMillis) {
+    if (!(budgetMillis > 0)) {
+      throw new IllegalArgumentException("Budget must be positive: " + budgetMillis);
+    }
+    this.budgetMillis = budgetMillis;
+    return this;
+  }
+
+  /**
+   * @param minScale Smallest scale to detect at, however far over budget, up to 1
+   * @return This detector
+   */
+  public AdaptiveScaleFaceDetector setMinScale(float minScale) {
+    if (!(minScale > 0 && minScale <= 1)) {
+      throw new IllegalArgumentException("Minimum scale must be in (0, 1]: " + minScale);
+    }
+    this.minScale = minScale;
+    scale = Math.max(scale, minScale);
+    return this;
+  }
+
+  @Override
+  public List<KEDetectedFace> detectFaces(FImage image) {
+    long start = System.nanoTime();
+    FImage small = scale < 1 ? downscale(image, scale) : image;
+    long resized = System.nanoTime();
+    List<KEDetectedFace> found = detector.detectFaces(small);
+    long detected = System.nanoTime();
+    List<KEDetectedFace> result = new ArrayList<>(found.size());
+    // Scale back by the size actually produced, after rounding and halving
+    float sx = image.width / (float) small.width;
+    float sy = image.height / (float) small.height;
+    for (KEDetectedFace face : found) {
+      Rectangle b = face.getBounds();
+      FacialKeypoint[] keypoints = new FacialKeypoint[face.getKeypoints().length];
+      for (int i = 0; i < keypoints.length; i++) {
+        FacialKeypoint point = face.getKeypoints()[i];
+        keypoints[i] = new FacialKeypoint(point.type,
+            new Point2dImpl(point.position.x * sx, point.position.y * sy));
+      }
+      result.add(new KEDetectedFace(new Rectangle(b.x * sx, b.y * sy, b.width * sx,
+          b.height * sy), face.getFacePatch(), keypoints, face.getConfidence()));
+    }
+
+    frames++;
+    faces += result.size();
+    scaleSum += scale;
+    latency.record(System.nanoTime() - start);
+    millisPerPixel = smooth(millisPerPixel,
+        (detected - resized) / 1e6 / ((double) small.width * small.height));
+    if (small != image) {
+      resizeMillis = smooth(resizeMillis, (resized - start) / 1e6);
+    }
+    // Pixels that fit in the budget left after downscaling, then the scale giving that many
+    double pixels = (budgetMillis - Math.max(0, resizeMillis)) / Math.max(millisPerPixel, 1e-12);
+    scale = (float) Math.max(minScale,
+        Math.min(1, Math.sqrt(Math.max(0, pixels) / (image.width * image.height))));
+    return result;
+  }
+
+  private static double smooth(double previous, double measured) {
+    return previous < 0 ? measured : SMOOTHING * measured + (1 - SMOOTHING) * previous;
+  }
+
+  /**
+   * Shrink an image by halving (averaging blocks of 2x2 pixels, so detail is not aliased) until
+   * less than half is left to go, then bilinear sampling. Much quicker than a filtered resize,
+   * which would take a large part of the budget.
+   */
+  private static FImage downscale(FImage image, float scale) {
+    FImage source = image;
+    float remaining = scale;
+    while (remaining <= 0.5f && source.width >= 2 && source.height >= 2) {
+      FImage half = new FImage(source.width / 2, source.height / 2);
+      for (int y = 0; y < half.height; y++) {
+        float[] row0 = source.pixels[2 * y];
+        float[] row1 = source.pixels[2 * y + 1];
+        float[] out = half.pixels[y];
+        for (int x = 0; x < half.width; x++) {
+          out[x] = 0.25f * (row0[2 * x] + row0[2 * x + 1] + row1[2 * x] + row1[2 * x + 1]);
+        }
+      }
+      source = half;
+      remaining *= 2;
+    }
+
+    int width = Math.max(1, Math.round(source.width * remaining));
+    int height = Math.max(1, Math.round(source.height * remaining));
+    float ratioX = source.width / (float) width;
+    float ratioY = source.height / (float) height;
+    FImage small = new FImage(width, height);
+    for (int y = 0; y < height; y++) {
+      float sy = Math.max(0, Math.min(source.height - 1, (y + 0.5f) * ratioY - 0.5f));
+      int y0 = (int) sy;
+      int y1 = Math.min(source.height - 1, y0 + 1);
+      float fy = sy - y0;
+      float[] row0 = source.pixels[y0];
+      float[] row1 = source.pixels[y1];
+      float[] out = small.pixels[y];
+      for (int x = 0; x < width; x++) {
+        float sx = Math.max(0, Math.min(source.width - 1, (x + 0.5f) * ratioX - 0.5f));
+        int x0 = (int) sx;
+        int x1 = Math.min(source.width - 1, x0 + 1);
+        float fx = sx - x0;
+        float top = row0[x0] + fx * (row0[x1] - row0[x0]);
+        float bottom = row1[x0] + fx * (row1[x1] - row1[x0]);
+        out[x] = top + fy * (bottom - top);
+      }
+    }
+    return small;
+  }
+
+  /**
+   * @return Scale the next image will be detected at
+   */
+  public float getScale() {
+    return scale;
+  }
+
+  /**
+   * @return Mean scale images were detected at
+   */
+  public double getMeanScale() {
+    return frames == 0 ? 0 : scaleSum / frames;
+  }
+
+  /**
+   * @return Time taken by each detection, including the downscaling
+   */
+  public LatencyStats getLatency() {
+    return latency;
+  }
+
+  /**
+   * @return Number of images detected on
+   */
+  public long getFrames() {
+    return frames;
+  }
+
+  /**
+   * @return Number of faces found over every image
+   */
+  public long getFaces() {
+    return faces;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d frames, %d faces, scale %.2f (mean %.2f) for %.1fms budget, "
+        + "latency %s", frames, faces, scale, getMeanScale(), budgetMillis, latency);
+  }
+
+  @Override
+  public void readBinary(DataInput in) throws IOException {
+    budgetMillis = in.readFloat();
+    minScale = in.readFloat();
+    detector.readBinary(in);
+  }
+
+  @Override
+  public byte[] binaryHeader() {
+    return "ASFD".getBytes(StandardCharsets.US_ASCII);
+  }
+
+  @Override
+  public void writeBinary(DataOutput out) throws IOException {
+    out.writeFloat(budgetMillis);
+    out.writeFloat(minScale);
+    detector.writeBinary(out);
+  }
+
+}
@@ -0,0 +1,77 @@
+package uk.ac.soton.ecs.dsj.video;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the bytes allocated on the heap by all live threads, to confirm that a loop has stopped
+ * allocating once warmed up. Allocations by threads that end during a measurement are not counted,
+ * such threads can measure themselves with {@link #currentThreadBytes()}. Needs a JVM that reports
+ * per thread allocation (HotSpot), otherwise measures nothing.
+ */
+public class AllocationMeter {
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private long start;
+  private long startNanos;
+
+  /**
+   * Create a meter, measuring from now.
+   */
+  public AllocationMeter() {
+    reset();
+  }
+
+  /**
+   * Measure from now.
+   */
+  public void reset() {
+    start = allocated();
+    startNanos = System.nanoTime();
+  }
+
+  /**
+   * @return Bytes allocated since the meter was reset
+   */
+  public long getBytes() {
+    return allocated() - start;
+  }
+
+  /**
+   * @return Megabytes allocated per second since the meter was reset
+   */
+  public double getMegabytesPerSecond() {
+    double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+    return getBytes() / (1024.0 * 1024.0) / seconds;
+  }
+
+  /**
+   * @return Bytes allocated by the current thread so far, or 0 if not supported
+   */
+  public static long currentThreadBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return 0;
+    }
+    return Math.max(0, ((com.sun.management.ThreadMXBean) threads)
+        .getThreadAllocatedBytes(Thread.currentThread().getId()));
+  }
+
+  private long allocated() {
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return 0;
+    }
+    com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+    long total = 0;
+    for (long bytes : bean.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+      total += Math.max(0, bytes);
+    }
+    return total;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%.1fMB allocated (%.1fMB/s)", getBytes() / (1024.0 * 1024.0),
+        getMegabytesPerSecond());
+  }
+
+}
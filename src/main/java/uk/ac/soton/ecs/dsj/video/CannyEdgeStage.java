@@ -0,0 +1,19 @@
+package uk.ac.soton.ecs.dsj.video;
+
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.processing.edges.CannyEdgeDetector;
+import org.openimaj.util.function.Function;
+
+/**
+ * Replaces a frame with its Canny edges, in place.
+ */
+public class CannyEdgeStage implements Function<MBFImage, MBFImage> {
+
+  @Override
+  public MBFImage apply(MBFImage frame) {
+    // The detector may set its thresholds from each image, so is not shared between threads
+    frame.processInplace(new CannyEdgeDetector());
+    return frame;
+  }
+
+}
@@ -0,0 +1,255 @@
+package uk.ac.soton.ecs.dsj.video;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.openimaj.image.MBFImage;
+import org.openimaj.math.geometry.shape.Rectangle;
+
+/**
+ * Finds the parts of each frame that have changed, on a coarse grid of blocks, so that costly
+ * per-frame operators can run only on the changed (dirty) areas and reuse their previous results
+ * elsewhere.
+ * <p>
+ * A block is dirty when the mean absolute difference of its pixels (over every band) from the
+ * reference exceeds the threshold. The reference holds each block as it was when last dirty,
+ * rather than the previous frame, so slow changes build up until they are noticed instead of
+ * never being. As a result a block's reference is always close to its content, so results kept for
+ * clean blocks remain valid even if frames arrive out of order, though more of each frame is then
+ * dirty. The first frame, and any frame of a new size, is dirty everywhere. A detector is not
+ * thread safe. The fraction of blocks skipped (not dirty) is recorded over every frame, see
+ * {@link #toString()}.
+ */
+public class ChangeDetector {
+  /** Default size in pixels of a block of the grid */
+  public static final int DEFAULT_BLOCK_SIZE = 16;
+  /** Default mean absolute difference (for pixels from 0 to 1) above which a block has changed */
+  public static final float DEFAULT_THRESHOLD = 0.02f;
+
+  private final int blockSize;
+  private final float threshold;
+  private MBFImage reference;
+  private boolean[][] dirty = new boolean[0][0];
+  private int dirtyBlocks;
+
+  private long frames;
+  private long totalBlocks;
+  private long skippedBlocks;
+
+  /**
+   * Create a detector with the default block size and threshold.
+   */
+  public ChangeDetector() {
+    this(DEFAULT_BLOCK_SIZE, DEFAULT_THRESHOLD);
+  }
+
+  /**
+   * @param blockSize Size in pixels of a block of the grid
+   * @param threshold Mean absolute difference above which a block has changed, above the noise of
+   *        the camera
+   */
+  public ChangeDetector(int blockSize, float threshold) {
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("Block size must be at least 1: " + blockSize);
+    }
+    this.blockSize = blockSize;
+    this.threshold = threshold;
+  }
+
+  /**
+   * Find the blocks of a frame that have changed, then update the reference for them.
+   *
+   * @param frame Next frame
+   * @return Dirty blocks, indexed [row][column], only valid until the next update
+   */
+  public boolean[][] update(MBFImage frame) {
+    int width = frame.getWidth();
+    int height = frame.getHeight();
+    int columns = (width + blockSize - 1) / blockSize;
+    int rows = (height + blockSize - 1) / blockSize;
+    boolean all = reference == null || reference.getWidth() != width
+        || reference.getHeight() != height || reference.numBands() != frame.numBands();
+    if (all) {
+      reference = frame.clone();
+      dirty = new boolean[rows][columns];
+    }
+
+    dirtyBlocks = 0;
+    int bands = frame.numBands();
+    for (int row = 0; row < rows; row++) {
+      int y0 = row * blockSize;
+      int y1 = Math.min(height, y0 + blockSize);
+      for (int column = 0; column < columns; column++) {
+        int x0 = column * blockSize;
+        int x1 = Math.min(width, x0 + blockSize);
+        boolean changed = all;
+        if (!changed) {
+          double sum = 0;
+          for (int b = 0; b < bands; b++) {
+            float[][] current = frame.getBand(b).pixels;
+            float[][] previous = reference.getBand(b).pixels;
+            for (int y = y0; y < y1; y++) {
+              for (int x = x0; x < x1; x++) {
+                sum += Math.abs(current[y][x] - previous[y][x]);
+              }
+            }
+          }
+          changed = sum > threshold * bands * (y1 - y0) * (x1 - x0);
+          if (changed) {
+            for (int b = 0; b < bands; b++) {
+              float[][] current = frame.getBand(b).pixels;
+              float[][] previous = reference.getBand(b).pixels;
+              for (int y = y0; y < y1; y++) {
+                System.arraycopy(current[y], x0, previous[y], x0, x1 - x0);
+              }
+            }
+          }
+        }
+        dirty[row][column] = changed;
+        if (changed) {
+          dirtyBlocks++;
+        }
+      }
+    }
+
+    frames++;
+    totalBlocks += rows * columns;
+    skippedBlocks += rows * columns - dirtyBlocks;
+    return dirty;
+  }
+
+  /**
+   * @return Fraction of the blocks of the last frame that were dirty
+   */
+  public double getDirtyFraction() {
+    int blocks = getRows() * getColumns();
+    return blocks == 0 ? 0 : dirtyBlocks / (double) blocks;
+  }
+
+  /**
+   * Group the dirty blocks of the last frame into rectangles, each the bounds of connected dirty
+   * blocks grown by a margin (and clipped to the frame). Rectangles that would overlap are merged,
+   * so each part of the frame is in at most one.
+   *
+   * @param margin Pixels to grow each rectangle by, the reach of the operator to run on them
+   * @return Rectangles covering every dirty block, with integer bounds
+   */
+  public List<Rectangle> getDirtyRegions(int margin) {
+    int rows = getRows();
+    int columns = getColumns();
+    boolean[][] seen = new boolean[rows][columns];
+    int[] stack = new int[rows * columns];
+    List<Rectangle> regions = new ArrayList<>();
+    for (int row = 0; row < rows; row++) {
+      for (int column = 0; column < columns; column++) {
+        if (!dirty[row][column] || seen[row][column]) {
+          continue;
+        }
+        // Flood fill the connected blocks, tracking their bounds
+        int minRow = row;
+        int maxRow = row;
+        int minColumn = column;
+        int maxColumn = column;
+        int size = 0;
+        stack[size++] = row * columns + column;
+        seen[row][column] = true;
+        while (size > 0) {
+          int block = stack[--size];
+          int r = block / columns;
+          int c = block % columns;
+          minRow = Math.min(minRow, r);
+          maxRow = Math.max(maxRow, r);
+          minColumn = Math.min(minColumn, c);
+          maxColumn = Math.max(maxColumn, c);
+          for (int dr = -1; dr <= 1; dr++) {
+            for (int dc = -1; dc <= 1; dc++) {
+              int nr = r + dr;
+              int nc = c + dc;
+              if (nr >= 0 && nc >= 0 && nr < rows && nc < columns && dirty[nr][nc]
+                  && !seen[nr][nc]) {
+                seen[nr][nc] = true;
+                stack[size++] = nr * columns + nc;
+              }
+            }
+          }
+        }
+        regions.add(clip(new Rectangle(minColumn * blockSize - margin, minRow * blockSize - margin,
+            (maxColumn - minColumn + 1) * blockSize + 2 * margin,
+            (maxRow - minRow + 1) * blockSize + 2 * margin)));
+      }
+    }
+    return mergeOverlapping(regions);
+  }
+
+  /**
+   * Merge overlapping rectangles into their union until none overlap.
+   *
+   * @param regions Rectangles, merged in place
+   * @return The given list
+   */
+  public static List<Rectangle> mergeOverlapping(List<Rectangle> regions) {
+    boolean merged = true;
+    while (merged) {
+      merged = false;
+      for (int i = 0; i < regions.size() && !merged; i++) {
+        for (int j = i + 1; j < regions.size() && !merged; j++) {
+          if (regions.get(i).isOverlapping(regions.get(j))) {
+            regions.set(i, regions.get(i).union(regions.get(j)));
+            regions.remove(j);
+            merged = true;
+          }
+        }
+      }
+    }
+    return regions;
+  }
+
+  private Rectangle clip(Rectangle rectangle) {
+    float x0 = Math.max(0, rectangle.x);
+    float y0 = Math.max(0, rectangle.y);
+    float x1 = Math.min(reference.getWidth(), rectangle.x + rectangle.width);
+    float y1 = Math.min(reference.getHeight(), rectangle.y + rectangle.height);
+    return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+  }
+
+  /**
+   * @return Size in pixels of a block of the grid
+   */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * @return Number of rows of blocks in the last frame
+   */
+  public int getRows() {
+    return dirty.length;
+  }
+
+  /**
+   * @return Number of columns of blocks in the last frame
+   */
+  public int getColumns() {
+    return dirty.length == 0 ? 0 : dirty[0].length;
+  }
+
+  /**
+   * @return Number of frames seen
+   */
+  public long getFrames() {
+    return frames;
+  }
+
+  /**
+   * @return Fraction of blocks that were not dirty over every frame, the work skipped
+   */
+  public double getSkippedFraction() {
+    return totalBlocks == 0 ? 0 : skippedBlocks / (double) totalBlocks;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d frames, %.1f%% of %dx%d blocks skipped", frames,
+        100 * getSkippedFraction(), blockSize, blockSize);
+  }
+
+}
@@ -0,0 +1,102 @@
+package uk.ac.soton.ecs.dsj.video;
+
+import java.util.List;
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.RGBColour;
+import org.openimaj.image.colour.Transforms;
+import org.openimaj.image.processing.face.detection.keypoints.FKEFaceDetector;
+import org.openimaj.image.processing.face.detection.keypoints.FacialKeypoint;
+import org.openimaj.image.processing.face.detection.keypoints.FacialKeypoint.FacialKeypointType;
+import org.openimaj.image.processing.face.detection.keypoints.KEDetectedFace;
+import org.openimaj.image.typography.hershey.HersheyFont;
+import org.openimaj.math.geometry.point.Point2dImpl;
+import org.openimaj.math.geometry.shape.Ellipse;
+import org.openimaj.util.function.Function;
+
+/**
+ * Detects faces in a frame and draws their bounds, facial keypoints and a speech bubble onto it,
+ * in place.
+ */
+public class FaceOverlayStage implements Function<MBFImage, MBFImage> {
+  // Detectors are costly to create and not thread safe, so each thread keeps its own
+  private final ThreadLocal<FKEFaceDetector> detectors = new ThreadLocal<FKEFaceDetector>() {
+    @Override
+    protected FKEFaceDetector initialValue() {
+      return new FKEFaceDetector();
+    }
+  };
+
+  private final FramePool<FImage> greyPool = FramePool.forFImage();
+
+  @Override
+  public MBFImage apply(MBFImage frame) {
+    // Detect on a recycled intensity image rather than a new one per frame
+    FImage grey = intensity(frame, greyPool.acquire(frame.getWidth(), frame.getHeight()));
+    try {
+      draw(frame, detectors.get().detectFaces(grey));
+    } finally {
+      greyPool.release(grey);
+    }
+    return frame;
+  }
+
+  /**
+   * Write the intensity (mean of the bands) of a frame into an image, the same as
+   * {@link Transforms#calculateIntensity(MBFImage)} without allocating.
+   *
+   * @param frame Frame
+   * @param out Image of the same size to write into
+   * @return The output image
+   */
+  public static FImage intensity(MBFImage frame, FImage out) {
+    int bands = frame.numBands();
+    for (int y = 0; y < frame.getHeight(); y++) {
+      float[] row = out.pixels[y];
+      System.arraycopy(frame.getBand(0).pixels[y], 0, row, 0, row.length);
+      for (int b = 1; b < bands; b++) {
+        float[] band = frame.getBand(b).pixels[y];
+        for (int x = 0; x < row.length; x++) {
+          row[x] += band[x];
+        }
+      }
+      for (int x = 0; x < row.length; x++) {
+        row[x] /= bands;
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Draw detected faces onto a frame.
+   *
+   * @param frame Frame to draw on
+   * @param faces Faces found in the frame
+   */
+  public static void draw(MBFImage frame, List<KEDetectedFace> faces) {
+    // Draw points
+    for (KEDetectedFace face : faces) {
+      frame.drawShape(face.getBounds(), RGBColour.RED);
+      for (FacialKeypoint point : face.getKeypoints()) {
+        Point2dImpl pos = point.position.clone();
+        pos.translate(face.getBounds().getTopLeft());
+        frame.drawPoint(pos, RGBColour.GREEN, 3);
+      }
+    }
+    // Draw speech bubbles
+    for (KEDetectedFace face : faces) {
+      Point2dImpl pos = face.getKeypoint(FacialKeypointType.MOUTH_LEFT).position.clone();
+      pos.translate(face.getBounds().getTopLeft());
+      pos.translate(-5, -5);
+      frame.drawShapeFilled(new Ellipse(pos.x, pos.y, 10, 5, 0), RGBColour.WHITE);
+      pos.translate(-20, -20);
+      frame.drawShapeFilled(new Ellipse(pos.x, pos.y, 20, 10, 0), RGBColour.WHITE);
+      pos.translate(-50, -50);
+      frame.drawShapeFilled(new Ellipse(pos.x, pos.y, 70, 30, 0), RGBColour.WHITE);
+      pos.translate(-20, 5);
+      frame.drawText("OpenIMAJ!", (int) pos.x, (int) pos.y, HersheyFont.ASTROLOGY, 10,
+          RGBColour.BLACK);
+    }
+  }
+
+}
@@ -0,0 +1,272 @@
+package uk.ac.soton.ecs.dsj.video;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.openimaj.image.FImage;
+import org.openimaj.image.processing.face.detection.FaceDetector;
+import org.openimaj.image.processing.face.detection.keypoints.FKEFaceDetector;
+import org.openimaj.image.processing.face.detection.keypoints.KEDetectedFace;
+import org.openimaj.math.geometry.shape.Rectangle;
+
+/**
+ * Finds faces in successive frames by detecting them only every few frames and following them in
+ * between, as detection and keypoint localisation are far more costly than following a face that
+ * has moved a little.
+ * <p>
+ * At each detection the image under each face is kept as a template. On the following frames each
+ * template is searched for in a window around its last position, by normalised cross correlation
+ * (coarsely over every other pixel, then refined), and the face moved to the best match along with
+ * its keypoints, which are relative to its bounds. The correlation of the match is the face's
+ * confidence. Faces are detected again after a number of frames, or straight away when any face's
+ * confidence drops too low (e.g. it has turned or left). Only movement is followed, not changes of
+ * size, and new faces are found at the next detection. Frames must be given in order.
+ */
+public class FaceTracker {
+  /** Default number of frames between detections */
+  public static final int DEFAULT_DETECT_INTERVAL = 15;
+  /** Default correlation below which a face is lost and faces are detected again */
+  public static final float DEFAULT_MIN_CONFIDENCE = 0.6f;
+  /** Default pixels a face may move between frames */
+  public static final int DEFAULT_SEARCH_RADIUS = 16;
+  // Search coarsely over every other offset and pixel, then over the neighbours of the best
+  private static final int COARSE_STEP = 2;
+
+  private final FaceDetector<KEDetectedFace, FImage> detector;
+  private int detectInterval = DEFAULT_DETECT_INTERVAL;
+  private float minConfidence = DEFAULT_MIN_CONFIDENCE;
+  private int searchRadius = DEFAULT_SEARCH_RADIUS;
+
+  private List<Track> tracks = new ArrayList<>();
+  private int sinceDetection;
+  private long frames;
+  private long detections;
+  private long lost;
+
+  /**
+   * Create a tracker detecting with a default {@link FKEFaceDetector}.
+   */
+  public FaceTracker() {
+    this(new FKEFaceDetector());
+  }
+
+  /**
+   * @param detector Detector of faces and their keypoints, used only by this tracker
+   */
+  public FaceTracker(FaceDetector<KEDetectedFace, FImage> detector) {
+    this.detector = detector;
+  }
+
+  /**
+   * @param detectInterval Number of frames between detections, 1 to detect on every frame
+   * @return This tracker
+   */
+  public FaceTracker setDetectInterval(int detectInterval) {
+    if (detectInterval < 1) {
+      throw new IllegalArgumentException("Interval must be at least 1: " + detectInterval);
+    }
+    this.detectInterval = detectInterval;
+    return this;
+  }
+
+  /**
+   * @param minConfidence Correlation (up to 1) below which a face is lost
+   * @return This tracker
+   */
+  public FaceTracker setMinConfidence(float minConfidence) {
+    this.minConfidence = minConfidence;
+    return this;
+  }
+
+  /**
+   * @param searchRadius Pixels a face may move between frames
+   * @return This tracker
+   */
+  public FaceTracker setSearchRadius(int searchRadius) {
+    this.searchRadius = searchRadius;
+    return this;
+  }
+
+  /**
+   * Find the faces in the next frame, by detection or by following those already found.
+   *
+   * @param image Intensity image of the frame
+   * @return Faces in the frame, with their bounds and keypoints
+   */
+  public synchronized List<KEDetectedFace> track(FImage image) {
+    frames++;
+    boolean detect = sinceDetection == 0 || sinceDetection >= detectInterval;
+    if (!detect) {
+      for (Track track : tracks) {
+        if (!track.follow(image)) {
+          lost++;
+          detect = true;
+          break;
+        }
+      }
+    }
+    if (detect) {
+      tracks = new ArrayList<>();
+      for (KEDetectedFace face : detector.detectFaces(image)) {
+        Track track = new Track(image, face);
+        if (track.template != null) {
+          tracks.add(track);
+        }
+      }
+      detections++;
+      sinceDetection = 0;
+    }
+    sinceDetection++;
+
+    List<KEDetectedFace> faces = new ArrayList<>(tracks.size());
+    for (Track track : tracks) {
+      faces.add(new KEDetectedFace(track.bounds.clone(), track.face.getFacePatch(),
+          track.face.getKeypoints(), track.confidence));
+    }
+    return faces;
+  }
+
+  /**
+   * @return Number of frames seen
+   */
+  public synchronized long getFrames() {
+    return frames;
+  }
+
+  /**
+   * @return Number of frames faces were detected on, rather than followed
+   */
+  public synchronized long getDetections() {
+    return detections;
+  }
+
+  /**
+   * @return Number of detections made early because a face was lost
+   */
+  public synchronized long getLost() {
+    return lost;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%d frames, %d detections (%.1f%%), %d early as a face was lost", frames,
+        detections, 100.0 * detections / Math.max(1, frames), lost);
+  }
+
+  /**
+   * A face being followed: its template, where it is and how well it matched.
+   */
+  private class Track {
+    private final KEDetectedFace face;
+    private final Rectangle bounds;
+    // Template covers the part of the bounds inside the image, at an offset from their top left
+    private FImage template;
+    private int offsetX;
+    private int offsetY;
+    // Sums of the template pixels and their squares when sampled at each step (1 and coarse)
+    private final double[] templateSum = new double[COARSE_STEP + 1];
+    private final double[] templateSumSq = new double[COARSE_STEP + 1];
+    private float confidence;
+
+    Track(FImage image, KEDetectedFace face) {
+      this.face = face;
+      this.bounds = face.getBounds().clone();
+      this.confidence = face.getConfidence();
+      int x0 = Math.max(0, Math.round(bounds.x));
+      int y0 = Math.max(0, Math.round(bounds.y));
+      int x1 = Math.min(image.width, Math.round(bounds.x + bounds.width));
+      int y1 = Math.min(image.height, Math.round(bounds.y + bounds.height));
+      if (x1 - x0 >= 2 * COARSE_STEP && y1 - y0 >= 2 * COARSE_STEP) {
+        template = image.extractROI(x0, y0, x1 - x0, y1 - y0);
+        offsetX = x0 - Math.round(bounds.x);
+        offsetY = y0 - Math.round(bounds.y);
+        for (int step : new int[] {1, COARSE_STEP}) {
+          for (int ty = 0; ty < template.height; ty += step) {
+            for (int tx = 0; tx < template.width; tx += step) {
+              float tv = template.pixels[ty][tx];
+              templateSum[step] += tv;
+              templateSumSq[step] += tv * tv;
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Move to the best match of the template near the last position.
+     *
+     * @return Whether the match was good enough
+     */
+    boolean follow(FImage image) {
+      int lastX = Math.round(bounds.x) + offsetX;
+      int lastY = Math.round(bounds.y) + offsetY;
+      int minX = Math.max(0, lastX - searchRadius);
+      int minY = Math.max(0, lastY - searchRadius);
+      int maxX = Math.min(image.width - template.width, lastX + searchRadius);
+      int maxY = Math.min(image.height - template.height, lastY + searchRadius);
+      if (minX > maxX || minY > maxY) {
+        confidence = 0;
+        return false;
+      }
+
+      // Coarse search, then refine around the best
+      float best = -2;
+      int bestX = lastX;
+      int bestY = lastY;
+      for (int y = minY; y <= maxY; y += COARSE_STEP) {
+        for (int x = minX; x <= maxX; x += COARSE_STEP) {
+          float score = correlate(image, x, y, COARSE_STEP);
+          if (score > best) {
+            best = score;
+            bestX = x;
+            bestY = y;
+          }
+        }
+      }
+      int coarseX = bestX;
+      int coarseY = bestY;
+      best = -2;
+      for (int y = Math.max(minY, coarseY - 1); y <= Math.min(maxY, coarseY + 1); y++) {
+        for (int x = Math.max(minX, coarseX - 1); x <= Math.min(maxX, coarseX + 1); x++) {
+          float score = correlate(image, x, y, 1);
+          if (score > best) {
+            best = score;
+            bestX = x;
+            bestY = y;
+          }
+        }
+      }
+
+      bounds.translate(bestX - lastX, bestY - lastY);
+      confidence = best;
+      return best >= minConfidence;
+    }
+
+    /**
+     * Normalised cross correlation of the template with the image at a position, over every
+     * step'th pixel in each direction.
+     */
+    private float correlate(FImage image, int x, int y, int step) {
+      float[][] t = template.pixels;
+      float[][] p = image.pixels;
+      double sumI = 0;
+      double sumII = 0;
+      double sumIT = 0;
+      int n = 0;
+      for (int ty = 0; ty < template.height; ty += step) {
+        float[] trow = t[ty];
+        float[] irow = p[y + ty];
+        for (int tx = 0; tx < template.width; tx += step) {
+          float iv = irow[x + tx];
+          sumI += iv;
+          sumII += iv * iv;
+          sumIT += iv * trow[tx];
+          n++;
+        }
+      }
+      double sumT = templateSum[step];
+      double variance = (n * sumII - sumI * sumI) * (n * templateSumSq[step] - sumT * sumT);
+      return variance <= 0 ? 0 : (float) ((n * sumIT - sumI * sumT) / Math.sqrt(variance));
+    }
+  }
+
+}
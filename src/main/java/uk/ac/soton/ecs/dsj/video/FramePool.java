@@ -0,0 +1,224 @@
+package uk.ac.soton.ecs.dsj.video;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.openimaj.image.FImage;
+import org.openimaj.image.Image;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+
+/**
+ * Pool of recycled frame buffers, so that video processing in a steady state allocates no new
+ * images.
+ * <p>
+ * Buffers are kept by size, {@link #acquire(int, int)} returns an idle buffer of the requested size
+ * (with undefined contents) or allocates one, and {@link #release(Image)} returns it for reuse.
+ * Releasing a buffer twice, or one not acquired from the pool, throws an exception. With leak
+ * tracking on the stack of each acquisition is kept, so buffers never released can be traced with
+ * {@link #printLeaks(PrintStream)}. The counts of acquisitions and allocations show how well the
+ * pool is recycling, after warm up the allocations should stop rising.
+ *
+ * @param <T> Type of frame
+ */
+public abstract class FramePool<T extends Image<?, T>> {
+  /** Default number of idle buffers kept of each size */
+  public static final int DEFAULT_MAX_IDLE = 16;
+
+  private final Map<Long, ArrayDeque<T>> idle = new HashMap<>();
+  // Buffers currently acquired, with the stack that acquired them when tracking leaks
+  private final Map<T, Throwable> outstanding = new IdentityHashMap<>();
+  private int maxIdle = DEFAULT_MAX_IDLE;
+  private boolean trackLeaks;
+
+  private long acquired;
+  private long allocated;
+  private long allocatedBytes;
+  private long discarded;
+
+  /**
+   * @return Pool of single band images
+   */
+  public static FramePool<FImage> forFImage() {
+    return new FramePool<FImage>() {
+      @Override
+      protected FImage create(int width, int height) {
+        return new FImage(width, height);
+      }
+
+      @Override
+      protected long bytes(FImage image) {
+        return 4L * image.width * image.height;
+      }
+    };
+  }
+
+  /**
+   * @param colourSpace Colour space of the frames
+   * @return Pool of multi band images
+   */
+  public static FramePool<MBFImage> forMBFImage(final ColourSpace colourSpace) {
+    return new FramePool<MBFImage>() {
+      @Override
+      protected MBFImage create(int width, int height) {
+        return new MBFImage(width, height, colourSpace);
+      }
+
+      @Override
+      protected long bytes(MBFImage image) {
+        return 4L * image.getWidth() * image.getHeight() * image.numBands();
+      }
+    };
+  }
+
+  /**
+   * @param width Frame width
+   * @param height Frame height
+   * @return A new frame
+   */
+  protected abstract T create(int width, int height);
+
+  /**
+   * @param image Frame
+   * @return Size of the frame's pixel data in bytes
+   */
+  protected abstract long bytes(T image);
+
+  /**
+   * @param maxIdle Number of idle buffers kept of each size, more are released to the collector
+   */
+  public synchronized void setMaxIdle(int maxIdle) {
+    this.maxIdle = maxIdle;
+  }
+
+  /**
+   * @param trackLeaks Whether to record where each buffer was acquired (slower)
+   */
+  public synchronized void setTrackLeaks(boolean trackLeaks) {
+    this.trackLeaks = trackLeaks;
+  }
+
+  /**
+   * @param width Frame width
+   * @param height Frame height
+   * @return A buffer of the given size with undefined contents, to be released when finished with
+   */
+  public T acquire(int width, int height) {
+    T image;
+    synchronized (this) {
+      acquired++;
+      ArrayDeque<T> queue = idle.get(key(width, height));
+      image = queue == null ? null : queue.poll();
+    }
+    if (image == null) {
+      image = create(width, height);
+      synchronized (this) {
+        allocated++;
+        allocatedBytes += bytes(image);
+      }
+    }
+    synchronized (this) {
+      outstanding.put(image, trackLeaks ? new Throwable("Acquired here") : null);
+    }
+    return image;
+  }
+
+  /**
+   * @param source Frame to copy
+   * @return A buffer holding a copy of the frame, to be released when finished with
+   */
+  public T copyOf(T source) {
+    T image = acquire(source.getWidth(), source.getHeight());
+    image.internalCopy(source);
+    return image;
+  }
+
+  /**
+   * Return a buffer to the pool. It must not be used again by the caller.
+   *
+   * @param image Buffer acquired from this pool
+   * @throws IllegalArgumentException If the buffer is not currently acquired from this pool
+   */
+  public synchronized void release(T image) {
+    if (!outstanding.containsKey(image)) {
+      throw new IllegalArgumentException(
+          "Frame was not acquired from this pool, or was already released");
+    }
+    outstanding.remove(image);
+    long key = key(image.getWidth(), image.getHeight());
+    ArrayDeque<T> queue = idle.get(key);
+    if (queue == null) {
+      queue = new ArrayDeque<>();
+      idle.put(key, queue);
+    }
+    if (queue.size() < maxIdle) {
+      queue.add(image);
+    } else {
+      discarded++;
+    }
+  }
+
+  /**
+   * @param image Frame
+   * @return Whether the frame is currently acquired from this pool
+   */
+  public synchronized boolean owns(Object image) {
+    return outstanding.containsKey(image);
+  }
+
+  private static long key(int width, int height) {
+    return ((long) width << 32) | (height & 0xFFFFFFFFL);
+  }
+
+  /**
+   * @return Number of buffers acquired and not yet released
+   */
+  public synchronized int getOutstanding() {
+    return outstanding.size();
+  }
+
+  /**
+   * @return Number of acquisitions
+   */
+  public synchronized long getAcquired() {
+    return acquired;
+  }
+
+  /**
+   * @return Number of new buffers allocated
+   */
+  public synchronized long getAllocated() {
+    return allocated;
+  }
+
+  /**
+   * @return Bytes of pixel data allocated for new buffers
+   */
+  public synchronized long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /**
+   * Print where each outstanding buffer was acquired, when leak tracking is on.
+   *
+   * @param out Stream to print to
+   */
+  public synchronized void printLeaks(PrintStream out) {
+    out.println(outstanding.size() + " frames outstanding");
+    for (Map.Entry<T, Throwable> entry : outstanding.entrySet()) {
+      if (entry.getValue() != null) {
+        out.println(entry.getKey().getWidth() + "x" + entry.getKey().getHeight() + " frame:");
+        entry.getValue().printStackTrace(out);
+      }
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%d acquired, %d allocated (%.1fMB), %d outstanding, %d discarded",
+        acquired, allocated, allocatedBytes / (1024.0 * 1024.0), outstanding.size(), discarded);
+  }
+
+}
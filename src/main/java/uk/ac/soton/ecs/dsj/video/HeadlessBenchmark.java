@@ -0,0 +1,121 @@
+package uk.ac.soton.ecs.dsj.video;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.util.function.Function;
+import org.openimaj.util.function.Operation;
+import uk.ac.soton.ecs.dsj.processing.RecursiveGaussianBlur;
+
+/**
+ * Runs the frame processing of the Chapter 7 and 8 webcam apps (blur, Canny edges and face
+ * overlay) over a replayed video with no camera or display, reporting the frame rate and the
+ * percentiles of per frame latency.
+ * <p>
+ * Each stage is run twice: on one thread in turn, as it was from a video display listener (the
+ * latency being the processing of one frame), then through a {@link VideoPipeline} with a renderer
+ * that discards the frames (the latency being from a frame's arrival to the end of its render).
+ * The stages working only on changed areas, or tracking, keep their state between the two, and are
+ * run on one pipeline worker as they need every frame in order.
+ * Run with an optional video file or directory of frames (default the tutorial video) and replay
+ * rate in frames per second (default 0, as fast as possible).
+ */
+public class HeadlessBenchmark {
+  // Frames are replayed until at least this many are processed in each run
+  private static final int MIN_FRAMES = 200;
+  private static final int WARM_UP_FRAMES = 20;
+
+  public static void main(String[] args) throws Exception {
+    // Nothing is displayed, fail rather than open a window if anything tries
+    System.setProperty("java.awt.headless", "true");
+
+    File source = args.length > 0 ? new File(args[0])
+        : new File(HeadlessBenchmark.class.getResource("/keyboardcat.flv").toURI());
+    double rate = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+    ReplayVideo video = ReplayVideo.fromFile(source);
+    int frames = video.getFrames().size();
+    video.setRate(rate).setLoops((MIN_FRAMES + frames - 1) / frames);
+    System.out.println(String.format("Source: %s, %d frames of %dx%d at %.1ffps, replayed %s",
+        source.getName(), frames, video.getWidth(), video.getHeight(), video.getFPS(),
+        rate > 0 ? String.format("at %.1ffps", rate) : "unthrottled"));
+
+    final RecursiveGaussianBlur blur = new RecursiveGaussianBlur(3, false);
+    Map<String, Function<MBFImage, MBFImage>> stages = new LinkedHashMap<>();
+    // Pipeline workers for stages that keep state between frames, others use the default
+    Map<String, Integer> workers = new HashMap<>();
+    stages.put("Blur (ch7)", new Function<MBFImage, MBFImage>() {
+      @Override
+      public MBFImage apply(MBFImage frame) {
+        return frame.processInplace(blur);
+      }
+    });
+    stages.put("Canny (ch7)", new CannyEdgeStage());
+    stages.put("Canny, changed areas (ch7)", new TiledCannyStage());
+    workers.put("Canny, changed areas (ch7)", 1);
+    stages.put("Faces (ch8)", new FaceOverlayStage());
+    stages.put("Faces, changed areas (ch8)", new TiledFaceOverlayStage());
+    workers.put("Faces, changed areas (ch8)", 1);
+    stages.put("Faces, tracked (ch8)", new TrackingFaceOverlayStage());
+    workers.put("Faces, tracked (ch8)", 1);
+    stages.put("Faces, tracked, adaptive scale (ch8)",
+        new TrackingFaceOverlayStage(new FaceTracker(new AdaptiveScaleFaceDetector(40))));
+    workers.put("Faces, tracked, adaptive scale (ch8)", 1);
+
+    Operation<MBFImage> discard = new Operation<MBFImage>() {
+      @Override
+      public void perform(MBFImage frame) {}
+    };
+    for (Map.Entry<String, Function<MBFImage, MBFImage>> stage : stages.entrySet()) {
+      System.out.println();
+      System.out.println(stage.getKey());
+      FramePool<MBFImage> pool = FramePool.forMBFImage(ColourSpace.RGB);
+
+      // One thread, as from a video display listener
+      LatencyStats latency = new LatencyStats();
+      runInTurn(video, stage.getValue(), pool, WARM_UP_FRAMES, null);
+      long start = System.nanoTime();
+      int count = runInTurn(video, stage.getValue(), pool, Integer.MAX_VALUE, latency);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.println(String.format("  In turn:  %6.1f frames/s, latency %s",
+          count / seconds, latency));
+
+      // Decode, process and render on separate threads
+      video.reset();
+      VideoPipeline<MBFImage, MBFImage> pipeline =
+          new VideoPipeline<>(video, stage.getValue(), discard).setFramePool(pool);
+      if (workers.containsKey(stage.getKey())) {
+        pipeline.setWorkers(workers.get(stage.getKey()));
+      }
+      pipeline.run();
+      System.out.println(String.format("  Pipeline: %6.1f frames/s, latency %s",
+          pipeline.getFramesPerSecond(), pipeline.getLatency()));
+    }
+  }
+
+  /**
+   * Process frames from the start of the video on the calling thread, each on a copy of the frame.
+   *
+   * @return Number of frames processed
+   */
+  private static int runInTurn(ReplayVideo video, Function<MBFImage, MBFImage> stage,
+      FramePool<MBFImage> pool, int maxFrames, LatencyStats latency) {
+    video.reset();
+    int count = 0;
+    while (count < maxFrames && video.hasNextFrame()) {
+      MBFImage source = video.getNextFrame();
+      long start = System.nanoTime();
+      MBFImage frame = pool.copyOf(source);
+      stage.apply(frame);
+      pool.release(frame);
+      if (latency != null) {
+        latency.record(System.nanoTime() - start);
+      }
+      count++;
+    }
+    return count;
+  }
+
+}
@@ -0,0 +1,123 @@
+package uk.ac.soton.ecs.dsj.video;
+
+import java.util.Arrays;
+
+/**
+ * Records per frame latencies and reports their percentiles, as the mean alone hides the slow
+ * frames that are seen as stutter.
+ * <p>
+ * Samples are counted in a fixed histogram rather than kept, so memory does not grow however long
+ * a pipeline runs. Latencies below 256ns each have their own bucket, above that each power of 2 is
+ * split into 128 buckets (under 1% wide), up to about 18 minutes where one last bucket takes the
+ * rest. Percentiles are the nearest rank, reported as the top of its bucket (no more than the
+ * maximum, which is exact), so within 1% of the sample itself.
+ * Samples may be recorded from any thread.
+ */
+public class LatencyStats {
+  private static final int SUB_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int MAX_BITS = 40;
+  // Exact buckets, then those of each power of 2 up to 2^MAX_BITS, then the rest
+  private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS + 1;
+
+  private final long[] counts = new long[BUCKETS];
+  private long count;
+  private long total;
+  private long max;
+
+  /**
+   * @param nanos Latency of one frame in nanoseconds
+   */
+  public synchronized void record(long nanos) {
+    nanos = Math.max(0, nanos);
+    counts[bucket(nanos)]++;
+    count++;
+    total += nanos;
+    max = Math.max(max, nanos);
+  }
+
+  /**
+   * Discard every sample.
+   */
+  public synchronized void clear() {
+    Arrays.fill(counts, 0);
+    count = 0;
+    total = 0;
+    max = 0;
+  }
+
+  /**
+   * @return Number of samples
+   */
+  public synchronized long getCount() {
+    return count;
+  }
+
+  /**
+   * @return Mean latency in milliseconds, 0 if there are no samples
+   */
+  public synchronized double getMeanMillis() {
+    return count == 0 ? 0 : total / 1e6 / count;
+  }
+
+  /**
+   * @param percentile Percentile, from 0 to 100
+   * @return Latency in milliseconds that the percentile of samples are at or below (to within 1%),
+   *         0 if there are no samples
+   */
+  public synchronized double getPercentileMillis(double percentile) {
+    if (percentile < 0 || percentile > 100) {
+      throw new IllegalArgumentException("Percentile must be from 0 to 100: " + percentile);
+    }
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(top(i), max) / 1e6;
+      }
+    }
+    return max / 1e6;
+  }
+
+  /**
+   * Bucket of a latency: exact while it fits the sub-buckets, then by its leading bits.
+   */
+  private static int bucket(long nanos) {
+    if (nanos < 2 * SUB_BUCKETS) {
+      return (int) nanos;
+    }
+    int highest = 63 - Long.numberOfLeadingZeros(nanos);
+    if (highest >= MAX_BITS) {
+      return BUCKETS - 1;
+    }
+    int shift = highest - SUB_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) (nanos >>> shift) - SUB_BUCKETS;
+  }
+
+  /**
+   * Largest latency counted in a bucket.
+   */
+  private static long top(int bucket) {
+    if (bucket < 2 * SUB_BUCKETS) {
+      return bucket;
+    }
+    if (bucket == BUCKETS - 1) {
+      return Long.MAX_VALUE;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long leading = bucket % SUB_BUCKETS + SUB_BUCKETS;
+    return ((leading + 1) << shift) - 1;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("p50 %.2fms, p95 %.2fms, p99 %.2fms, max %.2fms (mean %.2fms)",
+        getPercentileMillis(50), getPercentileMillis(95), getPercentileMillis(99),
+        getPercentileMillis(100), getMeanMillis());
+  }
+
+}
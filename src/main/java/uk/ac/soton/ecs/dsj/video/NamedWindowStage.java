@@ -0,0 +1,46 @@
+package uk.ac.soton.ecs.dsj.video;
+
+import java.awt.image.BufferedImage;
+import javax.swing.JFrame;
+import org.openimaj.image.DisplayUtilities;
+import org.openimaj.image.Image;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.util.function.Operation;
+
+/**
+ * Displays each frame in a named window. Frames are converted into two alternating display buffers
+ * rather than a new one per frame, so the buffer being painted is not the one being written.
+ *
+ * @param <T> Type of frame
+ */
+public class NamedWindowStage<T extends Image<?, T>> implements Operation<T> {
+  private final String name;
+  private final BufferedImage[] buffers = new BufferedImage[2];
+  private int current;
+  private JFrame window;
+
+  /**
+   * @param name Name of the window
+   */
+  public NamedWindowStage(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public void perform(T frame) {
+    current = 1 - current;
+    buffers[current] = ImageUtilities.createBufferedImageForDisplay(frame, buffers[current]);
+    window = DisplayUtilities.displayName(buffers[current], name);
+  }
+
+  /**
+   * Hide and dispose of the window, if one was shown.
+   */
+  public void close() {
+    if (window != null) {
+      window.setVisible(false);
+      window.dispose();
+    }
+  }
+
+}
@@ -0,0 +1,216 @@
+package uk.ac.soton.ecs.dsj.video;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.MBFImage;
+import org.openimaj.video.Video;
+import org.openimaj.video.xuggle.XuggleVideo;
+
+/**
+ * Replays frames held in memory as a video, in place of a camera, so that frame processing can be
+ * run and profiled on a machine with no camera or display.
+ * <p>
+ * Frames are decoded up front from a video file or a directory of images (or recorded from
+ * another video, e.g. a camera), so replay costs nothing and every run sees identical frames.
+ * They are delivered at a fixed rate, sleeping in {@link #getNextFrame()} as a camera would wait
+ * for its next frame, or as fast as they are requested with a rate of 0. The frames may be
+ * replayed a number of times over before the video ends. The same frame objects are returned on
+ * every replay, so they must be copied before being modified (as {@link VideoPipeline} does).
+ */
+public class ReplayVideo extends Video<MBFImage> {
+  /** Rate of frames from a directory of images */
+  public static final double DEFAULT_FPS = 25;
+  private static final List<String> IMAGE_SUFFIXES =
+      Arrays.asList(".png", ".jpg", ".jpeg", ".bmp", ".gif", ".pgm", ".ppm");
+
+  private final List<MBFImage> frames;
+  private final double fps;
+  private double rate;
+  private int loops = 1;
+  private int played;
+  private long startNanos = -1;
+
+  /**
+   * @param frames Frames to replay, all of the same size
+   * @param fps Frame rate of the source, the rate they are replayed at by default
+   */
+  public ReplayVideo(List<MBFImage> frames, double fps) {
+    if (frames.isEmpty()) {
+      throw new IllegalArgumentException("No frames to replay");
+    }
+    for (MBFImage frame : frames) {
+      if (frame.getWidth() != frames.get(0).getWidth()
+          || frame.getHeight() != frames.get(0).getHeight()) {
+        throw new IllegalArgumentException("Frames must all be the same size");
+      }
+    }
+    this.frames = new ArrayList<>(frames);
+    this.fps = fps;
+    this.rate = fps;
+  }
+
+  /**
+   * Read a video file, or a directory of frame images in name order (at {@link #DEFAULT_FPS}).
+   *
+   * @param file Video file or directory of images
+   * @return Video replaying the frames
+   * @throws IOException If an image cannot be read
+   */
+  public static ReplayVideo fromFile(File file) throws IOException {
+    if (file.isDirectory()) {
+      return fromDirectory(file, DEFAULT_FPS);
+    }
+    XuggleVideo video = new XuggleVideo(file);
+    try {
+      return fromVideo(video, Integer.MAX_VALUE);
+    } finally {
+      video.close();
+    }
+  }
+
+  /**
+   * @param directory Directory of frame images, all of the same size, replayed in name order
+   * @param fps Frame rate of the images
+   * @return Video replaying the frames
+   * @throws IOException If an image cannot be read
+   */
+  public static ReplayVideo fromDirectory(File directory, double fps) throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("Unable to list " + directory);
+    }
+    Arrays.sort(files);
+    List<MBFImage> frames = new ArrayList<>();
+    for (File file : files) {
+      String name = file.getName().toLowerCase();
+      if (file.isFile() && IMAGE_SUFFIXES.contains(name.substring(Math.max(0,
+          name.lastIndexOf('.'))))) {
+        frames.add(ImageUtilities.readMBF(file));
+      }
+    }
+    return new ReplayVideo(frames, fps);
+  }
+
+  /**
+   * Record the frames of another video, e.g. a few seconds of camera to replay later.
+   *
+   * @param source Video to read until it ends
+   * @param maxFrames Most frames to read, for sources that never end
+   * @return Video replaying the frames at the source's rate
+   */
+  public static ReplayVideo fromVideo(Video<MBFImage> source, int maxFrames) {
+    List<MBFImage> frames = new ArrayList<>();
+    while (frames.size() < maxFrames && source.hasNextFrame()) {
+      MBFImage frame = source.getNextFrame();
+      if (frame == null) {
+        break;
+      }
+      // Sources may reuse their frame buffer
+      frames.add(frame.clone());
+    }
+    return new ReplayVideo(frames, source.getFPS());
+  }
+
+  /**
+   * @param rate Frames delivered per second, 0 to deliver them as fast as they are requested
+   * @return This video
+   */
+  public ReplayVideo setRate(double rate) {
+    if (rate < 0) {
+      throw new IllegalArgumentException("Rate must not be negative: " + rate);
+    }
+    this.rate = rate;
+    return this;
+  }
+
+  /**
+   * @param loops Number of times the frames are replayed before the video ends
+   * @return This video
+   */
+  public ReplayVideo setLoops(int loops) {
+    if (loops < 1) {
+      throw new IllegalArgumentException("Loops must be at least 1: " + loops);
+    }
+    this.loops = loops;
+    return this;
+  }
+
+  /**
+   * @return Frames held for replay, not to be modified
+   */
+  public List<MBFImage> getFrames() {
+    return Collections.unmodifiableList(frames);
+  }
+
+  @Override
+  public synchronized MBFImage getNextFrame() {
+    if (!hasNextFrame()) {
+      return null;
+    }
+    if (startNanos < 0) {
+      startNanos = System.nanoTime();
+    }
+    if (rate > 0) {
+      // Wait until the frame is due, keeping to the rate however long the consumer took
+      long due = startNanos + (long) (played * 1e9 / rate);
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        try {
+          Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+    currentFrame = played;
+    return frames.get(played++ % frames.size());
+  }
+
+  @Override
+  public synchronized MBFImage getCurrentFrame() {
+    return frames.get(currentFrame % frames.size());
+  }
+
+  @Override
+  public int getWidth() {
+    return frames.get(0).getWidth();
+  }
+
+  @Override
+  public int getHeight() {
+    return frames.get(0).getHeight();
+  }
+
+  @Override
+  public synchronized long getTimeStamp() {
+    return (long) (currentFrame * 1000 / fps);
+  }
+
+  @Override
+  public double getFPS() {
+    return fps;
+  }
+
+  @Override
+  public synchronized boolean hasNextFrame() {
+    return played < countFrames();
+  }
+
+  @Override
+  public long countFrames() {
+    return (long) frames.size() * loops;
+  }
+
+  @Override
+  public synchronized void reset() {
+    played = 0;
+    currentFrame = 0;
+    startNanos = -1;
+  }
+
+}
@@ -0,0 +1,196 @@
+package uk.ac.soton.ecs.dsj.video;
+
+import java.util.Arrays;
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.analysis.algorithm.histogram.HistogramAnalyser;
+import org.openimaj.image.processing.convolution.FSobel;
+import org.openimaj.image.processing.edges.NonMaximumSuppressionTangent;
+import org.openimaj.math.geometry.shape.Rectangle;
+import org.openimaj.math.statistics.distribution.Histogram;
+import org.openimaj.util.function.Function;
+
+/**
+ * Replaces a frame with its Canny edges, in place, like {@link CannyEdgeStage} but only detecting
+ * edges in the areas that have changed since the last frame and reusing the last edges elsewhere.
+ * <p>
+ * The steps of {@code CannyEdgeDetector} are repeated here, as it scales the gradients and chooses
+ * its thresholds from each image it is given, so edges found in parts of a frame would not match.
+ * When most of a frame has changed (and for the first frame) the whole frame is processed, giving
+ * the same edges as {@code CannyEdgeDetector}, and its scale and thresholds are kept. Otherwise
+ * each dirty region, grown by the reach of the detector, is processed with the kept scale and
+ * thresholds and its edges copied into the last result. These can differ from edges found over
+ * the whole frame at a few pixels, as which strong pixels are skipped depends on those before them.
+ * Frames are processed one at a time, so run on a single pipeline worker.
+ */
+public class TiledCannyStage implements Function<MBFImage, MBFImage> {
+  /** Dirty fraction of a frame above which the whole frame is processed (and rescaled) */
+  public static final double FULL_FRAME_FRACTION = 0.5;
+  // As used by CannyEdgeDetector
+  private static final float SIGMA = 1;
+  private static final float THRESHOLD_RATIO = 0.4f;
+  private static final int HISTOGRAM_BINS = 64;
+  private static final double HIGH_FRACTION = 0.7;
+
+  private final ChangeDetector detector;
+  // Pixels each side of a region needed to find the edges in it
+  private final int halo = (int) Math.ceil(4 * SIGMA) + 4;
+  private MBFImage edges;
+  // Scale and thresholds of each band, from the last whole frame (-1 thresholds until found, as
+  // CannyEdgeDetector's automatic thresholds)
+  private float[] min;
+  private float[] max;
+  private float[] low;
+  private float[] high;
+
+  private long processedPixels;
+  private long totalPixels;
+
+  /**
+   * Create a stage with a default change detector.
+   */
+  public TiledCannyStage() {
+    this(new ChangeDetector());
+  }
+
+  /**
+   * @param detector Detector finding the changed areas of each frame, not shared with other stages
+   */
+  public TiledCannyStage(ChangeDetector detector) {
+    this.detector = detector;
+  }
+
+  @Override
+  public synchronized MBFImage apply(MBFImage frame) {
+    detector.update(frame);
+    int bands = frame.numBands();
+    int width = frame.getWidth();
+    int height = frame.getHeight();
+    totalPixels += (long) width * height;
+
+    if (edges == null || edges.getWidth() != width || edges.getHeight() != height
+        || edges.numBands() != bands || detector.getDirtyFraction() > FULL_FRAME_FRACTION) {
+      // Whole frame, finding the scale and thresholds for later regions
+      edges = new MBFImage(width, height, frame.colourSpace);
+      min = new float[bands];
+      max = new float[bands];
+      low = new float[bands];
+      high = new float[bands];
+      Arrays.fill(high, -1);
+      for (int b = 0; b < bands; b++) {
+        edges.getBand(b).internalAssign(detect(frame.getBand(b), b, true));
+      }
+      processedPixels += (long) width * height;
+    } else {
+      for (Rectangle region : detector.getDirtyRegions(halo)) {
+        int x = (int) region.x;
+        int y = (int) region.y;
+        int w = (int) region.width;
+        int h = (int) region.height;
+        // Keep only the edges far enough from the sides of the region, unless at the frame edge
+        int x0 = x == 0 ? 0 : halo;
+        int y0 = y == 0 ? 0 : halo;
+        int x1 = x + w == width ? w : w - halo;
+        int y1 = y + h == height ? h : h - halo;
+        for (int b = 0; b < bands; b++) {
+          FImage found = detect(frame.getBand(b).extractROI(x, y, w, h), b, false);
+          float[][] out = edges.getBand(b).pixels;
+          for (int yy = y0; yy < y1; yy++) {
+            System.arraycopy(found.pixels[yy], x0, out[y + yy], x + x0, x1 - x0);
+          }
+        }
+        processedPixels += (long) w * h;
+      }
+    }
+    frame.internalCopy(edges);
+    return frame;
+  }
+
+  /**
+   * Find the edges of an image, as {@code CannyEdgeDetector} does but with a given scale unless
+   * calibrating, and the thresholds found from the first image of each band.
+   */
+  private FImage detect(FImage image, int band, boolean calibrate) {
+    FSobel sobel = new FSobel(SIGMA);
+    image.analyseWith(sobel);
+    FImage magnitudes = new FImage(image.width, image.height);
+    FImage suppressed =
+        NonMaximumSuppressionTangent.computeSuppressed(sobel.dx, sobel.dy, magnitudes);
+    if (calibrate) {
+      min[band] = suppressed.min();
+      max[band] = suppressed.max();
+    }
+    if (high[band] < 0) {
+      high[band] = highThreshold(magnitudes);
+      low[band] = THRESHOLD_RATIO * high[band];
+    }
+    if (max[band] != min[band]) {
+      for (float[] row : suppressed.pixels) {
+        for (int x = 0; x < row.length; x++) {
+          row[x] = (row[x] - min[band]) / (max[band] - min[band]);
+        }
+      }
+    }
+    return threshold(suppressed, low[band], high[band]);
+  }
+
+  /**
+   * The magnitude below which the given fraction of pixels lie, to the nearest bin. As in
+   * {@code CannyEdgeDetector} this is 1 when they do not, such as when most magnitudes are above
+   * the range of the histogram.
+   */
+  private static float highThreshold(FImage magnitudes) {
+    Histogram histogram = HistogramAnalyser.getHistogram(magnitudes, HISTOGRAM_BINS);
+    float sum = 0;
+    for (int i = 0; i < HISTOGRAM_BINS; i++) {
+      if (sum > HIGH_FRACTION * magnitudes.width * magnitudes.height) {
+        return i / (float) HISTOGRAM_BINS;
+      }
+      sum += histogram.values[i];
+    }
+    return 1;
+  }
+
+  /**
+   * Mark the pixels above the high threshold and their neighbours above the low, skipping strong
+   * pixels already marked. This is what {@code CannyEdgeDetector} does, its tracking only reaches
+   * the neighbours of each strong pixel.
+   */
+  private static FImage threshold(FImage magnitudes, float low, float high) {
+    int width = magnitudes.width;
+    int height = magnitudes.height;
+    float[][] in = magnitudes.pixels;
+    FImage output = new FImage(width, height);
+    float[][] out = output.pixels;
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        if (in[y][x] < high || out[y][x] == 1) {
+          continue;
+        }
+        for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++) {
+          for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+            if (in[ny][nx] >= low) {
+              out[ny][nx] = 1;
+            }
+          }
+        }
+      }
+    }
+    return output;
+  }
+
+  /**
+   * @return Fraction of the pixels of every frame that edges were found in, including the margins
+   *         around the changed areas
+   */
+  public synchronized double getProcessedFraction() {
+    return totalPixels == 0 ? 0 : processedPixels / (double) totalPixels;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%s, %.1f%% of pixels processed", detector,
+        100 * getProcessedFraction());
+  }
+
+}
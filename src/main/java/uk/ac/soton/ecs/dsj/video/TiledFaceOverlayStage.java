@@ -0,0 +1,132 @@
+package uk.ac.soton.ecs.dsj.video;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.processing.face.detection.keypoints.FKEFaceDetector;
+import org.openimaj.image.processing.face.detection.keypoints.KEDetectedFace;
+import org.openimaj.math.geometry.shape.Rectangle;
+import org.openimaj.util.function.Function;
+
+/**
+ * Draws the faces in a frame onto it, like {@link FaceOverlayStage} but only searching the areas
+ * that have changed since the last frame and keeping the faces found before elsewhere.
+ * <p>
+ * Each dirty region is grown by a margin, and further to cover any face found before that it
+ * touches, so a face that has moved is searched for whole. Faces touching a region are replaced by
+ * those found in it, the rest are kept. When most of a frame has changed (and for the first frame)
+ * the whole frame is searched. Frames are processed one at a time, so run on a single pipeline
+ * worker.
+ */
+public class TiledFaceOverlayStage implements Function<MBFImage, MBFImage> {
+  /** Dirty fraction of a frame above which the whole frame is searched */
+  public static final double FULL_FRAME_FRACTION = 0.3;
+  /** Default pixels each dirty region is grown by, half the smallest face found */
+  public static final int DEFAULT_MARGIN = 40;
+
+  private final ChangeDetector detector;
+  private final int margin;
+  private final FKEFaceDetector faceDetector = new FKEFaceDetector();
+  private final FramePool<FImage> greyPool = FramePool.forFImage();
+  private List<KEDetectedFace> faces = new ArrayList<>();
+  private int width = -1;
+  private int height = -1;
+
+  private long searchedPixels;
+  private long totalPixels;
+
+  /**
+   * Create a stage with a default change detector and margin.
+   */
+  public TiledFaceOverlayStage() {
+    this(new ChangeDetector(), DEFAULT_MARGIN);
+  }
+
+  /**
+   * @param detector Detector finding the changed areas of each frame, not shared with other stages
+   * @param margin Pixels each dirty region is grown by
+   */
+  public TiledFaceOverlayStage(ChangeDetector detector, int margin) {
+    this.detector = detector;
+    this.margin = margin;
+  }
+
+  @Override
+  public synchronized MBFImage apply(MBFImage frame) {
+    detector.update(frame);
+    totalPixels += (long) frame.getWidth() * frame.getHeight();
+
+    if (frame.getWidth() != width || frame.getHeight() != height
+        || detector.getDirtyFraction() > FULL_FRAME_FRACTION) {
+      width = frame.getWidth();
+      height = frame.getHeight();
+      faces = detect(frame, 0, 0);
+      searchedPixels += (long) width * height;
+    } else {
+      List<Rectangle> regions = detector.getDirtyRegions(margin);
+      List<KEDetectedFace> kept = new ArrayList<>();
+      for (KEDetectedFace face : faces) {
+        boolean touched = false;
+        for (int i = 0; i < regions.size(); i++) {
+          if (regions.get(i).isOverlapping(face.getBounds())) {
+            regions.set(i, clip(regions.get(i).union(face.getBounds())));
+            touched = true;
+          }
+        }
+        if (!touched) {
+          kept.add(face);
+        }
+      }
+      for (Rectangle region : ChangeDetector.mergeOverlapping(regions)) {
+        int x = (int) region.x;
+        int y = (int) region.y;
+        kept.addAll(detect(frame.extractROI(x, y, (int) Math.ceil(region.width),
+            (int) Math.ceil(region.height)), x, y));
+        searchedPixels += (long) (region.width * region.height);
+      }
+      faces = kept;
+    }
+    FaceOverlayStage.draw(frame, faces);
+    return frame;
+  }
+
+  /**
+   * Find the faces in an image, moving them by an offset into the frame.
+   */
+  private List<KEDetectedFace> detect(MBFImage image, int x, int y) {
+    FImage grey = FaceOverlayStage.intensity(image,
+        greyPool.acquire(image.getWidth(), image.getHeight()));
+    try {
+      List<KEDetectedFace> found = faceDetector.detectFaces(grey);
+      for (KEDetectedFace face : found) {
+        // Keypoints are relative to the bounds, so move with them
+        face.getBounds().translate(x, y);
+      }
+      return found;
+    } finally {
+      greyPool.release(grey);
+    }
+  }
+
+  private Rectangle clip(Rectangle rectangle) {
+    float x0 = (float) Math.floor(Math.max(0, rectangle.x));
+    float y0 = (float) Math.floor(Math.max(0, rectangle.y));
+    float x1 = (float) Math.ceil(Math.min(width, rectangle.x + rectangle.width));
+    float y1 = (float) Math.ceil(Math.min(height, rectangle.y + rectangle.height));
+    return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+  }
+
+  /**
+   * @return Fraction of the pixels of every frame searched for faces, including the margins
+   */
+  public synchronized double getSearchedFraction() {
+    return totalPixels == 0 ? 0 : searchedPixels / (double) totalPixels;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%s, %.1f%% of pixels searched", detector, 100 * getSearchedFraction());
+  }
+
+}
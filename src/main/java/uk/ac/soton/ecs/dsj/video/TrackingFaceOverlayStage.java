@@ -0,0 +1,47 @@
+package uk.ac.soton.ecs.dsj.video;
+
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.util.function.Function;
+
+/**
+ * Draws the faces in a frame onto it, like {@link FaceOverlayStage} but detecting faces only every
+ * few frames and following them in between with a {@link FaceTracker}. Frames are processed one at
+ * a time and must be in order, so run on a single pipeline worker.
+ */
+public class TrackingFaceOverlayStage implements Function<MBFImage, MBFImage> {
+  private final FaceTracker tracker;
+  private final FramePool<FImage> greyPool = FramePool.forFImage();
+
+  /**
+   * Create a stage with a default tracker.
+   */
+  public TrackingFaceOverlayStage() {
+    this(new FaceTracker());
+  }
+
+  /**
+   * @param tracker Tracker of the faces, not shared with other stages
+   */
+  public TrackingFaceOverlayStage(FaceTracker tracker) {
+    this.tracker = tracker;
+  }
+
+  @Override
+  public synchronized MBFImage apply(MBFImage frame) {
+    FImage grey =
+        FaceOverlayStage.intensity(frame, greyPool.acquire(frame.getWidth(), frame.getHeight()));
+    try {
+      FaceOverlayStage.draw(frame, tracker.track(grey));
+    } finally {
+      greyPool.release(grey);
+    }
+    return frame;
+  }
+
+  @Override
+  public String toString() {
+    return tracker.toString();
+  }
+
+}
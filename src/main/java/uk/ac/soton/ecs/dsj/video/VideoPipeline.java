@@ -0,0 +1,417 @@
+package uk.ac.soton.ecs.dsj.video;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openimaj.image.Image;
+import org.openimaj.time.Timer;
+import org.openimaj.util.function.Function;
+import org.openimaj.util.function.Operation;
+import org.openimaj.video.Video;
+
+/**
+ * Runs a video through decode, process and render stages on separate threads, joined by bounded
+ * queues, so that throughput is limited by the slowest stage rather than the sum of all three.
+ * <p>
+ * A decode thread reads frames from the source (copying them, as sources may reuse their frame
+ * buffer) into a bounded input queue. A pool of workers applies the processor to frames from the
+ * queue. Results are reassembled into source order before the renderer is called on the thread
+ * that called {@link #run()}, or rendered as soon as each is ready when unordered. When the input
+ * queue is full the {@link DropPolicy} decides whether the decoder waits or a frame is dropped,
+ * live sources should drop so that the display does not fall behind the camera.
+ *
+ * @param <I> Type of source frame
+ * @param <O> Type of processed frame
+ */
+public class VideoPipeline<I extends Image<?, I>, O> {
+  /** Default size of the input queue and of the reorder buffer */
+  public static final int DEFAULT_CAPACITY = 4;
+
+  /**
+   * What the decoder does with a new frame when the input queue is full.
+   */
+  public enum DropPolicy {
+    /** Wait for space, never dropping frames (for files) */
+    BLOCK,
+    /** Drop the new frame */
+    DROP_NEWEST,
+    /** Drop the oldest queued frame to make space for the new one (for live sources) */
+    DROP_OLDEST
+  }
+
+  // Marks a frame that was dropped or failed, so reassembly does not wait for it
+  private static final Object SKIPPED = new Object();
+
+  private final Video<I> source;
+  private final Function<I, O> processor;
+  private final Operation<O> renderer;
+  private int workers = Runtime.getRuntime().availableProcessors();
+  private int capacity = DEFAULT_CAPACITY;
+  private DropPolicy dropPolicy = DropPolicy.BLOCK;
+  private boolean ordered = true;
+
+  private volatile boolean running;
+  private BlockingQueue<Frame<I>> input;
+  private FramePool<I> framePool;
+  // Processed frames (with a SKIPPED result if dropped) by sequence number, waiting to be rendered
+  private final TreeMap<Long, Frame<I>> output = new TreeMap<>();
+  private long end;
+  private long rendered;
+
+  private final AtomicLong decodeNanos = new AtomicLong();
+  private final AtomicLong processNanos = new AtomicLong();
+  private final AtomicLong renderNanos = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong allocatedBytes = new AtomicLong();
+  private final LatencyStats latency = new LatencyStats();
+  private long decoded;
+  private long shown;
+  private long elapsedMillis;
+
+  /**
+   * @param source Video to read frames from
+   * @param processor Applied to each frame, concurrently from the worker threads
+   * @param renderer Called with each processed frame, from the thread calling {@link #run()}
+   */
+  public VideoPipeline(Video<I> source, Function<I, O> processor, Operation<O> renderer) {
+    this.source = source;
+    this.processor = processor;
+    this.renderer = renderer;
+  }
+
+  /**
+   * @param workers Number of threads processing frames, one per processor by default
+   * @return This pipeline
+   */
+  public VideoPipeline<I, O> setWorkers(int workers) {
+    if (workers < 1) {
+      throw new IllegalArgumentException("Workers must be at least 1: " + workers);
+    }
+    this.workers = workers;
+    return this;
+  }
+
+  /**
+   * @param capacity Size of the input queue and of the reorder buffer
+   * @return This pipeline
+   */
+  public VideoPipeline<I, O> setCapacity(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+    }
+    this.capacity = capacity;
+    return this;
+  }
+
+  /**
+   * @param dropPolicy What to do with new frames when the input queue is full
+   * @return This pipeline
+   */
+  public VideoPipeline<I, O> setDropPolicy(DropPolicy dropPolicy) {
+    this.dropPolicy = dropPolicy;
+    return this;
+  }
+
+  /**
+   * @param ordered Whether frames are rendered in source order, otherwise as soon as each is ready
+   * @return This pipeline
+   */
+  public VideoPipeline<I, O> setOrdered(boolean ordered) {
+    this.ordered = ordered;
+    return this;
+  }
+
+  /**
+   * Copy source frames into recycled buffers instead of new images. The source buffer is released
+   * once its frame is rendered or dropped, as is the processed frame if it is a different buffer
+   * from the same pool, so neither may be kept by the processor or renderer.
+   *
+   * @param framePool Pool to copy source frames into
+   * @return This pipeline
+   */
+  public VideoPipeline<I, O> setFramePool(FramePool<I> framePool) {
+    this.framePool = framePool;
+    return this;
+  }
+
+  /**
+   * Run the pipeline until the source has no more frames or {@link #stop()} is called, rendering
+   * on the calling thread. Frames already decoded when stopping are still processed and rendered.
+   */
+  public void run() {
+    input = new ArrayBlockingQueue<>(capacity);
+    output.clear();
+    end = -1;
+    rendered = 0;
+    decoded = 0;
+    shown = 0;
+    latency.clear();
+    running = true;
+    Timer timer = Timer.timer();
+
+    List<Thread> threads = new ArrayList<>();
+    threads.add(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        long before = AllocationMeter.currentThreadBytes();
+        decode();
+        allocatedBytes.addAndGet(AllocationMeter.currentThreadBytes() - before);
+      }
+    }, "pipeline-decode"));
+    for (int i = 0; i < workers; i++) {
+      threads.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          long before = AllocationMeter.currentThreadBytes();
+          process();
+          allocatedBytes.addAndGet(AllocationMeter.currentThreadBytes() - before);
+        }
+      }, "pipeline-worker-" + i));
+    }
+    for (Thread thread : threads) {
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    long before = AllocationMeter.currentThreadBytes();
+    render();
+    allocatedBytes.addAndGet(AllocationMeter.currentThreadBytes() - before);
+    running = false;
+    for (Thread thread : threads) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    elapsedMillis = timer.duration();
+  }
+
+  /**
+   * Stop reading from the source, the frames already read are still rendered. May be called from
+   * any thread, including from the renderer.
+   */
+  public void stop() {
+    running = false;
+  }
+
+  private void decode() {
+    long sequence = 0;
+    try {
+      while (running && source.hasNextFrame()) {
+        long start = System.nanoTime();
+        I image = source.getNextFrame();
+        if (image == null) {
+          break;
+        }
+        long arrived = System.nanoTime();
+        I copy = framePool == null ? image.clone() : framePool.copyOf(image);
+        Frame<I> frame = new Frame<>(sequence++, copy, arrived);
+        decodeNanos.addAndGet(System.nanoTime() - start);
+        switch (dropPolicy) {
+          case BLOCK:
+            input.put(frame);
+            break;
+          case DROP_NEWEST:
+            if (!input.offer(frame)) {
+              skip(frame);
+            }
+            break;
+          case DROP_OLDEST:
+            while (!input.offer(frame)) {
+              Frame<I> oldest = input.poll();
+              if (oldest != null) {
+                skip(oldest);
+              }
+            }
+            break;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    } finally {
+      synchronized (output) {
+        decoded = sequence;
+        end = sequence;
+        output.notifyAll();
+      }
+      // One end marker per worker
+      for (int i = 0; i < workers; i++) {
+        try {
+          input.put(new Frame<I>(-1, null, 0));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+  }
+
+  private void skip(Frame<I> frame) {
+    dropped.incrementAndGet();
+    frame.result = SKIPPED;
+    synchronized (output) {
+      output.put(frame.sequence, frame);
+      output.notifyAll();
+    }
+  }
+
+  private void process() {
+    try {
+      while (true) {
+        Frame<I> frame = input.take();
+        if (frame.sequence < 0) {
+          return;
+        }
+        long start = System.nanoTime();
+        try {
+          frame.result = processor.apply(frame.image);
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+          failures.incrementAndGet();
+          frame.result = SKIPPED;
+        }
+        processNanos.addAndGet(System.nanoTime() - start);
+
+        synchronized (output) {
+          // Wait while the buffer is full, unless this is the frame the renderer is waiting for
+          while (output.size() >= capacity && !(ordered && frame.sequence == rendered)) {
+            output.wait();
+          }
+          output.put(frame.sequence, frame);
+          output.notifyAll();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void render() {
+    try {
+      while (true) {
+        Frame<I> frame;
+        synchronized (output) {
+          Map.Entry<Long, Frame<I>> next;
+          while (true) {
+            if (end >= 0 && rendered >= end) {
+              return;
+            }
+            next = output.firstEntry();
+            if (next != null && (!ordered || next.getKey() == rendered)) {
+              break;
+            }
+            output.wait();
+          }
+          output.remove(next.getKey());
+          rendered++;
+          output.notifyAll();
+          frame = next.getValue();
+        }
+        if (frame.result != SKIPPED) {
+          long start = System.nanoTime();
+          try {
+            renderer.perform((O) frame.result);
+            shown++;
+            latency.record(System.nanoTime() - frame.started);
+          } catch (RuntimeException e) {
+            e.printStackTrace();
+            failures.incrementAndGet();
+          }
+          renderNanos.addAndGet(System.nanoTime() - start);
+        }
+        recycle(frame);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void recycle(Frame<I> frame) {
+    if (framePool == null) {
+      return;
+    }
+    if (frame.result != frame.image && framePool.owns(frame.result)) {
+      framePool.release((I) frame.result);
+    }
+    framePool.release(frame.image);
+  }
+
+  /**
+   * @return Frames rendered per second over the last run
+   */
+  public double getFramesPerSecond() {
+    return shown * 1000.0 / Math.max(1, elapsedMillis);
+  }
+
+  /**
+   * @return Time from each frame arriving from the source to the end of its rendering, over the
+   *         last run (dropped frames are not included)
+   */
+  public LatencyStats getLatency() {
+    return latency;
+  }
+
+  /**
+   * @return Bytes allocated on the heap by the pipeline's stages over every run, 0 if the JVM does
+   *         not report allocation
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes.get();
+  }
+
+  /**
+   * @return Number of frames dropped over every run
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Print the time spent in each stage and the overall throughput of the last run.
+   *
+   * @param out Stream to print to
+   */
+  public void printReport(PrintStream out) {
+    long frames = Math.max(1, decoded);
+    out.println(String.format("Decode:  %d frames, %.2fms/frame", decoded,
+        decodeNanos.get() / 1e6 / frames));
+    out.println(String.format("Process: %.2fms/frame over %d workers (%.2fms/frame effective)",
+        processNanos.get() / 1e6 / frames, workers, processNanos.get() / 1e6 / frames / workers));
+    out.println(String.format("Render:  %.2fms/frame", renderNanos.get() / 1e6 / frames));
+    out.println(String.format("Dropped: %d, failed: %d", dropped.get(), failures.get()));
+    out.println("Latency: " + latency);
+    out.println(String.format("Heap:    %.1fKB/frame allocated", getAllocatedBytes() / 1024.0
+        / frames));
+    out.println(String.format("Overall: %.1f frames/s in %dms", getFramesPerSecond(),
+        elapsedMillis));
+  }
+
+  /**
+   * A source frame, its position in the source, when it arrived and its processed result.
+   */
+  private static class Frame<T> {
+    private final long sequence;
+    private final T image;
+    private final long started;
+    private Object result;
+
+    Frame(long sequence, T image, long started) {
+      this.sequence = sequence;
+      this.image = image;
+      this.started = started;
+    }
+  }
+
+}
@@ -0,0 +1,62 @@
+package uk.ac.soton.ecs.dsj.ch8;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import org.junit.Test;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.processing.face.detection.DetectedFace;
+import org.openimaj.image.processing.face.detection.HaarCascadeDetector;
+import org.openimaj.math.geometry.shape.Rectangle;
+
+/**
+ * Compares the faces of a {@link ParallelHaarCascadeDetector} with those of the
+ * {@link HaarCascadeDetector} it replaces.
+ */
+public class ParallelHaarCascadeDetectorTest {
+  private static final int MIN_SIZE = 20;
+
+  @Test
+  public void sameFacesAsHaarCascadeDetector() throws IOException {
+    FImage image = readSkin();
+    List<DetectedFace> expected = new HaarCascadeDetector(MIN_SIZE).detectFaces(image);
+    assertFalse(expected.isEmpty());
+    assertSameFaces(expected, new ParallelHaarCascadeDetector(MIN_SIZE).detectFaces(image));
+  }
+
+  @Test
+  public void sameFacesWithinRegionOfInterest() throws IOException {
+    FImage image = readSkin();
+    Rectangle roi = new Rectangle(120, 150, 500, 420);
+    HaarCascadeDetector sequential = new HaarCascadeDetector(MIN_SIZE);
+    sequential.getDetector().setROI(roi);
+    ParallelHaarCascadeDetector parallel = new ParallelHaarCascadeDetector(MIN_SIZE);
+    parallel.getDetector().setROI(roi);
+    List<DetectedFace> expected = sequential.detectFaces(image);
+    assertFalse(expected.isEmpty());
+    assertSameFaces(expected, parallel.detectFaces(image));
+  }
+
+  /**
+   * Image of skin and face parts shipped with the OpenIMAJ face detectors, on which the cascade
+   * finds many windows at every scale.
+   */
+  private static FImage readSkin() throws IOException {
+    try (InputStream in = HaarCascadeDetector.class.getResourceAsStream("skin.png")) {
+      return ImageUtilities.readF(in);
+    }
+  }
+
+  private static void assertSameFaces(List<DetectedFace> expected, List<DetectedFace> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).getBounds(), actual.get(i).getBounds());
+      assertEquals(expected.get(i).getConfidence(), actual.get(i).getConfidence(), 0);
+    }
+  }
+
+}
@@ -0,0 +1,103 @@
+package uk.ac.soton.ecs.dsj.ch9;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Compares the frames of a {@link StreamingSpectrogram} with a direct DFT of the same windows.
+ */
+public class StreamingSpectrogramTest {
+  private static final double TOLERANCE = 1e-5;
+
+  /**
+   * Odd sized chunks, so windows start anywhere in the ring buffer and wrap around its end.
+   */
+  @Test
+  public void matchesDirectDftOverChunks() {
+    for (int size = 4; size <= 1024; size *= 2) {
+      float[] samples = noise(3 * size);
+      StreamingSpectrogram stft =
+          new StreamingSpectrogram(size, size / 4, StreamingSpectrogram.Window.RECTANGULAR);
+      float[] magnitudes = new float[stft.getBins()];
+      int frames = 0;
+      int chunk = 7;
+      for (int position = 0; position < samples.length; position += chunk) {
+        chunk = Math.min(chunk * 3 % 101 + 1, samples.length - position);
+        stft.write(samples, position, chunk);
+        while (stft.nextFrame(magnitudes)) {
+          assertDft(samples, frames * stft.getHop(), size, magnitudes);
+          frames++;
+        }
+      }
+      assertEquals((samples.length - size) / stft.getHop() + 1, frames);
+      assertEquals(frames, stft.getFrames());
+    }
+  }
+
+  /**
+   * One chunk larger than the ring buffer, which has to grow keeping the unread samples.
+   */
+  @Test
+  public void matchesDirectDftAfterGrowing() {
+    int size = 64;
+    float[] samples = noise(5 * size);
+    StreamingSpectrogram stft =
+        new StreamingSpectrogram(size, size, StreamingSpectrogram.Window.RECTANGULAR);
+    float[] magnitudes = new float[stft.getBins()];
+    stft.write(samples, 0, size / 2);
+    stft.write(samples, size / 2, samples.length - size / 2);
+    for (int frame = 0; frame < 5; frame++) {
+      assertTrue(stft.nextFrame(magnitudes));
+      assertDft(samples, frame * size, size, magnitudes);
+    }
+    assertFalse(stft.nextFrame(magnitudes));
+  }
+
+  @Test
+  public void fullScaleSineGivesOne() {
+    int size = 1024;
+    float[] samples = new float[size];
+    for (int i = 0; i < size; i++) {
+      samples[i] = (float) Math.sin(2 * Math.PI * 100 * i / size);
+    }
+    StreamingSpectrogram stft = new StreamingSpectrogram();
+    stft.write(samples, 0, size);
+    float[] magnitudes = new float[stft.getBins()];
+    assertTrue(stft.nextFrame(magnitudes));
+    assertEquals(1, magnitudes[100], TOLERANCE);
+    assertEquals(0, magnitudes[300], TOLERANCE);
+  }
+
+  private static float[] noise(int length) {
+    Random random = new Random(1);
+    float[] samples = new float[length];
+    for (int i = 0; i < length; i++) {
+      samples[i] = random.nextFloat() * 2 - 1;
+    }
+    return samples;
+  }
+
+  /**
+   * Check the magnitudes against a direct DFT of the window starting at the given sample,
+   * normalised as the spectrogram's rectangular window.
+   */
+  private static void assertDft(float[] samples, int start, int size, float[] magnitudes) {
+    for (int k = 0; k < size / 2; k++) {
+      double re = 0;
+      double im = 0;
+      for (int t = 0; t < size; t++) {
+        double phase = -2 * Math.PI * k * t / size;
+        re += samples[start + t] * Math.cos(phase);
+        im += samples[start + t] * Math.sin(phase);
+      }
+      double expected = Math.hypot(re, im) * (k == 0 ? 1.0 : 2.0) / size;
+      assertEquals("size " + size + ", start " + start + ", bin " + k, expected, magnitudes[k],
+          TOLERANCE);
+    }
+  }
+
+}